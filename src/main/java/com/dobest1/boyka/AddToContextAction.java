@@ -4,33 +4,52 @@ import com.intellij.openapi.actionSystem.ActionUpdateThread;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
+
+/**
+ * 把项目视图中选中的文件和目录加入上下文。目录递归加入，可以用 glob 过滤，忽略的文件不加入；
+ * 所有文件在后台一次加入，只保存和刷新一次上下文。
+ */
 public class AddToContextAction extends AnAction {
 
     @Override
     public void actionPerformed(@NotNull AnActionEvent e) {
         Project project = e.getProject();
         if (project == null) return;
-        BoykaAILogger.info("Adding files to context");
         VirtualFile[] files = e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY);
         if (files == null || files.length == 0) return;
-        BoykaAILogger.info("contextManager Adding " + files.length + " files to context");
-        ContextManager contextManager = ContextManager.getInstance(project);
-        boolean contextChanged = false;
+        String globs = null;
         for (VirtualFile file : files) {
-            if (!contextManager.isFileInContext(file.getPath())) {
-                BoykaAILogger.info("contextManager Adding " + file.getPath() + " to context");
-                contextManager.addFileToContext(file.getPath());
-                contextChanged = true;
+            if (file.isDirectory()) {
+                globs = Messages.showInputDialog(project,
+                        "目录中要加入的文件，逗号分隔的 glob，例如 *.java,*.kt；留空加入所有文件。\n忽略的文件（.gitignore 等）和二进制文件不会加入。",
+                        "添加到上下文", Messages.getQuestionIcon(), "", null);
+                if (globs == null) return;
+                break;
             }
         }
-
-        if (contextChanged) {
-            contextManager.notifyContextChanged();
-        }
+        String includes = globs;
+        BoykaAILogger.info("Adding " + files.length + " selected files to context");
+        ProgressManager.getInstance().run(new Task.Backgroundable(project, "Adding files to context", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setText("Collecting files");
+                indicator.setIndeterminate(true);
+                List<String> paths = new ContextFileCollector(project, includes).collect(files);
+                indicator.setText("Reading " + paths.size() + " files");
+                indicator.setIndeterminate(false);
+                int added = ContextManager.getInstance(project).addFilesToContext(paths, indicator);
+                BoykaAILogger.info("contextManager Added " + added + " of " + paths.size() + " files to context");
+            }
+        });
     }
 
     @Override
@@ -0,0 +1,409 @@
+package com.dobest1.boyka;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * 按行切块的 BM25 倒排索引：词项到块的倒排表，每个块记录所属文件、行范围和词频。
+ * 文件以整体为单位增删；删除时块只做标记，失效的块过多时整体重建倒排表。
+ * 不依赖 IDE，线程安全由同步方法保证。
+ */
+class Bm25Index {
+    static final int CHUNK_LINES = 60;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MAGIC = 0x424d3235;
+    private static final int VERSION = 1;
+
+    // 块编号即下标，删除后置为 null
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<String, FileEntry> files = new HashMap<>();
+    private int liveChunks;
+    private long totalLength;
+
+    static final class Hit {
+        final String path;
+        final int startLine;
+        final int endLine;
+        final double score;
+
+        Hit(String path, int startLine, int endLine, double score) {
+            this.path = path;
+            this.startLine = startLine;
+            this.endLine = endLine;
+            this.score = score;
+        }
+    }
+
+    private static final class Chunk {
+        final String path;
+        final int startLine;
+        final int endLine;
+        final int length;
+        final String[] terms;
+        final int[] freqs;
+
+        Chunk(String path, int startLine, int endLine, int length, String[] terms, int[] freqs) {
+            this.path = path;
+            this.startLine = startLine;
+            this.endLine = endLine;
+            this.length = length;
+            this.terms = terms;
+            this.freqs = freqs;
+        }
+    }
+
+    private static final class Postings {
+        int[] ids = new int[4];
+        int[] freqs = new int[4];
+        int size;
+        // 仍然有效的块数，即文档频率
+        int live;
+
+        void add(int id, int freq) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            ids[size] = id;
+            freqs[size] = freq;
+            size++;
+            live++;
+        }
+    }
+
+    private static final class FileEntry {
+        final long timeStamp;
+        final long length;
+        final int[] chunkIds;
+
+        FileEntry(long timeStamp, long length, int[] chunkIds) {
+            this.timeStamp = timeStamp;
+            this.length = length;
+            this.chunkIds = chunkIds;
+        }
+    }
+
+    /**
+     * 重新索引文件：按 {@link #CHUNK_LINES} 行切块，文件名中的词加入每个块，使按类名提问时能命中。
+     */
+    synchronized void addFile(String path, long timeStamp, long length, CharSequence text) {
+        removeFile(path);
+        Map<String, Integer> nameTerms = terms(fileName(path));
+        List<Integer> ids = new ArrayList<>();
+        int line = 0;
+        int chunkStart = 0;
+        int from = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length() && text.charAt(i) != '\n') {
+                continue;
+            }
+            line++;
+            // 以换行结尾的文件不再多出一个空块
+            if (line - chunkStart == CHUNK_LINES || (i == text.length() && (from < i || ids.isEmpty()))) {
+                Map<String, Integer> terms = terms(text.subSequence(from, i));
+                nameTerms.forEach((term, freq) -> terms.merge(term, freq, Integer::sum));
+                ids.add(addChunk(path, chunkStart, line, terms));
+                chunkStart = line;
+                from = Math.min(i + 1, text.length());
+            }
+        }
+        files.put(path, new FileEntry(timeStamp, length, ids.stream().mapToInt(Integer::intValue).toArray()));
+    }
+
+    synchronized void removeFile(String path) {
+        FileEntry entry = files.remove(path);
+        if (entry == null) {
+            return;
+        }
+        for (int id : entry.chunkIds) {
+            Chunk chunk = chunks.set(id, null);
+            for (String term : chunk.terms) {
+                postings.get(term).live--;
+            }
+            liveChunks--;
+            totalLength -= chunk.length;
+        }
+        if (chunks.size() - liveChunks > Math.max(1024, liveChunks)) {
+            compact();
+        }
+    }
+
+    /**
+     * 删除目录下的所有文件。
+     */
+    synchronized void removeUnder(String directory) {
+        String prefix = directory.endsWith("/") ? directory : directory + "/";
+        for (String path : new ArrayList<>(files.keySet())) {
+            if (path.startsWith(prefix)) {
+                removeFile(path);
+            }
+        }
+    }
+
+    synchronized boolean isUpToDate(String path, long timeStamp, long length) {
+        FileEntry entry = files.get(path);
+        return entry != null && entry.timeStamp == timeStamp && entry.length == length;
+    }
+
+    synchronized Set<String> getFiles() {
+        return new HashSet<>(files.keySet());
+    }
+
+    synchronized int getChunkCount() {
+        return liveChunks;
+    }
+
+    /**
+     * 按 BM25 得分返回最相关的块，得分从高到低。
+     */
+    synchronized List<Hit> search(String query, int limit) {
+        List<Hit> result = new ArrayList<>();
+        if (liveChunks == 0 || limit <= 0) {
+            return result;
+        }
+        double averageLength = (double) totalLength / liveChunks;
+        double[] scores = new double[chunks.size()];
+        for (String term : terms(query).keySet()) {
+            Postings list = postings.get(term);
+            if (list == null || list.live == 0) {
+                continue;
+            }
+            double idf = Math.log(1 + (liveChunks - list.live + 0.5) / (list.live + 0.5));
+            for (int i = 0; i < list.size; i++) {
+                Chunk chunk = chunks.get(list.ids[i]);
+                if (chunk == null) {
+                    continue;
+                }
+                int tf = list.freqs[i];
+                scores[list.ids[i]] += idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * chunk.length / averageLength));
+            }
+        }
+        PriorityQueue<Integer> top = new PriorityQueue<>(limit + 1, (a, b) -> Double.compare(scores[a], scores[b]));
+        for (int id = 0; id < scores.length; id++) {
+            if (scores[id] > 0) {
+                top.add(id);
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+        }
+        while (!top.isEmpty()) {
+            int id = top.poll();
+            Chunk chunk = chunks.get(id);
+            result.add(0, new Hit(chunk.path, chunk.startLine, chunk.endLine, scores[id]));
+        }
+        return result;
+    }
+
+    /**
+     * 写出文件和块的词频，读入时据此重建倒排表，不需要重新读取源文件。
+     */
+    synchronized void write(DataOutputStream out) throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (Chunk chunk : chunks) {
+            if (chunk != null) {
+                for (String term : chunk.terms) {
+                    dictionary.putIfAbsent(term, dictionary.size());
+                }
+            }
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(dictionary.size());
+        for (String term : dictionary.keySet()) {
+            out.writeUTF(term);
+        }
+        out.writeInt(files.size());
+        for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+            FileEntry entry = file.getValue();
+            out.writeUTF(file.getKey());
+            out.writeLong(entry.timeStamp);
+            out.writeLong(entry.length);
+            out.writeInt(entry.chunkIds.length);
+            for (int id : entry.chunkIds) {
+                Chunk chunk = chunks.get(id);
+                out.writeInt(chunk.startLine);
+                out.writeInt(chunk.endLine);
+                out.writeInt(chunk.length);
+                out.writeInt(chunk.terms.length);
+                for (int i = 0; i < chunk.terms.length; i++) {
+                    out.writeInt(dictionary.get(chunk.terms[i]));
+                    out.writeInt(chunk.freqs[i]);
+                }
+            }
+        }
+    }
+
+    static Bm25Index read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unsupported index format");
+        }
+        String[] dictionary = new String[in.readInt()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = in.readUTF();
+        }
+        Bm25Index index = new Bm25Index();
+        int fileCount = in.readInt();
+        for (int f = 0; f < fileCount; f++) {
+            String path = in.readUTF();
+            long timeStamp = in.readLong();
+            long length = in.readLong();
+            int[] ids = new int[in.readInt()];
+            for (int c = 0; c < ids.length; c++) {
+                int startLine = in.readInt();
+                int endLine = in.readInt();
+                int chunkLength = in.readInt();
+                String[] terms = new String[in.readInt()];
+                int[] freqs = new int[terms.length];
+                for (int i = 0; i < terms.length; i++) {
+                    terms[i] = dictionary[in.readInt()];
+                    freqs[i] = in.readInt();
+                }
+                ids[c] = index.addChunk(new Chunk(path, startLine, endLine, chunkLength, terms, freqs));
+            }
+            index.files.put(path, new FileEntry(timeStamp, length, ids));
+        }
+        return index;
+    }
+
+    /**
+     * 把文本拆成小写词项及其出现次数。标识符整体作为一个词，驼峰和下划线拆出的部分也各算一个词；
+     * 连续的汉字按相邻两字切分。
+     */
+    static Map<String, Integer> terms(CharSequence text) {
+        Map<String, Integer> terms = new HashMap<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isIdeographic(c)) {
+                int start = i;
+                while (i < text.length() && Character.isIdeographic(text.charAt(i))) {
+                    i++;
+                }
+                if (i - start == 1) {
+                    addTerm(terms, text.subSequence(start, i).toString());
+                }
+                for (int j = start; j + 2 <= i; j++) {
+                    addTerm(terms, text.subSequence(j, j + 2).toString());
+                }
+            } else if (Character.isLetterOrDigit(c) || c == '_') {
+                int start = i;
+                while (i < text.length() && isIdentifierPart(text.charAt(i))) {
+                    i++;
+                }
+                String word = text.subSequence(start, i).toString();
+                addTerm(terms, word.toLowerCase(Locale.ROOT));
+                List<String> parts = splitIdentifier(word);
+                if (parts.size() > 1) {
+                    for (String part : parts) {
+                        addTerm(terms, part.toLowerCase(Locale.ROOT));
+                    }
+                }
+            } else {
+                i++;
+            }
+        }
+        return terms;
+    }
+
+    private int addChunk(String path, int startLine, int endLine, Map<String, Integer> terms) {
+        String[] termArray = new String[terms.size()];
+        int[] freqs = new int[terms.size()];
+        int length = 0;
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : terms.entrySet()) {
+            termArray[i] = entry.getKey();
+            freqs[i] = entry.getValue();
+            length += freqs[i];
+            i++;
+        }
+        return addChunk(new Chunk(path, startLine, endLine, length, termArray, freqs));
+    }
+
+    private int addChunk(Chunk chunk) {
+        int id = chunks.size();
+        chunks.add(chunk);
+        for (int i = 0; i < chunk.terms.length; i++) {
+            postings.computeIfAbsent(chunk.terms[i], term -> new Postings()).add(id, chunk.freqs[i]);
+        }
+        liveChunks++;
+        totalLength += chunk.length;
+        return id;
+    }
+
+    // 丢弃已删除的块，重新编号并重建倒排表
+    private void compact() {
+        List<Chunk> live = new ArrayList<>(liveChunks);
+        Map<Integer, Integer> renumbered = new HashMap<>();
+        for (int id = 0; id < chunks.size(); id++) {
+            Chunk chunk = chunks.get(id);
+            if (chunk != null) {
+                renumbered.put(id, live.size());
+                live.add(chunk);
+            }
+        }
+        chunks.clear();
+        postings.clear();
+        liveChunks = 0;
+        totalLength = 0;
+        for (Chunk chunk : live) {
+            addChunk(chunk);
+        }
+        files.replaceAll((path, entry) -> new FileEntry(entry.timeStamp, entry.length,
+                Arrays.stream(entry.chunkIds).map(renumbered::get).toArray()));
+    }
+
+    private static void addTerm(Map<String, Integer> terms, String term) {
+        if (term.length() >= MIN_TERM_LENGTH && term.length() <= MAX_TERM_LENGTH) {
+            terms.merge(term, 1, Integer::sum);
+        }
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return (Character.isLetterOrDigit(c) || c == '_') && !Character.isIdeographic(c);
+    }
+
+    // getFullContext、HTTP_CLIENT、utf8Decode 分别拆成 get/full/context、http/client、utf/8/decode
+    private static List<String> splitIdentifier(String word) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= word.length(); i++) {
+            boolean boundary = i == word.length() || word.charAt(i) == '_';
+            if (!boundary) {
+                char previous = word.charAt(i - 1);
+                char current = word.charAt(i);
+                boundary = previous == '_'
+                        || (Character.isLowerCase(previous) && Character.isUpperCase(current))
+                        || (Character.isDigit(previous) != Character.isDigit(current))
+                        || (Character.isUpperCase(previous) && Character.isUpperCase(current)
+                        && i + 1 < word.length() && Character.isLowerCase(word.charAt(i + 1)));
+            }
+            if (boundary) {
+                if (i > start && word.charAt(start) != '_') {
+                    parts.add(word.substring(start, i));
+                }
+                start = word.charAt(Math.min(i, word.length() - 1)) == '_' ? i + 1 : i;
+            }
+        }
+        return parts;
+    }
+
+    private static String fileName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
\ No newline at end of file
@@ -32,6 +32,25 @@ public class BoykaAIConfigurable implements Configurable {
     private JBTextField maxTokensField;
     private JCheckBox enableClaude;
     private JCheckBox enableOpenai;
+    private JCheckBox enableStreaming;
+    private JCheckBox enablePromptCaching;
+    private JCheckBox enableResponseCache;
+    private JBTextField responseCacheMaxMbField;
+    private JBTextField responseCacheTtlHoursField;
+    private JCheckBox enableRateLimit;
+    private JBTextField rateLimitRpmField;
+    private JBTextField rateLimitInputTpmField;
+    private JBTextField rateLimitOutputTpmField;
+    private JCheckBox enableFailover;
+    private JCheckBox enableHedging;
+    private JBTextField hedgeDelayMsField;
+    private JBTextField historyTokenBudgetField;
+    private JBTextField historyKeepExchangesField;
+    private JBTextField contextWindowTokensField;
+    private JBTextField tokenizerDirectoryField;
+    private JBTextField contentCacheMaxMbField;
+    private JBTextField autoContextTokensField;
+    private JCheckBox symbolContext;
 
     private JButton refreshModelsButton;
 
@@ -220,6 +239,143 @@ public class BoykaAIConfigurable implements Configurable {
         autoRepeatCountField = new JBTextField();
         panel.add(autoRepeatCountField, gbc);
 
+        // 第三行：流式输出
+        gbc.gridwidth = 1;
+        gbc.gridy = 2;
+        panel.add(new JBLabel("Stream responses:"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        enableStreaming = new JCheckBox();
+        panel.add(enableStreaming, gbc);
+
+        // 第四行：提示缓存
+        gbc.gridwidth = 1;
+        gbc.gridy = 3;
+        panel.add(new JBLabel("Claude prompt caching:"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        enablePromptCaching = new JCheckBox();
+        panel.add(enablePromptCaching, gbc);
+
+        // 第五行至第七行：编辑指令等无历史调用的磁盘缓存
+        gbc.gridwidth = 1;
+        gbc.gridy = 4;
+        panel.add(new JBLabel("Cache edit responses:"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        enableResponseCache = new JCheckBox();
+        panel.add(enableResponseCache, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 5;
+        panel.add(new JBLabel("Response cache size (MB):"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        responseCacheMaxMbField = new JBTextField();
+        panel.add(responseCacheMaxMbField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 6;
+        panel.add(new JBLabel("Response cache TTL (hours):"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        responseCacheTtlHoursField = new JBTextField();
+        panel.add(responseCacheTtlHoursField, gbc);
+
+        // 第八行至第十一行：客户端限流，上限为 0 时从响应头获取
+        gbc.gridwidth = 1;
+        gbc.gridy = 7;
+        panel.add(new JBLabel("Client-side rate limit:"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        enableRateLimit = new JCheckBox();
+        panel.add(enableRateLimit, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 8;
+        panel.add(new JBLabel("Requests per minute (0 = auto):"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        rateLimitRpmField = new JBTextField();
+        panel.add(rateLimitRpmField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 9;
+        panel.add(new JBLabel("Input tokens per minute (0 = auto):"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        rateLimitInputTpmField = new JBTextField();
+        panel.add(rateLimitInputTpmField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 10;
+        panel.add(new JBLabel("Output tokens per minute (0 = auto):"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        rateLimitOutputTpmField = new JBTextField();
+        panel.add(rateLimitOutputTpmField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 11;
+        panel.add(new JBLabel("Fail over between providers:"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        enableFailover = new JCheckBox();
+        panel.add(enableFailover, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 12;
+        panel.add(new JBLabel("Hedge slow requests:"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        enableHedging = new JCheckBox();
+        panel.add(enableHedging, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 13;
+        panel.add(new JBLabel("Hedge delay ms (0 = auto):"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        hedgeDelayMsField = new JBTextField();
+        panel.add(hedgeDelayMsField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 14;
+        panel.add(new JBLabel("History token budget (0 = unlimited):"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        historyTokenBudgetField = new JBTextField();
+        panel.add(historyTokenBudgetField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 15;
+        panel.add(new JBLabel("Recent exchanges kept verbatim:"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        historyKeepExchangesField = new JBTextField();
+        panel.add(historyKeepExchangesField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 16;
+        panel.add(new JBLabel("Context window tokens (0 = auto):"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        contextWindowTokensField = new JBTextField();
+        panel.add(contextWindowTokensField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 17;
+        panel.add(new JBLabel("Tokenizer vocabulary directory:"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        tokenizerDirectoryField = new JBTextField();
+        panel.add(tokenizerDirectoryField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 18;
+        panel.add(new JBLabel("File content cache MB:"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        contentCacheMaxMbField = new JBTextField();
+        panel.add(contentCacheMaxMbField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 19;
+        panel.add(new JBLabel("Auto context tokens (0 = off):"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        autoContextTokensField = new JBTextField();
+        panel.add(autoContextTokensField, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 20;
+        panel.add(new JBLabel("Context files as symbol outlines:"), gbc);
+        gbc.gridwidth = GridBagConstraints.REMAINDER;
+        symbolContext = new JCheckBox();
+        panel.add(symbolContext, gbc);
+
         return panel;
     }
 
@@ -242,6 +398,25 @@ public class BoykaAIConfigurable implements Configurable {
         enableClaude.setSelected(state.enableClaude);
         enableOpenai.setSelected(state.enableOpenai);
         autoRepeatCountField.setText(String.valueOf(state.autoRepeatCount));
+        enableStreaming.setSelected(state.enableStreaming);
+        enablePromptCaching.setSelected(state.enablePromptCaching);
+        enableResponseCache.setSelected(state.enableResponseCache);
+        responseCacheMaxMbField.setText(String.valueOf(state.responseCacheMaxMb));
+        responseCacheTtlHoursField.setText(String.valueOf(state.responseCacheTtlHours));
+        enableRateLimit.setSelected(state.enableRateLimit);
+        rateLimitRpmField.setText(String.valueOf(state.rateLimitRpm));
+        rateLimitInputTpmField.setText(String.valueOf(state.rateLimitInputTpm));
+        rateLimitOutputTpmField.setText(String.valueOf(state.rateLimitOutputTpm));
+        enableFailover.setSelected(state.enableFailover);
+        enableHedging.setSelected(state.enableHedging);
+        hedgeDelayMsField.setText(String.valueOf(state.hedgeDelayMs));
+        historyTokenBudgetField.setText(String.valueOf(state.historyTokenBudget));
+        historyKeepExchangesField.setText(String.valueOf(state.historyKeepExchanges));
+        contextWindowTokensField.setText(String.valueOf(state.contextWindowTokens));
+        tokenizerDirectoryField.setText(state.tokenizerDirectory);
+        contentCacheMaxMbField.setText(String.valueOf(state.contentCacheMaxMb));
+        autoContextTokensField.setText(String.valueOf(state.autoContextTokens));
+        symbolContext.setSelected(state.symbolContext);
         if (state.selectedModel != null && !state.selectedModel.isEmpty()) {
             DefaultComboBoxModel<String> model = (DefaultComboBoxModel<String>) openAIModelSelector.getModel();
             model.addElement(state.selectedModel);
@@ -261,7 +436,26 @@ public class BoykaAIConfigurable implements Configurable {
                 || enableClaude.isSelected() != state.enableClaude
                 || enableOpenai.isSelected() != state.enableOpenai
                 || !openAIModelSelector.getSelectedItem().equals(state.selectedModel)
-                || !autoRepeatCountField.getText().equals(String.valueOf(state.autoRepeatCount));
+                || !autoRepeatCountField.getText().equals(String.valueOf(state.autoRepeatCount))
+                || enableStreaming.isSelected() != state.enableStreaming
+                || enablePromptCaching.isSelected() != state.enablePromptCaching
+                || enableResponseCache.isSelected() != state.enableResponseCache
+                || !responseCacheMaxMbField.getText().equals(String.valueOf(state.responseCacheMaxMb))
+                || !responseCacheTtlHoursField.getText().equals(String.valueOf(state.responseCacheTtlHours))
+                || enableRateLimit.isSelected() != state.enableRateLimit
+                || !rateLimitRpmField.getText().equals(String.valueOf(state.rateLimitRpm))
+                || !rateLimitInputTpmField.getText().equals(String.valueOf(state.rateLimitInputTpm))
+                || !rateLimitOutputTpmField.getText().equals(String.valueOf(state.rateLimitOutputTpm))
+                || enableFailover.isSelected() != state.enableFailover
+                || enableHedging.isSelected() != state.enableHedging
+                || !hedgeDelayMsField.getText().equals(String.valueOf(state.hedgeDelayMs))
+                || !historyTokenBudgetField.getText().equals(String.valueOf(state.historyTokenBudget))
+                || !historyKeepExchangesField.getText().equals(String.valueOf(state.historyKeepExchanges))
+                || !contextWindowTokensField.getText().equals(String.valueOf(state.contextWindowTokens))
+                || !tokenizerDirectoryField.getText().equals(state.tokenizerDirectory)
+                || !contentCacheMaxMbField.getText().equals(String.valueOf(state.contentCacheMaxMb))
+                || !autoContextTokensField.getText().equals(String.valueOf(state.autoContextTokens))
+                || symbolContext.isSelected() != state.symbolContext;
     }
 
     @Override
@@ -277,6 +471,25 @@ public class BoykaAIConfigurable implements Configurable {
         state.enableOpenai = enableOpenai.isSelected();
         state.selectedModel = (String) openAIModelSelector.getSelectedItem();
         state.autoRepeatCount = Integer.parseInt(autoRepeatCountField.getText());
+        state.enableStreaming = enableStreaming.isSelected();
+        state.enablePromptCaching = enablePromptCaching.isSelected();
+        state.enableResponseCache = enableResponseCache.isSelected();
+        state.responseCacheMaxMb = Integer.parseInt(responseCacheMaxMbField.getText());
+        state.responseCacheTtlHours = Integer.parseInt(responseCacheTtlHoursField.getText());
+        state.enableRateLimit = enableRateLimit.isSelected();
+        state.rateLimitRpm = Integer.parseInt(rateLimitRpmField.getText());
+        state.rateLimitInputTpm = Integer.parseInt(rateLimitInputTpmField.getText());
+        state.rateLimitOutputTpm = Integer.parseInt(rateLimitOutputTpmField.getText());
+        state.enableFailover = enableFailover.isSelected();
+        state.enableHedging = enableHedging.isSelected();
+        state.hedgeDelayMs = Integer.parseInt(hedgeDelayMsField.getText());
+        state.historyTokenBudget = Integer.parseInt(historyTokenBudgetField.getText());
+        state.historyKeepExchanges = Integer.parseInt(historyKeepExchangesField.getText());
+        state.contextWindowTokens = Integer.parseInt(contextWindowTokensField.getText());
+        state.tokenizerDirectory = tokenizerDirectoryField.getText().trim();
+        state.contentCacheMaxMb = Integer.parseInt(contentCacheMaxMbField.getText());
+        state.autoContextTokens = Integer.parseInt(autoContextTokensField.getText());
+        state.symbolContext = symbolContext.isSelected();
         BoykaAISettings.getInstance().loadState(state);
     }
 
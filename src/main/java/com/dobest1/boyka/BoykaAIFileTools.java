@@ -2,18 +2,33 @@ package com.dobest1.boyka;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -21,13 +36,21 @@ import java.util.stream.Collectors;
 
 
 public class BoykaAIFileTools {
+    // 批量读取时单个文件和整批内容的字节上限
+    private static final int MAX_FILE_READ_BYTES = 200_000;
+    private static final int MAX_BATCH_READ_BYTES = 600_000;
+    private static final int MAX_DIRECTORY_READ_BYTES = 400_000;
+    private static final ExecutorService READ_EXECUTOR = AppExecutorUtil.createBoundedApplicationPoolExecutor("BoykaAI File Reads", 4);
+
     private final Project project;
     private final Path workingDirectory;
     private final Gson gson = new Gson();
     private ContextManager contextManager = null;
-    private final Map<String, String> fileContents = new HashMap<>();
+    // 编辑过的文件内容和编辑指令记录放在共享的 ContentCache 中，可能被淘汰
+    private final String fileContentsNamespace;
+    private final String codeEditorMemoryNamespace;
+    private final AtomicInteger codeEditorMemorySequence = new AtomicInteger();
     private final Set<String> codeEditorFiles = new HashSet<>();
-    private final List<String> codeEditorMemory = new ArrayList<>();
     private final Map<String, Integer> codeEditorTokens = new HashMap<>();
 
     public BoykaAIFileTools(Project project) {
@@ -37,6 +60,8 @@ public class BoykaAIFileTools {
         this.contextManager = ContextManager.getInstance(project);
 
         this.workingDirectory = Paths.get(Objects.requireNonNull(project.getBasePath()));
+        this.fileContentsNamespace = "file-tools:" + workingDirectory;
+        this.codeEditorMemoryNamespace = "edit-memory:" + workingDirectory;
     }
 
     private boolean isValidPath(Path path) {
@@ -149,7 +174,7 @@ public class BoykaAIFileTools {
             return "Error: 无效的路径" + filePath;
         }
         try {
-            String content = new String(Files.readAllBytes(filePath));
+            String content = new String(Files.readAllBytes(filePath), StandardCharsets.UTF_8);
             contextManager.updateFileContent(path, content);
             return content;
         } catch (IOException e) {
@@ -158,55 +183,154 @@ public class BoykaAIFileTools {
         }
     }
 
+    /**
+     * 读取文件中的一个符号（类、方法、字段等），symbol 为空时返回文件的符号大纲。
+     */
+    public String readSymbol(String path, String symbol) {
+        String content = readFile(path);
+        if (content.startsWith("Error: ")) {
+            return content;
+        }
+        List<SymbolChunker.Symbol> symbols = SymbolChunker.chunk(project, workingDirectory.resolve(path).getFileName().toString(), content);
+        if (symbols.isEmpty()) {
+            return content;
+        }
+        if (symbol == null || symbol.isBlank()) {
+            return SymbolChunker.outline(symbols);
+        }
+        SymbolChunker.Symbol found = SymbolChunker.find(symbols, symbol);
+        if (found == null) {
+            return "Error: 未找到符号 " + symbol + "，文件中的符号：\n" + SymbolChunker.outline(symbols);
+        }
+        return "File: " + path + " (" + found.getKind() + " " + found.getId() + ", lines " + found.getStartLine() + "-"
+                + found.getEndLine() + ")\n" + found.getText();
+    }
+
     // 当需要获取完整上下文时
     public String getFullContext() {
         return contextManager.getFullContext();
     }
 
+    /**
+     * 并行读取多个文件，每个结果以 "File: 路径" 开头，顺序与 paths 一致。
+     * 单个文件和整批内容都有字节上限，超出的部分截断并注明，按 paths 的顺序分配整批的额度；
+     * 完整读取的内容最后一次性记录到上下文缓存。
+     */
     public List<String> readMultipleFiles(List<String> paths) {
-        return paths.stream()
-                .map(this::readFile)
-                .collect(Collectors.toList());
+        Map<String, String> contents = new ConcurrentHashMap<>();
+        List<CompletableFuture<String>> reads = new ArrayList<>();
+        long remaining = MAX_BATCH_READ_BYTES;
+        for (String path : paths) {
+            Path filePath = workingDirectory.resolve(path);
+            if (isValidPath(filePath)) {
+                BoykaAILogger.warn("Error: 读取文件失败" + filePath);
+                reads.add(CompletableFuture.completedFuture("File: " + path + "\nError: 无效的路径" + filePath));
+                continue;
+            }
+            long size;
+            try {
+                size = Files.size(filePath);
+            } catch (IOException e) {
+                reads.add(CompletableFuture.completedFuture("File: " + path + "\nError: 读取文件失败" + path));
+                continue;
+            }
+            int limit = (int) Math.min(MAX_FILE_READ_BYTES, remaining);
+            if (limit <= 0) {
+                reads.add(CompletableFuture.completedFuture("File: " + path
+                        + "\n[skipped: the batch size limit was reached, read this file in a separate call]"));
+                continue;
+            }
+            remaining -= Math.min(size, limit);
+            reads.add(CompletableFuture.supplyAsync(() -> readFilePrefix(path, filePath, size, limit, contents), READ_EXECUTOR));
+        }
+        List<String> results = reads.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        contextManager.updateFileContents(contents);
+        return results;
+    }
+
+    // 读取文件开头不超过 limit 字节的内容，按 UTF-8 解码；截断时在字节上停在最后一个完整的行，不拆开多字节字符
+    private String readFilePrefix(String path, Path filePath, long size, int limit, Map<String, String> contents) {
+        try {
+            if (size <= limit) {
+                String content = new String(Files.readAllBytes(filePath), StandardCharsets.UTF_8);
+                contents.put(path, content);
+                return "File: " + path + "\n" + content;
+            }
+            byte[] bytes;
+            try (InputStream in = Files.newInputStream(filePath)) {
+                bytes = in.readNBytes(limit);
+            }
+            String content = new String(bytes, 0, prefixLength(bytes), StandardCharsets.UTF_8);
+            return "File: " + path + "\n" + content + "\n[truncated: showing the first " + content.lines().count()
+                    + " lines of " + size + " bytes, use read_symbol or grep_project for the rest]";
+        } catch (IOException e) {
+            BoykaAILogger.error("Error: readMultipleFiles 读取文件失败" + path, e);
+            return "File: " + path + "\nError: 读取文件失败" + path;
+        }
+    }
+
+    // UTF-8 中换行字节不会出现在多字节字符内部，没有换行时退到最后一个字符的起始字节
+    private static int prefixLength(byte[] bytes) {
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        int end = bytes.length;
+        while (end > 0 && (bytes[end - 1] & 0xC0) == 0x80) {
+            end--;
+        }
+        // 最后一个字符完整时保留
+        if (end > 0 && end - 1 + utf8Length(bytes[end - 1]) <= bytes.length) {
+            return bytes.length;
+        }
+        return Math.max(end - 1, 0);
+    }
+
+    private static int utf8Length(byte lead) {
+        if ((lead & 0x80) == 0) {
+            return 1;
+        }
+        if ((lead & 0xE0) == 0xC0) {
+            return 2;
+        }
+        return (lead & 0xF0) == 0xE0 ? 3 : 4;
     }
 
-    public List<String> readFilesInDirectory(String directoryPath) {
+    /**
+     * 逐个读取目录下的文本文件，每读完一个就以 "File: 路径" 开头交给 consumer，总量不超过 byteBudget 字节。
+     * 忽略的文件和二进制文件不读取，见 {@link DirectoryReader}。返回读取结果的摘要。
+     */
+    public String readFilesInDirectory(String directoryPath, long byteBudget, Consumer<String> consumer) {
         Path dirPath = workingDirectory.resolve(directoryPath);
         if (isValidPath(dirPath)) {
-            return new ArrayList<>();
+            return "Error: 无效的路径" + dirPath;
         }
-        try {
-            return Files.walk(dirPath)
-                    .filter(Files::isRegularFile)
-                    .map(path -> {
-                        try {
-                            return new String(Files.readAllBytes(path));
-                        } catch (IOException e) {
-                            // 使用日志记录错误
-                            return "";
-                        }
-                    })
-                    .collect(Collectors.toList());
-        } catch (IOException e) {
-            // 使用日志记���错误
-            return new ArrayList<>();
+        VirtualFile directory = LocalFileSystem.getInstance().refreshAndFindFileByPath(dirPath.toString().replace('\\', '/'));
+        if (directory == null || !directory.isDirectory()) {
+            return "Error: 目录不存在" + dirPath;
         }
+        return new DirectoryReader(project, READ_EXECUTOR, byteBudget).read(directory, directoryPath, consumer);
+    }
+
+    /**
+     * read_directory 工具：目录下文本文件的内容，摘要在前。
+     */
+    public String readDirectory(String directoryPath) {
+        StringBuilder contents = new StringBuilder();
+        String summary = readFilesInDirectory(directoryPath, MAX_DIRECTORY_READ_BYTES, section -> contents.append("\n\n").append(section));
+        return summary + contents;
     }
 
     public List<String> searchFiles(String query) {
-        List<String> results = new ArrayList<>();
-        VirtualFile projectDir = project.getBaseDir();
-        searchFilesRecursively(projectDir, query.toLowerCase(), results);
-        return results;
+        return ProjectFileSearch.search(project, query, ProjectFileSearch.DEFAULT_LIMIT);
     }
 
-    private void searchFilesRecursively(VirtualFile dir, String query, List<String> results) {
-        for (VirtualFile file : dir.getChildren()) {
-            if (file.isDirectory()) {
-                searchFilesRecursively(file, query, results);
-            } else if (file.getName().toLowerCase().contains(query)) {
-                results.add(file.getPath());
-            }
-        }
+    /**
+     * 在项目文件内容中搜索，返回带行号和上下文的匹配行，见 {@link ProjectGrep}。
+     */
+    public String grepProject(String query, boolean regex, boolean caseSensitive, String fileMask) {
+        return ProjectGrep.grep(project, query, regex, caseSensitive, fileMask);
     }
 
     // 刷新 IntelliJ IDEA 的文件系统
@@ -220,88 +344,101 @@ public class BoykaAIFileTools {
     public CompletableFuture<String> generateEditInstructions(String filePath, String fileContent,
                                                               String instructions, String projectContext,
                                                               Map<String, String> fullFileContents) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                StringBuilder memoryContext = new StringBuilder();
-                for (int i = 0; i < codeEditorMemory.size(); i++) {
-                    memoryContext.append("Memory ").append(i + 1).append(":\n").append(codeEditorMemory.get(i)).append("\n");
-                }
+        try {
+            StringBuilder memoryContext = new StringBuilder();
+            // 键是递增的序号，按键排序即按写入顺序
+            List<String> codeEditorMemory = new ArrayList<>(
+                    new TreeMap<>(ContentCache.getInstance().entries(codeEditorMemoryNamespace)).values());
+            for (int i = 0; i < codeEditorMemory.size(); i++) {
+                memoryContext.append("Memory ").append(i + 1).append(":\n").append(codeEditorMemory.get(i)).append("\n");
+            }
 
-                StringBuilder fullFileContentsContext = new StringBuilder();
-                for (Map.Entry<String, String> entry : fullFileContents.entrySet()) {
-                    if (!entry.getKey().equals(filePath) || !codeEditorFiles.contains(entry.getKey())) {
-                        fullFileContentsContext.append("--- ").append(entry.getKey()).append(" ---\n")
-                                .append(entry.getValue()).append("\n\n");
-                    }
+            StringBuilder fullFileContentsContext = new StringBuilder();
+            for (Map.Entry<String, String> entry : fullFileContents.entrySet()) {
+                if (!entry.getKey().equals(filePath) || !codeEditorFiles.contains(entry.getKey())) {
+                    fullFileContentsContext.append("--- ").append(entry.getKey()).append(" ---\n")
+                            .append(entry.getValue()).append("\n\n");
                 }
+            }
 
-                String systemPrompt = String.format(
-                        "You are an AI coding agent that generates edit instructions for code files. Your task is to analyze the provided code and generate SEARCH/REPLACE blocks for necessary changes. Follow these steps:\n\n" +
-                                "1. Review the entire file content to understand the context:\n%s\n\n" +
-                                "2. Carefully analyze the specific instructions:\n%s\n\n" +
-                                "3. Take into account the overall project context:\n%s\n\n" +
-                                "4. Consider the memory of previous edits:\n%s\n\n" +
-                                "5. Consider the full context of all files in the project:\n%s\n\n" +
-                                "6. Generate SEARCH/REPLACE blocks for each necessary change. Each block should:\n" +
-                                "   - Include enough context to uniquely identify the code to be changed\n" +
-                                "   - Provide the exact replacement code, maintaining correct indentation and formatting\n" +
-                                "   - Focus on specific, targeted changes rather than large, sweeping modifications\n\n" +
-                                "7. Ensure that your SEARCH/REPLACE blocks:\n" +
-                                "   - Address all relevant aspects of the instructions\n" +
-                                "   - Maintain or enhance code readability and efficiency\n" +
-                                "   - Consider the overall structure and purpose of the code\n" +
-                                "   - Follow best practices and coding standards for the language\n" +
-                                "   - Maintain consistency with the project context and previous edits\n" +
-                                "   - Take into account the full context of all files in the project\n\n" +
-                                "IMPORTANT: RETURN ONLY THE SEARCH/REPLACE BLOCKS. NO EXPLANATIONS OR COMMENTS.\n" +
-                                "USE THE FOLLOWING FORMAT FOR EACH BLOCK:\n\n" +
-                                "<SEARCH>\n" +
-                                "Code to be replaced\n" +
-                                "</SEARCH>\n" +
-                                "<REPLACE>\n" +
-                                "New code to insert\n" +
-                                "</REPLACE>\n\n" +
-                                "If no changes are needed, return an empty list.",
-                        fileContent, instructions, projectContext, memoryContext, fullFileContentsContext);
-
-                String response = "";
-                if (Objects.requireNonNull(BoykaAISettings.getInstance().getState()).enableClaude) {
-                    ClaudeConfig claudeConfig = new ClaudeConfig.Builder()
-                            .apiKey(BoykaAISettings.getInstance().getState().claudeKey)
-                            .apiUrl(BoykaAISettings.getInstance().getState().claudeAddress)
-                            .model(BoykaAISettings.getInstance().getState().claudeModel)
-                            .build();
-                    ClaudeClient claudeClient = new ClaudeClient(claudeConfig, systemPrompt);
-                    response = claudeClient.sendMessageNoHistory(systemPrompt, "Generate SEARCH/REPLACE blocks for the necessary changes.", "", Collections.emptyList());
-                } else {
-                    OpenAIConfig openAIConfig = new OpenAIConfig.Builder()
-                            .apiKey(BoykaAISettings.getInstance().getState().openAIKey)
-                            .apiUrl(BoykaAISettings.getInstance().getState().openAIBaseAddress)
-                            .model(BoykaAISettings.getInstance().getState().selectedModel)
-                            .maxTokens(BoykaAISettings.getInstance().getState().maxTokens)
-                            .build();
-                    OpenAIClient openAIClient = new OpenAIClient(openAIConfig, systemPrompt);
-                    response = openAIClient.sendMessageNoHistory(systemPrompt, "Generate SEARCH/REPLACE blocks for the necessary changes.", "", Collections.emptyList());
-                }
-                // Update token usage for code editor
-                // Map<String, Integer> usage = aiService.getLastUsage();
-                // codeEditorTokens.put("input", codeEditorTokens.get("input") + usage.get("input"));
-                // codeEditorTokens.put("output", codeEditorTokens.get("output") + usage.get("output"));
-
-                List<EditInstruction> editInstructions = parseSearchReplaceBlocks(response);
-                BoykaAILogger.info("generateEditInstructions editInstructions: " + editInstructions.toString());
-                // Update code editor memory
-                codeEditorMemory.add("Edit Instructions for " + filePath + ":\n" + response);
-
-                // Add the file to code_editor_files set
-                codeEditorFiles.add(filePath);
-                BoykaAILogger.info("generateEditInstructions: " + gson.toJson(editInstructions));
-                return gson.toJson(editInstructions);
-            } catch (Exception e) {
-                BoykaAILogger.error("Error: in generating edit instructions", e);
-                return "[]";
+            String systemPrompt = String.format(
+                    "You are an AI coding agent that generates edit instructions for code files. Your task is to analyze the provided code and generate SEARCH/REPLACE blocks for necessary changes. Follow these steps:\n\n" +
+                            "1. Review the entire file content to understand the context:\n%s\n\n" +
+                            "2. Carefully analyze the specific instructions:\n%s\n\n" +
+                            "3. Take into account the overall project context:\n%s\n\n" +
+                            "4. Consider the memory of previous edits:\n%s\n\n" +
+                            "5. Consider the full context of all files in the project:\n%s\n\n" +
+                            "6. Generate SEARCH/REPLACE blocks for each necessary change. Each block should:\n" +
+                            "   - Include enough context to uniquely identify the code to be changed\n" +
+                            "   - Provide the exact replacement code, maintaining correct indentation and formatting\n" +
+                            "   - Focus on specific, targeted changes rather than large, sweeping modifications\n\n" +
+                            "7. Ensure that your SEARCH/REPLACE blocks:\n" +
+                            "   - Address all relevant aspects of the instructions\n" +
+                            "   - Maintain or enhance code readability and efficiency\n" +
+                            "   - Consider the overall structure and purpose of the code\n" +
+                            "   - Follow best practices and coding standards for the language\n" +
+                            "   - Maintain consistency with the project context and previous edits\n" +
+                            "   - Take into account the full context of all files in the project\n\n" +
+                            "IMPORTANT: RETURN ONLY THE SEARCH/REPLACE BLOCKS. NO EXPLANATIONS OR COMMENTS.\n" +
+                            "USE THE FOLLOWING FORMAT FOR EACH BLOCK:\n\n" +
+                            "<SEARCH>\n" +
+                            "Code to be replaced\n" +
+                            "</SEARCH>\n" +
+                            "<REPLACE>\n" +
+                            "New code to insert\n" +
+                            "</REPLACE>\n\n" +
+                            "If no changes are needed, return an empty list.",
+                    fileContent, instructions, projectContext, memoryContext, fullFileContentsContext);
+
+            CompletableFuture<String> response;
+            if (Objects.requireNonNull(BoykaAISettings.getInstance().getState()).enableClaude) {
+                ClaudeConfig claudeConfig = new ClaudeConfig.Builder()
+                        .apiKey(BoykaAISettings.getInstance().getState().claudeKey)
+                        .apiUrl(BoykaAISettings.getInstance().getState().claudeAddress)
+                        .model(BoykaAISettings.getInstance().getState().claudeModel)
+                        .responseCache(BoykaAISettings.getInstance().getState().enableResponseCache)
+                        .build();
+                ClaudeClient claudeClient = new ClaudeClient(claudeConfig, systemPrompt);
+                response = claudeClient.sendMessageNoHistoryAsync(systemPrompt, "Generate SEARCH/REPLACE blocks for the necessary changes.", "", Collections.emptyList());
+            } else {
+                OpenAIConfig openAIConfig = new OpenAIConfig.Builder()
+                        .apiKey(BoykaAISettings.getInstance().getState().openAIKey)
+                        .apiUrl(BoykaAISettings.getInstance().getState().openAIBaseAddress)
+                        .model(BoykaAISettings.getInstance().getState().selectedModel)
+                        .maxTokens(BoykaAISettings.getInstance().getState().maxTokens)
+                        .responseCache(BoykaAISettings.getInstance().getState().enableResponseCache)
+                        .build();
+                OpenAIClient openAIClient = new OpenAIClient(openAIConfig, systemPrompt);
+                response = openAIClient.sendMessageNoHistoryAsync(systemPrompt, "Generate SEARCH/REPLACE blocks for the necessary changes.", "", Collections.emptyList());
             }
-        });
+            return response.thenApply(responseText -> handleEditResponse(filePath, responseText))
+                    .exceptionally(e -> {
+                        BoykaAILogger.error("Error: in generating edit instructions", CallFuture.unwrap(e));
+                        return "[]";
+                    });
+        } catch (Exception e) {
+            BoykaAILogger.error("Error: in generating edit instructions", e);
+            return CompletableFuture.completedFuture("[]");
+        }
+    }
+
+    private String handleEditResponse(String filePath, String response) {
+        // Update token usage for code editor
+        // Map<String, Integer> usage = aiService.getLastUsage();
+        // codeEditorTokens.put("input", codeEditorTokens.get("input") + usage.get("input"));
+        // codeEditorTokens.put("output", codeEditorTokens.get("output") + usage.get("output"));
+
+        List<EditInstruction> editInstructions = parseSearchReplaceBlocks(response);
+        BoykaAILogger.info("generateEditInstructions editInstructions: " + editInstructions.toString());
+        // Update code editor memory
+        ContentCache.getInstance().put(codeEditorMemoryNamespace,
+                String.format("%08d", codeEditorMemorySequence.incrementAndGet()),
+                "Edit Instructions for " + filePath + ":\n" + response);
+
+        // Add the file to code_editor_files set
+        codeEditorFiles.add(filePath);
+        BoykaAILogger.info("generateEditInstructions: " + gson.toJson(editInstructions));
+        return gson.toJson(editInstructions);
     }
 
     private List<EditInstruction> parseSearchReplaceBlocks(String responseText) {
@@ -319,105 +456,165 @@ public class BoykaAIFileTools {
 
     public CompletableFuture<String> editAndApply(String path, String instructions, String projectContext,
                                                   boolean isAutomode, int maxRetries) {
+        Path filePath = workingDirectory.resolve(path);
+        // 总是从文件的当前内容开始，缓存中上次编辑的结果可能已被用户或其他工具修改
         return CompletableFuture.supplyAsync(() -> {
-            try {
-                Path filePath = workingDirectory.resolve(path);
-                String originalContent = fileContents.getOrDefault(filePath, "");
-                if (originalContent.isEmpty()) {
-                    originalContent = new String(readFile(String.valueOf(filePath)));
-                    fileContents.put(String.valueOf(filePath), originalContent);
-                }
-                StringBuilder currentInstructions = new StringBuilder(instructions);
-
-                for (int attempt = 0; attempt < maxRetries; attempt++) {
-                    String editInstructionsJson = generateEditInstructions(String.valueOf(filePath), originalContent, currentInstructions.toString(),
-                            projectContext, fileContents).get();
-                    BoykaAILogger.info("editAndApply: Edit instructions generated for " + path + ":\n" + editInstructionsJson);
-                    if (!editInstructionsJson.equals("[]")) {
-                        List<EditInstruction> editInstructions = gson.fromJson(editInstructionsJson,
-                                new TypeToken<List<EditInstruction>>() {
-                                }.getType());
-                        BoykaAILogger.info("editAndApply: Edit instructions parsed for " + path + ":\n" + editInstructions);
-                        BoykaAILogger.info("Attempt " + (attempt + 1) + "/" + maxRetries +
-                                ": The following SEARCH/REPLACE blocks have been generated:");
-                        for (int i = 0; i < editInstructions.size(); i++) {
-                            EditInstruction block = editInstructions.get(i);
-                            System.out.println("Block " + (i + 1) + ":");
-                            System.out.println("SEARCH:\n" + block.search + "\n\nREPLACE:\n" + block.replace);
-                        }
-
-                        ApplyEditsResult result = applyEdits(String.valueOf(filePath), editInstructions, originalContent);
-
-                        if (result.changesMade) {
-                            fileContents.put(String.valueOf(filePath), result.editedContent);
-                            System.out.println("File contents updated: " + path);
-
-                            if (!result.failedEdits.isEmpty()) {
-                                System.out.println("Some edits could not be applied. Retrying...");
-                                currentInstructions.append("\n\nPlease retry the following edits that could not be applied:\n")
-                                        .append(String.join("\n", result.failedEdits));
-                                originalContent = result.editedContent;
-                                continue;
-                            }
-
-                            return "Changes applied to " + path;
-                        } else if (attempt == maxRetries - 1) {
-                            return "No changes could be applied to " + path + " after " + maxRetries +
-                                    " attempts. Please review the edit instructions and try again.";
-                        } else {
-                            System.out.println("No changes could be applied in attempt " + (attempt + 1) + ". Retrying...");
-                        }
-                    } else {
-                        return "No changes suggested for " + path;
+                    String originalContent;
+                    try {
+                        originalContent = loadCurrentContent(filePath);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
-                }
+                    ContentCache.getInstance().put(fileContentsNamespace, String.valueOf(filePath), originalContent);
+                    return originalContent;
+                }, AppExecutorUtil.getAppExecutorService())
+                .thenCompose(originalContent -> editAttempt(path, filePath, originalContent,
+                        new StringBuilder(instructions), projectContext, 0, maxRetries))
+                .exceptionally(error -> {
+                    Throwable e = CallFuture.unwrap(error);
+                    BoykaAILogger.error("Error editing/applying to file", e);
+                    return "Error editing/applying to file: " + e.getMessage();
+                });
+    }
 
-                return "Failed to apply changes to " + path + " after " + maxRetries + " attempts.";
-            } catch (Exception e) {
-                BoykaAILogger.error("Error editing/applying to file", e);
-                return "Error editing/applying to file: " + e.getMessage();
+    // 单次编辑尝试，失败时以更新后的内容和指令递归进入下一次尝试，等待 LLM 响应期间不占用线程
+    private CompletableFuture<String> editAttempt(String path, Path filePath, String originalContent, StringBuilder currentInstructions,
+                                                  String projectContext, int attempt, int maxRetries) {
+        if (attempt >= maxRetries) {
+            return CompletableFuture.completedFuture("Failed to apply changes to " + path + " after " + maxRetries + " attempts.");
+        }
+        return generateEditInstructions(String.valueOf(filePath), originalContent, currentInstructions.toString(),
+                projectContext, ContentCache.getInstance().entries(fileContentsNamespace)).thenCompose(editInstructionsJson -> {
+            BoykaAILogger.info("editAndApply: Edit instructions generated for " + path + ":\n" + editInstructionsJson);
+            if (editInstructionsJson.equals("[]")) {
+                return CompletableFuture.completedFuture("No changes suggested for " + path);
+            }
+            List<EditInstruction> editInstructions = gson.fromJson(editInstructionsJson,
+                    new TypeToken<List<EditInstruction>>() {
+                    }.getType());
+            BoykaAILogger.info("editAndApply: Edit instructions parsed for " + path + ":\n" + editInstructions);
+            BoykaAILogger.info("Attempt " + (attempt + 1) + "/" + maxRetries +
+                    ": The following SEARCH/REPLACE blocks have been generated:");
+            for (int i = 0; i < editInstructions.size(); i++) {
+                EditInstruction block = editInstructions.get(i);
+                BoykaAILogger.debug("Block " + (i + 1) + ":\nSEARCH:\n" + block.search + "\n\nREPLACE:\n" + block.replace);
             }
-        });
-    }
 
-    private ApplyEditsResult applyEdits(String filePath, List<EditInstruction> editInstructions, String originalContent) {
-        boolean changesMade = false;
-        String editedContent = originalContent;
-        List<String> failedEdits = new ArrayList<>();
+            ApplyEditsResult result = applyEdits(filePath, editInstructions, originalContent);
 
-        for (int i = 0; i < editInstructions.size(); i++) {
-            EditInstruction edit = editInstructions.get(i);
-            String searchContent = edit.search.trim();
-            String replaceContent = edit.replace.trim();
+            if (result.changesMade) {
+                ContentCache.getInstance().put(fileContentsNamespace, String.valueOf(filePath), result.editedContent);
+                BoykaAILogger.info("File contents updated: " + path);
 
-            Pattern pattern = Pattern.compile(Pattern.quote(searchContent), Pattern.DOTALL);
-            Matcher matcher = pattern.matcher(editedContent);
+                if (!result.failedEdits.isEmpty()) {
+                    BoykaAILogger.info("Some edits could not be applied. Retrying...");
+                    currentInstructions.append("\n\nPlease retry the following edits that could not be applied:\n")
+                            .append(String.join("\n", result.failedEdits));
+                    return editAttempt(path, filePath, result.editedContent, currentInstructions, projectContext, attempt + 1, maxRetries);
+                }
 
-            if (matcher.find()) {
-                editedContent = matcher.replaceFirst(Matcher.quoteReplacement(replaceContent));
-                changesMade = true;
-                System.out.println("Applied edit " + (i + 1) + "/" + editInstructions.size());
+                return CompletableFuture.completedFuture("Changes applied to " + path);
+            } else if (attempt == maxRetries - 1) {
+                return CompletableFuture.completedFuture("No changes could be applied to " + path + " after " + maxRetries +
+                        " attempts. Please review the edit instructions and try again.");
             } else {
-                System.out.println("Edit " + (i + 1) + "/" + editInstructions.size() + " not applied: content not found");
-                failedEdits.add("Edit " + (i + 1) + ": " + searchContent);
+                BoykaAILogger.info("No changes could be applied in attempt " + (attempt + 1) + ". Retrying...");
+                // 让模型知道每个编辑失败的原因，例如 SEARCH 出现多处时需要更多上下文
+                if (!result.failedEdits.isEmpty()) {
+                    currentInstructions.append("\n\nNone of the edits could be applied, please retry them:\n")
+                            .append(String.join("\n", result.failedEdits));
+                }
+                return editAttempt(path, filePath, originalContent, currentInstructions, projectContext, attempt + 1, maxRetries);
             }
+        });
+    }
+
+    // 所有编辑在文件的当前内容上定位后一次应用，见 MultiEditEngine；等待模型期间文件被修改过时，
+    // SEARCH 仍在当前内容中查找，不会覆盖这些修改
+    private ApplyEditsResult applyEdits(Path filePath, List<EditInstruction> editInstructions, String originalContent) {
+        String currentContent;
+        try {
+            currentContent = loadCurrentContent(filePath);
+        } catch (IOException e) {
+            BoykaAILogger.error("applyEdits: Error reading " + filePath, e);
+            return new ApplyEditsResult(originalContent, false, Collections.singletonList("Could not read " + filePath + ": " + e.getMessage()));
+        }
+        List<String> searches = new ArrayList<>();
+        List<String> replacements = new ArrayList<>();
+        for (EditInstruction edit : editInstructions) {
+            searches.add(edit.search.trim());
+            replacements.add(edit.replace.trim());
+        }
+        MultiEditEngine.Result edits = MultiEditEngine.apply(currentContent, searches, replacements);
+        boolean changesMade = edits.applied > 0;
+        String editedContent = edits.content;
+        List<String> failedEdits = new ArrayList<>(edits.failures);
+        BoykaAILogger.info("Applied " + edits.applied + "/" + editInstructions.size() + " edits");
+        for (String failedEdit : failedEdits) {
+            BoykaAILogger.info("Not applied: " + failedEdit);
         }
 
         if (!changesMade) {
-            System.out.println("No changes were applied. The file content already matches the desired state.");
+            BoykaAILogger.info("No changes were applied. The file content already matches the desired state.");
         } else {
             try {
-                Files.write(Paths.get(filePath), editedContent.getBytes());
-                System.out.println("Changes have been written to " + filePath);
+                if (writeContent(filePath, currentContent, editedContent)) {
+                    BoykaAILogger.info("Changes have been written to " + filePath);
+                } else {
+                    changesMade = false;
+                    editedContent = currentContent;
+                    failedEdits.add("The file was modified while the edits were being applied, nothing was written");
+                }
             } catch (IOException e) {
                 BoykaAILogger.error("applyEdits: Error writing changes to file", e);
-                System.err.println("Error writing changes to file: " + e.getMessage());
             }
         }
 
         return new ApplyEditsResult(editedContent, changesMade, failedEdits);
     }
 
+    // 文件在编辑器中打开时以文档为准（可能有未保存的修改），否则按 UTF-8 读取磁盘
+    private String loadCurrentContent(Path filePath) throws IOException {
+        Document document = findDocument(filePath);
+        if (document != null) {
+            return ReadAction.compute(document::getText);
+        }
+        return Files.readString(filePath, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 把编辑结果写回文件。文件在编辑器中打开时通过文档写入并保存，否则按 UTF-8 写入磁盘。
+     * 写入前确认内容仍是 expected，否则不写入并返回 false，避免覆盖期间的修改。
+     */
+    private boolean writeContent(Path filePath, String expected, String content) throws IOException {
+        Document document = findDocument(filePath);
+        if (document == null) {
+            if (!Files.readString(filePath, StandardCharsets.UTF_8).equals(expected)) {
+                return false;
+            }
+            Files.write(filePath, content.getBytes(StandardCharsets.UTF_8));
+            VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath.toString().replace('\\', '/'));
+            if (file != null) {
+                file.refresh(false, false);
+            }
+            return true;
+        }
+        AtomicBoolean written = new AtomicBoolean();
+        ApplicationManager.getApplication().invokeAndWait(() -> WriteCommandAction.runWriteCommandAction(project, () -> {
+            if (document.getText().equals(expected)) {
+                document.setText(StringUtil.convertLineSeparators(content));
+                FileDocumentManager.getInstance().saveDocument(document);
+                written.set(true);
+            }
+        }));
+        return written.get();
+    }
+
+    private Document findDocument(Path filePath) {
+        VirtualFile file = LocalFileSystem.getInstance().refreshAndFindFileByPath(filePath.toString().replace('\\', '/'));
+        return file != null ? FileDocumentManager.getInstance().getCachedDocument(file) : null;
+    }
+
     private static class EditInstruction {
         String search;
         String replace;
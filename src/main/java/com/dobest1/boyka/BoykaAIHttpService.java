@@ -0,0 +1,297 @@
+package com.dobest1.boyka;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import okhttp3.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 应用级 HTTP 服务，插件内所有 LLM 请求共用同一个调度器和连接池。
+ * 各客户端通过 {@link #getClient(int, int, int)} 派生出带自己超时配置的 OkHttpClient，
+ * 派生出的客户端与共享客户端使用同一套连接，避免每次请求都重新进行 DNS 解析和 TLS 握手。
+ */
+public class BoykaAIHttpService implements Disposable {
+    private static final int MAX_REQUESTS = 64;
+    private static final int MAX_REQUESTS_PER_HOST = 16;
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long CIRCUIT_OPEN_MILLIS = 30_000;
+
+    private final OkHttpClient sharedClient;
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final Map<String, EndpointStats> endpointStats = new ConcurrentHashMap<>();
+    private volatile RetryPolicy retryPolicy = new DefaultRetryPolicy();
+
+    public static BoykaAIHttpService getInstance() {
+        return ServiceManager.getService(BoykaAIHttpService.class);
+    }
+
+    public BoykaAIHttpService() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        this.sharedClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                // 支持 HTTP/2 的端点通过 ALPN 协商复用单个连接，否则回落到 HTTP/1.1
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .pingInterval(30, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public OkHttpClient getClient() {
+        return sharedClient;
+    }
+
+    /**
+     * 派生一个使用指定超时（秒）的客户端，连接池和调度器仍与共享客户端相同。
+     */
+    public OkHttpClient getClient(int connectTimeout, int readTimeout, int writeTimeout) {
+        return sharedClient.newBuilder()
+                .connectTimeout(connectTimeout, TimeUnit.SECONDS)
+                .readTimeout(readTimeout, TimeUnit.SECONDS)
+                .writeTimeout(writeTimeout, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * 返回端点（scheme + host + port）对应的断路器，同一端点的所有请求共用一个。
+     */
+    public CircuitBreaker getCircuitBreaker(HttpUrl url) {
+        return circuitBreakers.computeIfAbsent(endpointKey(url),
+                key -> new CircuitBreaker(key, CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MILLIS));
+    }
+
+    /**
+     * 返回端点最近的延迟和错误率统计。
+     */
+    public EndpointStats getEndpointStats(HttpUrl url) {
+        return endpointStats.computeIfAbsent(endpointKey(url), key -> new EndpointStats());
+    }
+
+    /**
+     * 所有访问过的端点的统计，键为 scheme://host:port。
+     */
+    public Map<String, EndpointStats> getAllEndpointStats() {
+        return Map.copyOf(endpointStats);
+    }
+
+    private static String endpointKey(HttpUrl url) {
+        return url.scheme() + "://" + url.host() + ":" + url.port();
+    }
+
+    /**
+     * 以 enqueue 方式异步执行请求，失败时按当前的 {@link RetryPolicy} 重试。
+     * 成功的响应交给 handler 在 OkHttp 的回调线程中解析；每次尝试产生的 Call 都会登记到 owner，
+     * 因此取消 owner 可以直接中断底层连接。
+     */
+    public <T> CompletableFuture<T> executeAsync(OkHttpClient client, Request request, ResponseHandler<T> handler, CallFuture<?> owner) {
+        return executeAsync(client, request, handler, owner, retryPolicy);
+    }
+
+    public <T> CompletableFuture<T> executeAsync(OkHttpClient client, Request request, ResponseHandler<T> handler,
+                                                 CallFuture<?> owner, RetryPolicy policy) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        new RetryingCall<>(client, request, handler, owner, result, policy,
+                getCircuitBreaker(request.url()), getEndpointStats(request.url())).start(0);
+        return result;
+    }
+
+    /**
+     * 用 JsonReader 直接从响应流中解析 JSON，不先把整个响应体读成字符串。
+     * 只有开启调试跟踪时才保留原始响应体并写入日志。
+     */
+    public static <T> T readJson(Gson gson, ResponseBody body, Class<T> type, String label) throws IOException {
+        if (BoykaAILogger.isDebugEnabled()) {
+            String raw = body.string();
+            BoykaAILogger.debug(label + " Response: " + raw);
+            return gson.fromJson(raw, type);
+        }
+        try (JsonReader reader = new JsonReader(body.charStream())) {
+            T value = gson.fromJson(reader, type);
+            if (value == null) {
+                throw new IOException(label + " returned an empty response");
+            }
+            return value;
+        } catch (JsonParseException e) {
+            throw new IOException("Malformed " + label + " response: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 解析成功的响应。
+     */
+    public interface ResponseHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    /**
+     * 响应已经部分交付给调用方（例如流式文本已显示在界面上），重试会造成重复输出，因此不再重试。
+     */
+    public static class PartialResponseException extends IOException {
+        public PartialResponseException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    private static class RetryingCall<T> {
+        private final OkHttpClient client;
+        private final Request request;
+        private final ResponseHandler<T> handler;
+        private final CallFuture<?> owner;
+        private final CompletableFuture<T> result;
+        private final RetryPolicy policy;
+        private final CircuitBreaker circuitBreaker;
+        private final EndpointStats stats;
+
+        RetryingCall(OkHttpClient client, Request request, ResponseHandler<T> handler, CallFuture<?> owner,
+                     CompletableFuture<T> result, RetryPolicy policy, CircuitBreaker circuitBreaker, EndpointStats stats) {
+            this.client = client;
+            this.request = request;
+            this.handler = handler;
+            this.owner = owner;
+            this.result = result;
+            this.policy = policy;
+            this.circuitBreaker = circuitBreaker;
+            this.stats = stats;
+        }
+
+        void start(int attempt) {
+            try {
+                // 端点持续失败时直接失败，不再让 agent 循环等待超时
+                circuitBreaker.acquire();
+            } catch (CircuitBreaker.CircuitOpenException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            RateLimiter rateLimiter = RateLimiter.getInstance();
+            long wait = rateLimiter.reserve(request);
+            if (wait <= 0) {
+                send(attempt);
+                return;
+            }
+            BoykaAILogger.info("Rate limit reached for " + request.url().host() + ", request queued for " + wait + " ms");
+            rateLimiter.queuedChanged(1);
+            CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS).execute(() -> {
+                rateLimiter.queuedChanged(-1);
+                send(attempt);
+            });
+        }
+
+        private void send(int attempt) {
+            Call call = client.newCall(request);
+            if (owner != null) {
+                owner.track(call);
+            }
+            long sentAt = System.nanoTime();
+            call.enqueue(new Callback() {
+                @Override
+                public void onResponse(@NotNull Call call, @NotNull Response response) {
+                    long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt);
+                    try (response) {
+                        RateLimiter.getInstance().update(request, response.headers());
+                        if (!response.isSuccessful()) {
+                            String errorBody = response.body().string();
+                            BoykaAILogger.warn("Attempt " + (attempt + 1) + " - Unexpected code " + response.code() + " " + errorBody);
+                            retryOrFail(attempt, response.code(), response.headers(),
+                                    new IOException("Unexpected code " + response.code() + " " + errorBody));
+                            return;
+                        }
+                        T value = handler.handle(response);
+                        circuitBreaker.recordSuccess();
+                        stats.recordSuccess(latencyMillis);
+                        result.complete(value);
+                    } catch (IOException e) {
+                        retryOrFail(attempt, -1, null, e);
+                    } catch (RuntimeException e) {
+                        circuitBreaker.recordIgnored();
+                        result.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                    retryOrFail(attempt, -1, null, e);
+                }
+            });
+        }
+
+        private void retryOrFail(int attempt, int statusCode, Headers headers, IOException e) {
+            if (owner != null && owner.isCancelled()) {
+                circuitBreaker.recordIgnored();
+                result.completeExceptionally(e);
+                return;
+            }
+            if (policy.isEndpointFailure(statusCode, e)) {
+                circuitBreaker.recordFailure();
+                stats.recordFailure();
+            } else if (statusCode >= 0) {
+                // 端点给出了明确的客户端错误，说明它本身是可用的
+                circuitBreaker.recordSuccess();
+            } else {
+                circuitBreaker.recordIgnored();
+            }
+            long delay = policy.nextDelayMillis(attempt, statusCode, headers, e);
+            if (delay < 0) {
+                result.completeExceptionally(e);
+                return;
+            }
+            BoykaAILogger.warn("Attempt " + (attempt + 1) + " failed. Retrying in " + delay + " ms...");
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> start(attempt + 1));
+        }
+    }
+
+    /**
+     * 向端点发送一个 HEAD 请求，提前完成 DNS 解析和 TLS 握手，并把连接留在连接池中。
+     * 响应状态码无关紧要，失败也只记录日志。
+     */
+    public void prewarm(String baseUrl) {
+        if (baseUrl == null || baseUrl.isBlank()) {
+            return;
+        }
+        HttpUrl url = HttpUrl.parse(baseUrl);
+        if (url == null) {
+            BoykaAILogger.warn("Skip prewarming invalid url: " + baseUrl);
+            return;
+        }
+        Request request = new Request.Builder().url(url).head().build();
+        sharedClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(@NotNull Call call, @NotNull Response response) {
+                response.close();
+                BoykaAILogger.info("Prewarmed connection to " + url.host() + " via " + response.protocol());
+            }
+
+            @Override
+            public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                BoykaAILogger.warn("Prewarming " + url.host() + " failed: " + e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void dispose() {
+        sharedClient.dispatcher().cancelAll();
+        sharedClient.dispatcher().executorService().shutdown();
+        sharedClient.connectionPool().evictAll();
+    }
+}
@@ -12,6 +12,17 @@ public class BoykaAILogger {
         LOG.info(message);
     }
 
+    /**
+     * 是否开启调试跟踪（在 Debug Log Settings 中添加 #BoykaAI），开启后会记录完整的请求体和响应体。
+     */
+    public static boolean isDebugEnabled() {
+        return LOG.isDebugEnabled();
+    }
+
+    public static void debug(String message) {
+        LOG.debug(message);
+    }
+
     public static void warn(String message) {
         LOG.warn(message);
     }
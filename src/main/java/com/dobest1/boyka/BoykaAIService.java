@@ -85,6 +85,9 @@ public class BoykaAIService {
                     7. read_multiple_files：一次读取多个现有文件的内容。当你需要同时检查或处理多个文件时使用此工具。
                     8. list_files：列出指定文件夹中的所有文件和目录。
                     9. tavily_search：使用Tavily API执行网络搜索以获取最新信息。
+                    10. read_symbol：读取文件中单个类、方法或字段的代码，或获取文件的符号大纲。只关心个别方法时优先于read_file使用。
+                    11. grep_project：在项目文件内容中搜索文本或正则表达式，返回带行号和上下文的匹配行。查找定义或用法时先用它定位，不要逐个读取文件。
+                    12. read_directory：递归读取文件夹中的文本文件，跳过忽略的文件和二进制文件，总量有上限。需要了解一个模块的全部代码时使用。
             
                     工具使用指南：
                     - 始终使用最适合任务的工具。
@@ -158,6 +161,7 @@ public class BoykaAIService {
     private final Gson gson;
     private final BoykaAIFileTools fileTools;
     private final ContextManager contextManager;
+    private final RelevanceIndex relevanceIndex;
     private BoykaAISettings.State settings;
     private final List<Tool> availableTools;
     private final ToolExecutor toolExecutor;
@@ -165,10 +169,12 @@ public class BoykaAIService {
     // 添加 AI 客户端声明
     private ClaudeClient claudeClient;
     private OpenAIClient openAIClient;
+    private ProviderRouter router;
 
-    public BoykaAIService(BoykaAIFileTools fileTools, ContextManager contextManager) {
+    public BoykaAIService(BoykaAIFileTools fileTools, ContextManager contextManager, RelevanceIndex relevanceIndex) {
         this.fileTools = fileTools;
         this.contextManager = contextManager;
+        this.relevanceIndex = relevanceIndex;
         this.settings = BoykaAISettings.getInstance().getState();
         this.gson = new Gson();
         this.availableTools = BoykaAIToolWindowContent.createAvailableTools();
@@ -182,6 +188,11 @@ public class BoykaAIService {
                 .apiUrl(settings.claudeAddress)
                 .model(settings.claudeModel)
                 .maxTokens(settings.maxTokens)
+                .stream(settings.enableStreaming)
+                .promptCaching(settings.enablePromptCaching)
+                .historyTokenBudget(settings.historyTokenBudget)
+                .historyKeepExchanges(settings.historyKeepExchanges)
+                .contextProvider(contextManager::getContextSections)
                 .build();
         this.claudeClient = new ClaudeClient(claudeConfig, BASE_SYSTEM_PROMPT + COT_PROMPT, toolExecutor);
 
@@ -190,8 +201,22 @@ public class BoykaAIService {
                 .apiUrl(settings.openAIBaseAddress)
                 .model(settings.selectedModel)
                 .maxTokens(settings.maxTokens)
+                .stream(settings.enableStreaming)
+                .historyTokenBudget(settings.historyTokenBudget)
+                .historyKeepExchanges(settings.historyKeepExchanges)
+                .contextProvider(contextManager::getContextSections)
                 .build();
         this.openAIClient = new OpenAIClient(openAIConfig, BASE_SYSTEM_PROMPT + COT_PROMPT, toolExecutor);
+
+        // 两者都启用时 Claude 优先，OpenAI 作为故障切换和对冲的备选
+        List<ChatClient> enabledClients = new ArrayList<>();
+        if (settings.enableClaude) {
+            enabledClients.add(claudeClient);
+        }
+        if (settings.enableOpenai) {
+            enabledClients.add(openAIClient);
+        }
+        this.router = new ProviderRouter(enabledClients, settings);
     }
 
     public void updateSettings(BoykaAISettings.State newSettings) {
@@ -200,26 +225,51 @@ public class BoykaAIService {
     }
 
     public String getAIResponse(String userMessage) {
+        return getAIResponse(userMessage, null);
+    }
 
-        StringBuilder finalResponse = new StringBuilder();
+    public String getAIResponse(String userMessage, StreamListener listener) {
         try {
-            String response;
-            if (settings.enableClaude) {
-                response = claudeClient.sendMessage(userMessage, availableTools);
-            } else if (settings.enableOpenai) {
-                response = openAIClient.sendMessage(userMessage, availableTools);
-            } else {
-                return "Error: No AI service enabled. Please enable either Claude or OpenAI in settings.";
-            }
-            finalResponse.append(response);
-            return finalResponse.toString();
-        } catch (IOException e) {
+            return getAIResponseAsync(userMessage, listener).await();
+        } catch (Exception e) {
+            return describeError(e);
+        }
+    }
+
+    /**
+     * 异步获取回答。取消返回的 CallFuture 会中断正在进行的请求；失败时以异常完成，可用 {@link #describeError} 转换为提示信息。
+     * 消息后会附加其中提到的上下文符号（开启符号上下文时）和按设置的预算从索引中选出的相关代码片段，因此不要在 EDT 上调用。
+     */
+    public CallFuture<String> getAIResponseAsync(String userMessage, StreamListener listener) {
+        if (!router.isEmpty()) {
+            String message = RelevanceIndex.attachRelevantCode(userMessage, contextManager.getReferencedSymbols(userMessage));
+            message = relevanceIndex.withRelevantCode(message, settings.autoContextTokens, contextManager.getSnapshot());
+            return router.sendMessageAsync(message, availableTools, listener);
+        }
+        CallFuture<String> result = new CallFuture<>();
+        result.complete("Error: No AI service enabled. Please enable either Claude or OpenAI in settings.");
+        return result;
+    }
+
+    /**
+     * 已启用的服务在本次会话中累计的 token 用量，包括故障切换和对冲请求消耗的部分。
+     */
+    public TokenUsage getSessionUsage() {
+        TokenUsage usage = new TokenUsage();
+        for (ChatClient client : router.getClients()) {
+            usage.add(client.getSessionUsage());
+        }
+        return usage;
+    }
+
+    public String describeError(Throwable error) {
+        Throwable e = CallFuture.unwrap(error);
+        if (e instanceof IOException) {
             BoykaAILogger.error("Error during API call", e);
             return "Error: " + e.getMessage() + ". Please check your network connection and try again.";
-        } catch (Exception e) {
-            BoykaAILogger.error("Unexpected error", e);
-            return "Error: An unexpected error occurred. Please try again or contact support.";
         }
+        BoykaAILogger.error("Unexpected error", e);
+        return "Error: An unexpected error occurred. Please try again or contact support.";
     }
 
     public void clearAllConversationHistories() {
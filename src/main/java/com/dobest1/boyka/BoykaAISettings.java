@@ -25,7 +25,6 @@ import java.util.List;
 public class BoykaAISettings implements PersistentStateComponent<BoykaAISettings.State> {
     public static class State {
         public String projectBasePath = "";
-        public String projectContexts = "";
         /**
          * OpenAI 的服务地址
          */
@@ -70,6 +69,66 @@ public class BoykaAISettings implements PersistentStateComponent<BoykaAISettings
          * 自动重复次数，默认为 10
          */
         public int autoRepeatCount = 10;
+        /**
+         * 是否以流式方式接收回答，默认为 true
+         */
+        public boolean enableStreaming = true;
+        /**
+         * 是否为 Claude 请求中的系统提示、工具定义和文件上下文设置缓存断点，默认为 true
+         */
+        public boolean enablePromptCaching = true;
+        /**
+         * 是否把无历史调用（如生成编辑指令）的回答缓存到磁盘，默认为 false
+         */
+        public boolean enableResponseCache = false;
+        public int responseCacheMaxMb = 256;
+        public int responseCacheTtlHours = 168;
+        /**
+         * 是否在客户端按每分钟请求数和 token 数限流，默认为 true。
+         * 下面三个上限为 0 时从服务端的限流响应头中获取
+         */
+        public boolean enableRateLimit = true;
+        public int rateLimitRpm = 0;
+        public int rateLimitInputTpm = 0;
+        public int rateLimitOutputTpm = 0;
+        /**
+         * Claude 和 OpenAI 都启用时，请求在产生输出前失败是否自动切换到另一个服务商，默认为 true
+         */
+        public boolean enableFailover = true;
+        /**
+         * 首选服务商在阈值内没有输出时是否同时向另一个服务商发送请求，先到者胜出，默认为 false。
+         * 阈值为 0 时取首选端点近期的 p95 首包延迟
+         */
+        public boolean enableHedging = false;
+        public int hedgeDelayMs = 0;
+        /**
+         * 对话历史的 token 预算，超出时压缩较早的轮次，0 表示不限制；默认 60000
+         */
+        public int historyTokenBudget = 60000;
+        /**
+         * 压缩历史时原样保留的最近问答轮数，默认为 4
+         */
+        public int historyKeepExchanges = 4;
+        /**
+         * 模型的上下文窗口 token 数，用于发送前的预算检查，0 表示按模型名自动判断
+         */
+        public int contextWindowTokens = 0;
+        /**
+         * 存放 tiktoken 词表文件（cl100k_base.tiktoken 等）的目录，为空时使用 IDE 系统目录下的 boyka-ai/tokenizers
+         */
+        public String tokenizerDirectory = "";
+        /**
+         * 内存中文件内容缓存的上限（MB），超出时淘汰最久未使用的内容，默认为 64
+         */
+        public int contentCacheMaxMb = 64;
+        /**
+         * 发送消息时按相关度自动附加的项目代码片段的 token 预算，0 表示不附加；默认 4000
+         */
+        public int autoContextTokens = 4000;
+        /**
+         * 上下文文件只发送符号大纲（类、方法、字段的签名），消息中提到的符号再附加完整代码；默认发送全文
+         */
+        public boolean symbolContext = false;
 
     }
 
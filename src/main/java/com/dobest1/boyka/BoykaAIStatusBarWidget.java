@@ -9,10 +9,18 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
+import java.awt.*;
 import java.awt.event.MouseEvent;
+import java.util.Map;
+
+/**
+ * 状态栏组件，显示限流器的当前状态（可用额度、排队请求数），提示中列出各端点的延迟和错误率，点击打开工具窗口。
+ */
+public class BoykaAIStatusBarWidget implements StatusBarWidget, StatusBarWidget.TextPresentation {
+    private static final int REFRESH_INTERVAL_MILLIS = 1000;
 
-public class BoykaAIStatusBarWidget implements StatusBarWidget, StatusBarWidget.IconPresentation {
     private final Project project;
+    private Timer refreshTimer;
 
     public BoykaAIStatusBarWidget(Project project) {
         this.project = project;
@@ -32,16 +40,40 @@ public class BoykaAIStatusBarWidget implements StatusBarWidget, StatusBarWidget.
 
     @Override
     public void install(@NotNull StatusBar statusBar) {
+        // 令牌桶随时间补充，定时刷新显示
+        refreshTimer = new Timer(REFRESH_INTERVAL_MILLIS, e -> statusBar.updateWidget(ID()));
+        refreshTimer.start();
     }
 
     @Override
     public void dispose() {
+        if (refreshTimer != null) {
+            refreshTimer.stop();
+            refreshTimer = null;
+        }
+    }
+
+    @NotNull
+    @Override
+    public String getText() {
+        return RateLimiter.getInstance().getStatusText();
+    }
+
+    @Override
+    public float getAlignment() {
+        return Component.CENTER_ALIGNMENT;
     }
 
     @Nullable
     @Override
     public String getTooltipText() {
-        return "Boyka AI Assistant";
+        StringBuilder tooltip = new StringBuilder("<html>").append(RateLimiter.getInstance().getTooltipText());
+        Map<String, EndpointStats> stats = BoykaAIHttpService.getInstance().getAllEndpointStats();
+        if (!stats.isEmpty()) {
+            tooltip.append("<br><br>Latency to first byte");
+            stats.forEach((endpoint, endpointStats) -> tooltip.append("<br>").append(endpoint).append(": ").append(endpointStats));
+        }
+        return tooltip.append("</html>").toString();
     }
 
     @Nullable
@@ -49,10 +81,4 @@ public class BoykaAIStatusBarWidget implements StatusBarWidget, StatusBarWidget.
     public Consumer<MouseEvent> getClickConsumer() {
         return mouseEvent -> ToolWindowManager.getInstance(project).getToolWindow("Boyka AI").show();
     }
-
-    @NotNull
-    @Override
-    public Icon getIcon() {
-        return com.intellij.openapi.util.IconLoader.getIcon("/icons/boyka_icon.png", BoykaAIStatusBarWidget.class);
-    }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package com.dobest1.boyka;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.options.ConfigurationException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
@@ -13,7 +14,6 @@ import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.openapi.wm.ToolWindow;
 import com.intellij.ui.components.*;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import org.jetbrains.annotations.NotNull;
@@ -24,6 +24,11 @@ import java.awt.*;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class BoykaAIToolWindowContent implements ContextManager.ContextChangeListener {
     private Project project;  // Added project field
@@ -39,10 +44,14 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
     private ContextManager contextManager;
     private JList<String> contextFilesList;
     private DefaultListModel<String> contextFilesModel;
+    private final Map<String, Integer> contextTokenCounts = new ConcurrentHashMap<>();
+    private JBLabel contextTokensLabel;
+    private final AtomicBoolean tokenCountsScheduled = new AtomicBoolean();
     private JBTextField contextSearchField;
     private JButton continueButton;
     private final Gson gson = new Gson();
     private JButton clearButton;
+    private JBLabel usageLabel;
 
     private JTextField openAIBaseAddressField;
     private JTextField openAIKeyField;
@@ -50,7 +59,7 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
     private JTextField claudeKeyField;
     private JButton autoButton;
     private int remainingAutoRepeatCount = 0;
-    private final OkHttpClient client = new OkHttpClient();
+    private volatile CallFuture<String> pendingResponse;
 
     public BoykaAIToolWindowContent(Project project, ToolWindow toolWindow) {
         try {
@@ -75,13 +84,28 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
 
             myToolWindowContent.add(tabbedPane, BorderLayout.CENTER);
             fileTools = new BoykaAIFileTools(project);
-            aiService = new BoykaAIService(fileTools, contextManager);  // 传入两个参数
+            aiService = new BoykaAIService(fileTools, contextManager, RelevanceIndex.getInstance(project));
+            prewarmConnections();
 
         } catch (Exception e) {
             BoykaAILogger.error("Error creating BoykaAI tool window content", e);
         }
     }
 
+    // 工具窗口打开时提前建立到已启用端点的连接，第一次请求无需等待 TLS 握手
+    private void prewarmConnections() {
+        BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
+        if (settings == null) {
+            return;
+        }
+        if (settings.enableClaude) {
+            BoykaAIHttpService.getInstance().prewarm(settings.claudeAddress);
+        }
+        if (settings.enableOpenai) {
+            BoykaAIHttpService.getInstance().prewarm(settings.openAIBaseAddress);
+        }
+    }
+
     public static List<Tool> createAvailableTools() {
         List<Tool> tools = new ArrayList<>();
 
@@ -163,28 +187,35 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
                 readFileProperties,
                 new String[]{"path"}));
 
-// Read Multiple Files Tool
-//        JsonObject readMultipleFilesSchema = new JsonObject();
-//        readMultipleFilesSchema.addProperty("type", "object");
-//
-//        JsonObject properties = new JsonObject();
-//        JsonObject pathsProperty = new JsonObject();
-//        pathsProperty.addProperty("type", "array");
-//
-//        JsonObject items = new JsonObject();
-//        items.addProperty("type", "string");
-//        pathsProperty.add("items", items);
-//
-//        pathsProperty.addProperty("description", "要读取的文件路径列表。使用正斜杠(/)作为路径分隔符，即使在Windows系统上也是如此。");
-//        properties.add("paths", pathsProperty);
-//
-//        readMultipleFilesSchema.add("properties", properties);
-//        readMultipleFilesSchema.add("required", gson.toJsonTree(new String[]{"paths"}));
-//
-//        tools.add(new Tool("read_multiple_files",
-//                "读取指定路径的多个文件的内容。当需要一次检查多个现有文件的内容时使用此工具。它将返回读取每个文件的状态，并将成功读取的文件内容存储在系统提示中。如果文件不存在或无法读取，将为该文件返回适当的错误消息。",
-//                readMultipleFilesSchema,
-//                new String[]{"paths"}));
+        // Read Symbol Tool
+        JsonObject readSymbolProperties = new JsonObject();
+        JsonObject symbolPathProperty = new JsonObject();
+        symbolPathProperty.addProperty("type", "string");
+        symbolPathProperty.addProperty("description", "要读取的文件路径");
+        readSymbolProperties.add("path", symbolPathProperty);
+        JsonObject symbolProperty = new JsonObject();
+        symbolProperty.addProperty("type", "string");
+        symbolProperty.addProperty("description", "符号的 ID 或名称，例如 ContextManager.getFullContext 或 getFullContext；省略时返回文件的符号大纲");
+        readSymbolProperties.add("symbol", symbolProperty);
+        tools.add(new Tool("read_symbol",
+                "读取文件中某个类、方法或字段的代码，而不是整个文件。只需要查看个别方法时优先使用此工具以减少读取的内容。省略 symbol 时返回文件中所有符号的签名、ID 和行号。",
+                readSymbolProperties,
+                new String[]{"path"}));
+
+        // Read Multiple Files Tool
+        JsonObject readMultipleFilesProperties = new JsonObject();
+        JsonObject pathsProperty = new JsonObject();
+        pathsProperty.addProperty("type", "array");
+        JsonObject pathItems = new JsonObject();
+        pathItems.addProperty("type", "string");
+        pathsProperty.add("items", pathItems);
+        pathsProperty.addProperty("description", "要读取的文件路径列表。使用正斜杠(/)作为路径分隔符，即使在Windows系统上也是如此。");
+        readMultipleFilesProperties.add("paths", pathsProperty);
+        tools.add(new Tool("read_multiple_files",
+                "并行读取多个文件的内容，每个文件的结果以 File: 路径 开头。当需要一次检查多个现有文件时使用此工具。单个文件和整批内容有大小上限，超出的部分会被截断并注明；文件不存在或无法读取时，该文件返回错误消息。",
+                readMultipleFilesProperties,
+                new String[]{"paths"}));
+
         // List Files Tool
         JsonObject listFilesProperties = new JsonObject();
         JsonObject listPathProperty = new JsonObject();
@@ -196,6 +227,40 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
                 listFilesProperties,
                 new String[]{"path"}));
 
+        // Read Directory Tool
+        JsonObject readDirectoryProperties = new JsonObject();
+        JsonObject directoryPathProperty = new JsonObject();
+        directoryPathProperty.addProperty("type", "string");
+        directoryPathProperty.addProperty("description", "要读取的文件夹路径");
+        readDirectoryProperties.add("path", directoryPathProperty);
+        tools.add(new Tool("read_directory",
+                "递归读取文件夹中所有文本文件的内容，每个文件以 File: 路径 开头，结果开头是读取摘要。会跳过 .gitignore 忽略的文件、排除的目录和二进制文件；总量有上限，超出时摘要中会说明还有多少文件未读取。需要了解一个模块的全部代码时使用，只需要个别文件时用 read_file 或 read_multiple_files。",
+                readDirectoryProperties,
+                new String[]{"path"}));
+
+        // Grep Project Tool
+        JsonObject grepProperties = new JsonObject();
+        JsonObject queryProperty = new JsonObject();
+        queryProperty.addProperty("type", "string");
+        queryProperty.addProperty("description", "要搜索的文本，regex 为 true 时是 Java 正则表达式");
+        grepProperties.add("query", queryProperty);
+        JsonObject regexProperty = new JsonObject();
+        regexProperty.addProperty("type", "boolean");
+        regexProperty.addProperty("description", "query 是否为正则表达式，默认 false");
+        grepProperties.add("regex", regexProperty);
+        JsonObject caseSensitiveProperty = new JsonObject();
+        caseSensitiveProperty.addProperty("type", "boolean");
+        caseSensitiveProperty.addProperty("description", "是否区分大小写，默认 false");
+        grepProperties.add("case_sensitive", caseSensitiveProperty);
+        JsonObject fileMaskProperty = new JsonObject();
+        fileMaskProperty.addProperty("type", "string");
+        fileMaskProperty.addProperty("description", "文件名过滤，例如 *.java 或 *.java,*.kt；省略时搜索所有文件");
+        grepProperties.add("file_mask", fileMaskProperty);
+        tools.add(new Tool("grep_project",
+                "在整个项目的文件内容中搜索文本或正则表达式，返回匹配所在的文件、行号和前后两行上下文，最多 100 处匹配。查找某个类、方法或字符串在哪里定义或使用时，先用此工具定位，再按需读取文件，而不是逐个读取文件查找。",
+                grepProperties,
+                new String[]{"query"}));
+
         return tools;
     }
 
@@ -217,6 +282,37 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
                 contextFilesModel.addElement(filePath);
             }
         });
+        refreshContextTokenCounts();
+    }
+
+    /**
+     * 在后台统计上下文中每个文件的 token 数，完成后刷新列表和合计。
+     */
+    private void refreshContextTokenCounts() {
+        // 批量加入文件时会连续收到通知，已排队的统计尚未开始时不再重复提交
+        if (!tokenCountsScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            tokenCountsScheduled.set(false);
+            List<String> files = contextManager.getContextFiles();
+            int total = 0;
+            for (String filePath : files) {
+                int tokens = contextManager.getTokenCount(filePath);
+                contextTokenCounts.put(filePath, tokens);
+                total += tokens;
+            }
+            contextTokenCounts.keySet().retainAll(files);
+            String model = TokenCounter.activeModel();
+            int window = TokenCounter.getInstance().getContextWindow(model);
+            boolean exact = TokenCounter.getInstance().getTokenizer(model).isExact();
+            String text = "Context: " + (exact ? "" : "~") + total + " tokens"
+                    + (window > 0 ? " of " + window + " (" + model + ")" : "");
+            SwingUtilities.invokeLater(() -> {
+                contextTokensLabel.setText(text);
+                contextFilesList.repaint();
+            });
+        });
     }
 
     private JPanel createChatPanel() {
@@ -254,6 +350,10 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
         inputField.setPreferredSize(new Dimension(inputField.getPreferredSize().width, inputField.getPreferredSize().height * 2));
         textFieldPanel.add(inputField, BorderLayout.CENTER);
 
+        // 本次会话的 token 用量，包括提示缓存的写入和命中
+        usageLabel = new JBLabel();
+        usageLabel.setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
+
         // 创建按钮面板，使用 FlowLayout 并右对齐
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         buttonPanel.add(clearButton);
@@ -262,6 +362,7 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
         buttonPanel.add(sendButton);
 
         // 将输入框面板和按钮面板添加到输入面板
+        inputPanel.add(usageLabel, BorderLayout.NORTH);
         inputPanel.add(textFieldPanel, BorderLayout.CENTER);
         inputPanel.add(buttonPanel, BorderLayout.SOUTH);
         chatPanel.add(chatScrollPane, BorderLayout.CENTER);
@@ -315,6 +416,18 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
 
         contextFilesModel = new DefaultListModel<>();
         contextFilesList = new JBList<>(contextFilesModel);
+        contextFilesList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                Integer tokens = contextTokenCounts.get(String.valueOf(value));
+                if (tokens != null) {
+                    setText(value + "  (" + tokens + " tokens)");
+                }
+                return this;
+            }
+        });
+        contextTokensLabel = new JBLabel();
         JBScrollPane contextScrollPane = new JBScrollPane(contextFilesList);
 
         JPanel controlPanel = new JPanel(new BorderLayout());
@@ -328,6 +441,7 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         buttonPanel.add(addFileButton);
         buttonPanel.add(removeFileButton);
+        buttonPanel.add(contextTokensLabel);
 
         contextPanel.add(contextScrollPane, BorderLayout.CENTER);
         contextPanel.add(controlPanel, BorderLayout.NORTH);
@@ -341,6 +455,7 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
                 String filePath = contextManager.addExternalFile(query.substring(1).trim());
                 if (filePath != null && !contextFilesModel.contains(filePath)) {
                     contextFilesModel.addElement(filePath);
+                    refreshContextTokenCounts();
                 }
             } else {
                 // 搜索项目文件
@@ -357,6 +472,7 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
                     if (selectedFile != null && !contextFilesModel.contains(selectedFile)) {
                         contextManager.addFileToContext(selectedFile);
                         contextFilesModel.addElement(selectedFile);
+                        refreshContextTokenCounts();
                     }
                 }
             }
@@ -369,6 +485,7 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
                 String filePath = contextFilesModel.get(selectedIndex);
                 contextManager.removeFileFromContext(filePath);
                 contextFilesModel.remove(selectedIndex);
+                refreshContextTokenCounts();
             }
         });
 
@@ -419,6 +536,7 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
             configurable.apply();
             BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
             aiService.updateSettings(settings);
+            prewarmConnections();
             modelSelector.setSelectedItem(settings.selectedModel);
             updateChatTabTitle();
             JOptionPane.showMessageDialog(myToolWindowContent, "Settings saved", "Success", JOptionPane.INFORMATION_MESSAGE);
@@ -446,24 +564,42 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
                     title = "Waiting for AI response (" + c + "/" + settings.autoRepeatCount + ")";
                 }
 
-                ProgressManager.getInstance().run(new Task.Backgroundable(project, title) {
+                ProgressManager.getInstance().run(new Task.Backgroundable(project, title, true) {
                     @Override
                     public void run(@NotNull ProgressIndicator indicator) {
                         indicator.setIndeterminate(true);
                         inputField.setEnabled(false);
-                        String aiResponse = aiService.getAIResponse(message);
+                        // 流式输出时增量追加到聊天记录，streamed 只在 EDT 上读写
+                        boolean[] streamed = {false};
+                        CallFuture<String> pending = aiService.getAIResponseAsync(message, delta -> SwingUtilities.invokeLater(() -> {
+                            if (!streamed[0]) {
+                                streamed[0] = true;
+                                chatHistory.append("AI: ");
+                            }
+                            chatHistory.append(delta);
+                            scrollToBottom();
+                        }));
+                        pendingResponse = pending;
+                        String aiResponse = waitForResponse(pending, indicator);
 
                         inputField.setEnabled(true);
                         fileTools.refreshFileSystem(project.getProjectFilePath());
                         SwingUtilities.invokeLater(() -> {
-                            if (aiResponse.startsWith("Error:")) {
+                            if (streamed[0]) {
+                                chatHistory.append("\n");
+                            }
+                            if (pending.isCancelled()) {
+                                chatHistory.append("AI: Request cancelled.\n");
+                            } else if (aiResponse.startsWith("Error:")) {
                                 chatHistory.append("AI: " + aiResponse + "\n");
                                 chatHistory.append(aiResponse + "\n");
                                 Messages.showErrorDialog(project, aiResponse, "Boyka AI Error");
                             } else if (aiResponse.isEmpty() || aiResponse.isBlank()) {
                                 chatHistory.append("AI: " + "No response from AI.Please try again.\n");
                             } else {
-                                chatHistory.append("AI: " + aiResponse + "\n");
+                                if (!streamed[0]) {
+                                    chatHistory.append("AI: " + aiResponse + "\n");
+                                }
                                 VirtualFileManager.getInstance().refreshWithoutFileWatcher(true);
                                 inputField.setText("");
                                 scrollToBottom(); // 滚动到底部
@@ -472,6 +608,7 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
                                 }
                             }
                             updateChatTabTitle();
+                            updateUsageLabel();
                         });
                     }
                 });
@@ -487,6 +624,33 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
         }
     }
 
+    private void updateUsageLabel() {
+        String text = aiService.getSessionUsage().toString();
+        BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
+        if (settings != null && settings.enableResponseCache) {
+            ResponseCache cache = ResponseCache.getInstance();
+            text += " | Response cache hits: " + cache.getHits() + ", misses: " + cache.getMisses();
+        }
+        usageLabel.setText(text);
+    }
+
+    // 等待异步回答；用户在进度条上取消时，取消会一直传递到底层的 HTTP 请求
+    private String waitForResponse(CallFuture<String> pending, ProgressIndicator indicator) {
+        while (true) {
+            if (indicator.isCanceled()) {
+                pending.cancel(true);
+                return "";
+            }
+            try {
+                return pending.get(100, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 继续等待
+            } catch (Exception e) {
+                return pending.isCancelled() ? "" : aiService.describeError(e);
+            }
+        }
+    }
+
     private String getContext() {
         StringBuilder contextBuilder = new StringBuilder();
         for (String filePath : contextManager.getContextFiles()) {
@@ -535,7 +699,7 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
                 .addHeader("Authorization", "Bearer " + settings.openAIKey) // 使用 API 密钥
                 .build();
 
-        try (Response response = client.newCall(request).execute()) {
+        try (Response response = BoykaAIHttpService.getInstance().getClient().newCall(request).execute()) {
             if (!response.isSuccessful()) {
                 BoykaAILogger.warn("Failed to fetch models: " + response.code() + " " + response.message());
                 showErrorDialog("Failed to fetch models: " + response.message());
@@ -564,8 +728,13 @@ public class BoykaAIToolWindowContent implements ContextManager.ContextChangeLis
     }
 
     private void clearConversation() {
+        CallFuture<String> pending = pendingResponse;
+        if (pending != null) {
+            pending.cancel(true);
+        }
         aiService.clearAllConversationHistories();
         chatHistory.setText("");
+        updateUsageLabel();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+package com.dobest1.boyka;
+
+import okio.ByteString;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * tiktoken 格式词表（每行“base64 编码的 token 空格 rank”）上的字节级 BPE 分词，
+ * 与 OpenAI 的 cl100k_base / o200k_base 结果一致。只计数，不输出 token id。
+ */
+public class BpeTokenizer implements Tokenizer {
+    public static final String CL100K_BASE = "cl100k_base";
+    public static final String O200K_BASE = "o200k_base";
+
+    private static final Pattern CL100K_PATTERN = Pattern.compile(
+            "'(?i:[sdmt]|ll|ve|re)|[^\\r\\n\\p{L}\\p{N}]?+\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]++[\\r\\n]*|\\s*[\\r\\n]|\\s+(?!\\S)|\\s+",
+            Pattern.UNICODE_CHARACTER_CLASS);
+    private static final Pattern O200K_PATTERN = Pattern.compile(
+            "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+                    + "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+                    + "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+",
+            Pattern.UNICODE_CHARACTER_CLASS);
+    // 超过此长度的片段（例如大段空白或 base64）用堆选择合并，避免逐轮扫描的 O(n²)
+    private static final int LINEAR_MERGE_MAX_BYTES = 512;
+
+    private final String name;
+    private final Pattern pattern;
+    private final Map<ByteString, Integer> ranks;
+
+    BpeTokenizer(String name, Pattern pattern, Map<ByteString, Integer> ranks) {
+        this.name = name;
+        this.pattern = pattern;
+        this.ranks = ranks;
+    }
+
+    /**
+     * 从 tiktoken 词表文件加载，文件名即编码名，例如 cl100k_base.tiktoken。
+     */
+    public static BpeTokenizer load(String name, Path vocabulary) throws IOException {
+        Map<ByteString, Integer> ranks = new HashMap<>(O200K_BASE.equals(name) ? 270_000 : 135_000);
+        try (BufferedReader reader = Files.newBufferedReader(vocabulary, StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                ByteString token = ByteString.decodeBase64(line.substring(0, space));
+                if (token == null) {
+                    throw new IOException("Invalid token in " + vocabulary + ": " + line);
+                }
+                ranks.put(token, Integer.parseInt(line.substring(space + 1).trim()));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid rank in " + vocabulary, e);
+        }
+        return new BpeTokenizer(name, O200K_BASE.equals(name) ? O200K_PATTERN : CL100K_PATTERN, ranks);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isExact() {
+        return true;
+    }
+
+    @Override
+    public int count(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return 0;
+        }
+        int count = 0;
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find()) {
+            byte[] piece = matcher.group().getBytes(StandardCharsets.UTF_8);
+            count += piece.length > LINEAR_MERGE_MAX_BYTES && rank(piece, 0, piece.length) == Integer.MAX_VALUE
+                    ? countLongPiece(piece) : countPiece(piece, 0, piece.length);
+        }
+        return count;
+    }
+
+    // 标准的字节对合并：反复合并 rank 最小的相邻两段，直到没有可合并的段
+    private int countPiece(byte[] piece, int from, int to) {
+        int length = to - from;
+        if (length == 1 || rank(piece, from, to) != Integer.MAX_VALUE) {
+            return 1;
+        }
+        int[] starts = new int[length + 1];
+        int[] pairRanks = new int[length + 1];
+        int size = length + 1;
+        for (int i = 0; i < size; i++) {
+            starts[i] = from + i;
+        }
+        for (int i = 0; i < size; i++) {
+            pairRanks[i] = i + 2 < size ? rank(piece, starts[i], starts[i + 2]) : Integer.MAX_VALUE;
+        }
+        while (size > 2) {
+            int best = -1;
+            int bestRank = Integer.MAX_VALUE;
+            for (int i = 0; i + 2 < size; i++) {
+                if (pairRanks[i] < bestRank) {
+                    bestRank = pairRanks[i];
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            System.arraycopy(starts, best + 2, starts, best + 1, size - best - 2);
+            System.arraycopy(pairRanks, best + 2, pairRanks, best + 1, size - best - 2);
+            size--;
+            pairRanks[best] = best + 2 < size ? rank(piece, starts[best], starts[best + 2]) : Integer.MAX_VALUE;
+            if (best > 0) {
+                pairRanks[best - 1] = rank(piece, starts[best - 1], starts[best + 1]);
+            }
+        }
+        return size - 1;
+    }
+
+    // 与 countPiece 的合并顺序相同（rank 最小的先合并，rank 相同时靠左的先合并），用最小堆选择下一对，O(n log n)。
+    // 堆中的项是 rank 和左段起点，段变化后旧项不删除，取出时与当前的相邻对比较，不一致则丢弃
+    private int countLongPiece(byte[] piece) {
+        int length = piece.length;
+        // 以各段起点索引：下一段的起点（最后一段为 length）和上一段的起点
+        int[] next = new int[length];
+        int[] previous = new int[length];
+        for (int i = 0; i < length; i++) {
+            next[i] = i + 1;
+            previous[i] = i - 1;
+        }
+        boolean[] merged = new boolean[length];
+        PriorityQueue<Long> pairs = new PriorityQueue<>();
+        for (int i = 0; i + 2 <= length; i++) {
+            offer(pairs, piece, i, i + 2);
+        }
+        int parts = length;
+        while (!pairs.isEmpty()) {
+            long pair = pairs.poll();
+            int start = (int) pair;
+            if (merged[start] || next[start] >= length) {
+                continue;
+            }
+            int end = next[next[start]];
+            if (rank(piece, start, end) != (int) (pair >>> 32)) {
+                continue;
+            }
+            merged[next[start]] = true;
+            next[start] = end;
+            if (end < length) {
+                previous[end] = start;
+                offer(pairs, piece, start, next[end]);
+            }
+            if (previous[start] >= 0) {
+                offer(pairs, piece, previous[start], end);
+            }
+            parts--;
+        }
+        return parts;
+    }
+
+    private void offer(PriorityQueue<Long> pairs, byte[] piece, int start, int end) {
+        int rank = rank(piece, start, end);
+        if (rank != Integer.MAX_VALUE) {
+            pairs.add(((long) rank << 32) | start);
+        }
+    }
+
+    private int rank(byte[] piece, int from, int to) {
+        Integer rank = ranks.get(ByteString.of(piece, from, to - from));
+        return rank != null ? rank : Integer.MAX_VALUE;
+    }
+}
\ No newline at end of file
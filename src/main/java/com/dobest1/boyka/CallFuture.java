@@ -0,0 +1,94 @@
+package com.dobest1.boyka;
+
+import okhttp3.Call;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 异步 LLM 请求的结果。一次对话可能包含多轮请求（工具调用循环），
+ * 每发起一轮都会通过 {@link #track(Call)} 登记当前的 Call，取消时会一并取消正在进行的 Call。
+ */
+public class CallFuture<T> extends CompletableFuture<T> {
+    private volatile Call currentCall;
+    private volatile BooleanSupplier admission;
+
+    void track(Call call) {
+        currentCall = call;
+        if (isCancelled()) {
+            call.cancel();
+        }
+    }
+
+    /**
+     * 设置准入条件。客户端在推送文本、执行工具或写入对话历史之前调用 {@link #admit()}，
+     * 对冲请求借此保证只有先到达的一方产生副作用。
+     */
+    void setAdmission(BooleanSupplier admission) {
+        this.admission = admission;
+    }
+
+    boolean admit() {
+        BooleanSupplier condition = admission;
+        return !isCancelled() && (condition == null || condition.getAsBoolean());
+    }
+
+    /**
+     * 以另一个异步结果完成本对象，异常会被解包后传递。
+     */
+    void completeFrom(CompletionStage<T> stage) {
+        stage.whenComplete((value, error) -> {
+            if (error != null) {
+                completeExceptionally(unwrap(error));
+            } else {
+                complete(value);
+            }
+        });
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        Call call = currentCall;
+        if (call != null) {
+            call.cancel();
+        }
+        return cancelled;
+    }
+
+    /**
+     * 阻塞等待结果，供同步接口使用。异步链中的异常还原为原始的 IOException。
+     */
+    public T await() throws IOException {
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Request interrupted", e);
+        } catch (CancellationException e) {
+            throw new IOException("Request cancelled", e);
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e.getCause());
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
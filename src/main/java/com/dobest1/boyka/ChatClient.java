@@ -0,0 +1,38 @@
+package com.dobest1.boyka;
+
+import java.util.List;
+
+/**
+ * 带对话历史的 LLM 客户端，{@link ProviderRouter} 通过它在多个服务商之间切换。
+ */
+public interface ChatClient {
+    /**
+     * 用于日志和状态显示的服务商名称。
+     */
+    String getName();
+
+    String getApiUrl();
+
+    CallFuture<String> sendMessageAsync(String userMessage, List<Tool> availableTools, StreamListener listener);
+
+    /**
+     * 以调用方提供的 result 发送消息，调用方可以预先为它设置准入条件。
+     */
+    CallFuture<String> sendMessageAsync(String userMessage, List<Tool> availableTools, StreamListener listener, CallFuture<String> result);
+
+    int getHistorySize();
+
+    /**
+     * 把对话历史截断到指定长度，用于撤销失败或被放弃的请求写入的消息。
+     */
+    void truncateHistory(int size);
+
+    /**
+     * 以纯文本形式追加一轮由其他服务商完成的问答，使切换服务商后上下文保持连续。
+     */
+    void appendExchange(String userMessage, String assistantMessage);
+
+    TokenUsage getSessionUsage();
+
+    void clearConversationHistory();
+}
\ No newline at end of file
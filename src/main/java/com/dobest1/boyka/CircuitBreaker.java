@@ -0,0 +1,87 @@
+package com.dobest1.boyka;
+
+import java.io.IOException;
+import java.time.Clock;
+
+/**
+ * 单个端点的断路器。连续失败达到阈值后打开，在冷却期内直接拒绝请求，
+ * 冷却期结束后放行一个试探请求：成功则关闭，失败则重新打开。
+ */
+public class CircuitBreaker {
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Clock clock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    public CircuitBreaker(String endpoint, int failureThreshold, long openMillis) {
+        this(endpoint, failureThreshold, openMillis, Clock.systemUTC());
+    }
+
+    CircuitBreaker(String endpoint, int failureThreshold, long openMillis, Clock clock) {
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * 请求发出前调用。断路器打开时抛出 {@link CircuitOpenException}。
+     */
+    public synchronized void acquire() throws CircuitOpenException {
+        if (state == State.OPEN) {
+            long remaining = openedAt + openMillis - clock.millis();
+            if (remaining > 0) {
+                throw new CircuitOpenException(endpoint, remaining);
+            }
+            state = State.HALF_OPEN;
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            // 试探请求尚未返回
+            throw new CircuitOpenException(endpoint, 0);
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN) {
+                BoykaAILogger.warn("Circuit breaker opened for " + endpoint + " after " + consecutiveFailures + " consecutive failures");
+            }
+            state = State.OPEN;
+            openedAt = clock.millis();
+        }
+    }
+
+    /**
+     * 请求未得出结论（例如被取消、或仅是客户端错误）时调用，释放试探名额但不改变计数。
+     */
+    public synchronized void recordIgnored() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            openedAt = clock.millis() - openMillis;
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    public static class CircuitOpenException extends IOException {
+        CircuitOpenException(String endpoint, long remainingMillis) {
+            super(endpoint + " is temporarily unavailable after repeated failures"
+                    + (remainingMillis > 0 ? ", retry in " + ((remainingMillis + 999) / 1000) + "s" : ""));
+        }
+    }
+}
\ No newline at end of file
@@ -1,18 +1,23 @@
 package com.dobest1.boyka;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import okhttp3.*;
+import okio.BufferedSource;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
-public class ClaudeClient {
+public class ClaudeClient implements ChatClient {
     private final String BASE_SYSTEM_PROMPT;
     private final OkHttpClient httpClient;
     private final Gson gson;
@@ -21,24 +26,83 @@ public class ClaudeClient {
     private final List<Message> conversationHistory;
     private final ClaudeConfig config;
     private final ToolExecutor toolExecutor;
-    private static final int MAX_RETRIES = 3;
     private static final int MAX_RECURSION_DEPTH = 20;
+    private static final String CONTEXT_PLACEHOLDER = "<content></content>";
+    private final TokenUsage sessionUsage = new TokenUsage();
+    private final RequestTokenCounter requestTokens;
+    private final HistoryCompactor<Message> historyCompactor;
+    private final ContextDiffTracker contextTracker = new ContextDiffTracker();
+
+    @Override
+    public String getName() {
+        return "Claude";
+    }
+
+    @Override
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    @Override
+    public int getHistorySize() {
+        return conversationHistory.size();
+    }
 
+    @Override
+    public void truncateHistory(int size) {
+        while (conversationHistory.size() > size) {
+            conversationHistory.remove(conversationHistory.size() - 1);
+        }
+        contextTracker.discard();
+    }
+
+    @Override
+    public void appendExchange(String userMessage, String assistantMessage) {
+        if (userMessage == null || userMessage.isEmpty() || assistantMessage == null || assistantMessage.isEmpty()) {
+            return;
+        }
+        conversationHistory.add(new Message("user", userMessage));
+        conversationHistory.add(new Message("assistant", assistantMessage));
+        compactHistory();
+    }
+
+    /**
+     * 历史超出 token 预算时压缩较早的轮次。只在一轮问答完成后和工具调用轮次之间调用，
+     * 发送新问题时不调用，以免打乱 {@link ProviderRouter} 记录的历史长度。
+     */
+    private void compactHistory() {
+        if (historyCompactor.compact(conversationHistory, config.getHistoryTokenBudget(), config.getHistoryKeepExchanges())) {
+            // 被压缩掉的消息里可能有上下文差异，下一次请求重新完整发送上下文
+            contextTracker.reset();
+        }
+    }
+
+    @Override
     public void clearConversationHistory() {
         this.conversationHistory.clear();
+        this.historyCompactor.reset();
+        this.contextTracker.reset();
+        this.sessionUsage.reset();
+    }
+
+    /**
+     * 自上次清空对话以来累计的 token 用量。
+     */
+    @Override
+    public TokenUsage getSessionUsage() {
+        return sessionUsage.snapshot();
     }
 
     public ClaudeClient(ClaudeConfig config, String prompt, ToolExecutor toolExecutor) {
         this.config = config;
         this.apiKey = config.getApiKey();
         this.apiUrl = config.getApiUrl();
-        this.httpClient = new OkHttpClient.Builder()
-                .connectTimeout(config.getConnectionTimeout(), TimeUnit.SECONDS)
-                .readTimeout(config.getReadTimeout(), TimeUnit.SECONDS)
-                .writeTimeout(config.getWriteTimeout(), TimeUnit.SECONDS)
-                .build();
+        this.httpClient = BoykaAIHttpService.getInstance().getClient(
+                config.getConnectionTimeout(), config.getReadTimeout(), config.getWriteTimeout());
         this.gson = new Gson();
         this.conversationHistory = new ArrayList<>();
+        this.requestTokens = new RequestTokenCounter(config.getModel());
+        this.historyCompactor = new HistoryCompactor<>(new HistoryAdapter(requestTokens));
         this.toolExecutor = toolExecutor;
         this.BASE_SYSTEM_PROMPT = prompt;
 
@@ -49,176 +113,465 @@ public class ClaudeClient {
     }
 
     public String sendMessage(String userMessage, List<Tool> availableTools) throws IOException {
-        // sleep(1)
-
-        JsonObject requestBody = buildRequestBody(userMessage, availableTools);
-        AIClaudeResponse claudeResponse = sendRequest(requestBody);
-        return processClaudeResponse(claudeResponse, availableTools, 0);
+        return sendMessage(userMessage, availableTools, null);
     }
 
-    public String sendMessageNoHistory(String systemPrompt, String userMessage, String context, List<Tool> availableTools) throws IOException {
-        JsonObject requestBody = buildRequestBody(systemPrompt, List.of(new Message[]{new Message("user", userMessage)}), context, availableTools);
-        AIClaudeResponse claudeResponse = sendRequest(requestBody);
-        // If max tokens reached, try again with a shorter message
-        if (Objects.equals(claudeResponse.stop_reason, "max_tokens")) {
-            String finalmessage = claudeResponse.content.get(0).text;
-            BoykaAILogger.info("Max tokens reached. Please try again with a shorter message.");
-            List<Message> messages = new ArrayList<>();
-            messages.add(new Message("user", userMessage));
-            messages.add(new Message("assistant", claudeResponse.content));
-            messages.add(new Message("user", "Max tokens reached. Please continue"));
-            requestBody = buildRequestBody(systemPrompt, messages, context, Collections.emptyList());
-            finalmessage += sendRequest(requestBody).content.get(0).text.replace("<REPLACE>\\n", "");
-            return finalmessage;
-        }
-        return processClaudeResponse(claudeResponse, availableTools, 0);
+    public String sendMessage(String userMessage, List<Tool> availableTools, StreamListener listener) throws IOException {
+        return sendMessageAsync(userMessage, availableTools, listener).await();
     }
 
-    private JsonObject buildRequestBody(String userMessage, List<Tool> availableTools) {
-        JsonObject requestBody = new JsonObject();
-        requestBody.addProperty("model", config.getModel());
-        requestBody.addProperty("max_tokens", config.getMaxTokens());
-
-        BoykaAISettings.State Settings = BoykaAISettings.getInstance().getState();
+    /**
+     * 异步发送消息，包括后续的工具调用轮次。取消返回的 CallFuture 会中断正在进行的请求。
+     */
+    @Override
+    public CallFuture<String> sendMessageAsync(String userMessage, List<Tool> availableTools, StreamListener listener) {
+        return sendMessageAsync(userMessage, availableTools, listener, new CallFuture<>());
+    }
 
-        assert Settings != null;
-        String latestContext = Settings.projectContexts;
-        String systemPrompt = BASE_SYSTEM_PROMPT;
-        systemPrompt = systemPrompt.replace("<content></content>", "\n\nFile Context: " + latestContext + "\n\n");
+    @Override
+    public CallFuture<String> sendMessageAsync(String userMessage, List<Tool> availableTools, StreamListener listener,
+                                               CallFuture<String> result) {
+        JsonRequestBody requestBody;
+        try {
+            requestBody = buildRequestBody(userMessage, availableTools);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        result.completeFrom(sendRequestAsync(requestBody, listener, result)
+                .thenCompose(claudeResponse -> processClaudeResponse(claudeResponse, availableTools, 0, listener, result))
+                .thenApply(text -> {
+                    contextTracker.commit();
+                    compactHistory();
+                    return text;
+                }));
+        return result;
+    }
 
-        requestBody.addProperty("system", systemPrompt);
+    public String sendMessageNoHistory(String systemPrompt, String userMessage, String context, List<Tool> availableTools) throws IOException {
+        return sendMessageNoHistoryAsync(systemPrompt, userMessage, context, availableTools).await();
+    }
 
-        JsonArray messages = new JsonArray();
-        for (Message message : conversationHistory) {
-            messages.add(message.toJsonObject());
+    public CallFuture<String> sendMessageNoHistoryAsync(String systemPrompt, String userMessage, String context, List<Tool> availableTools) {
+        CallFuture<String> result = new CallFuture<>();
+        JsonRequestBody requestBody;
+        try {
+            requestBody = buildRequestBody(systemPrompt, List.of(new Message[]{new Message("user", userMessage)}), context, availableTools);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        // 只有不带工具的调用才是确定性的，可以复用缓存的回答
+        String cacheKey = config.isResponseCache() && (availableTools == null || availableTools.isEmpty())
+                ? ResponseCache.key("claude " + apiUrl, requestBody) : null;
+        if (cacheKey != null) {
+            String cached = ResponseCache.getInstance().get(cacheKey);
+            if (cached != null) {
+                BoykaAILogger.info("Claude response cache hit: " + cacheKey);
+                result.complete(cached);
+                return result;
+            }
         }
+        CompletableFuture<String> response = sendRequestAsync(requestBody, null, result).thenCompose(claudeResponse -> {
+            // If max tokens reached, try again with a shorter message
+            if (Objects.equals(claudeResponse.stop_reason, "max_tokens")) {
+                String finalmessage = claudeResponse.content.get(0).text;
+                BoykaAILogger.info("Max tokens reached. Please try again with a shorter message.");
+                List<Message> messages = new ArrayList<>();
+                messages.add(new Message("user", userMessage));
+                messages.add(new Message("assistant", claudeResponse.content));
+                messages.add(new Message("user", "Max tokens reached. Please continue"));
+                JsonRequestBody continuationBody;
+                try {
+                    continuationBody = buildRequestBody(systemPrompt, messages, context, Collections.emptyList());
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+                return sendRequestAsync(continuationBody, null, result)
+                        .thenApply(continuation -> finalmessage + continuation.content.get(0).text.replace("<REPLACE>\\n", ""));
+            }
+            return processClaudeResponse(claudeResponse, availableTools, 0, null, result);
+        });
+        if (cacheKey != null) {
+            response = response.thenApply(text -> {
+                ResponseCache.getInstance().put(cacheKey, text);
+                return text;
+            });
+        }
+        result.completeFrom(response);
+        return result;
+    }
+
+    private JsonRequestBody buildRequestBody(String userMessage, List<Tool> availableTools) throws IOException {
+        // 系统提示中的上下文在一次对话内保持不变，之后的变化以差异附在新问题中
+        Map<String, String> sections = config.getContextProvider().get();
+        String latestContext = contextTracker.systemContext(sections);
         if (userMessage != null && !userMessage.isEmpty()) {
-            messages.add(new Message("user", userMessage).toJsonObject());
-            conversationHistory.add(new Message("user", userMessage));
+            conversationHistory.add(new Message("user", ContextDiffTracker.attach(userMessage, contextTracker.prepareUpdate(sections))));
+        }
+        // 只复制引用；请求体在 OkHttp 线程上序列化，期间历史可能被清空
+        List<Message> messages = new ArrayList<>(conversationHistory);
+        String historySummary = historyCompactor.getSummary();
+        int inputTokens = requestTokens.text(BASE_SYSTEM_PROMPT) + requestTokens.text(latestContext)
+                + requestTokens.text(historySummary) + countRequestTokens(messages, availableTools);
+        int maxTokens;
+        try {
+            maxTokens = TokenCounter.getInstance().fitMaxTokens(config.getModel(), inputTokens, config.getMaxTokens());
+        } catch (IOException e) {
+            // 请求没有发出，撤回刚加入的问题，历史保持发送前的状态
+            if (userMessage != null && !userMessage.isEmpty()) {
+                conversationHistory.remove(conversationHistory.size() - 1);
+                contextTracker.discard();
+            }
+            throw e;
         }
-        requestBody.add("messages", messages);
 
-        if (availableTools != null && !availableTools.isEmpty()) {
-            JsonArray toolsArray = new JsonArray();
-            for (Tool tool : availableTools) {
-                toolsArray.add(tool.toClaudeFormat());
+        return new JsonRequestBody(writer -> {
+            writer.beginObject();
+            writer.name("model").value(config.getModel());
+            writer.name("max_tokens").value(maxTokens);
+            writer.name("system");
+            if (config.isPromptCaching()) {
+                // 静态提示与文件上下文分成两个可缓存的块，文件上下文变化时静态部分的缓存仍可命中
+                writer.beginArray();
+                writeTextBlock(writer, BASE_SYSTEM_PROMPT.replace(CONTEXT_PLACEHOLDER, ""), true);
+                if (latestContext != null && !latestContext.isEmpty()) {
+                    writeTextBlock(writer, "File Context: " + latestContext, true);
+                }
+                if (historySummary != null) {
+                    writeTextBlock(writer, historySummary, false);
+                }
+                writer.endArray();
+            } else {
+                String system = BASE_SYSTEM_PROMPT.replace(CONTEXT_PLACEHOLDER, "\n\nFile Context: " + latestContext + "\n\n");
+                writer.value(historySummary != null ? system + "\n\n" + historySummary : system);
             }
-            requestBody.add("tools", toolsArray);
+            // 最后一条消息上的断点让下一轮可以复用整段对话前缀
+            writeMessages(writer, messages, config.isPromptCaching());
+            writeTools(writer, availableTools);
+            writeStreamFlag(writer);
+            writer.endObject();
+        }, describeRequest(messages, availableTools)).inputTokens(inputTokens);
+    }
+
+    private JsonRequestBody buildRequestBody(String systemPrompt, List<Message> userMessage, String context, List<Tool> availableTools) throws IOException {
+        List<Message> messages = userMessage != null ? new ArrayList<>(userMessage) : Collections.emptyList();
+        int inputTokens = requestTokens.text(systemPrompt) + countRequestTokens(messages, availableTools);
+        int maxTokens = TokenCounter.getInstance().fitMaxTokens(config.getModel(), inputTokens, config.getMaxTokens());
+        return new JsonRequestBody(writer -> {
+            writer.beginObject();
+            writer.name("model").value(config.getModel());
+            writer.name("max_tokens").value(maxTokens);
+            writer.name("system");
+            if (config.isPromptCaching()) {
+                writer.beginArray();
+                writeTextBlock(writer, systemPrompt, true);
+                writer.endArray();
+            } else {
+                writer.value(systemPrompt);
+            }
+            writeMessages(writer, messages, false);
+            writeTools(writer, availableTools);
+            writeStreamFlag(writer);
+            writer.endObject();
+        }, describeRequest(messages, availableTools)).inputTokens(inputTokens);
+    }
+
+    /**
+     * 消息和工具列表的 token 数。历史中的消息对象在多轮之间不变，计数按对象缓存，每轮只统计新增的消息。
+     */
+    private int countRequestTokens(List<Message> messages, List<Tool> availableTools) {
+        int tokens = 0;
+        for (Message message : messages) {
+            tokens += requestTokens.part(message, writer -> message.writeTo(writer, false));
+        }
+        if (availableTools != null && !availableTools.isEmpty()) {
+            tokens += requestTokens.part(availableTools, writer -> {
+                writer.beginObject();
+                writeTools(writer, availableTools);
+                writer.endObject();
+            });
         }
+        return tokens;
+    }
 
-        return requestBody;
+    private String describeRequest(List<Message> messages, List<Tool> availableTools) {
+        return "model=" + config.getModel()
+                + ", messages=" + messages.size()
+                + ", tools=" + (availableTools == null ? 0 : availableTools.size())
+                + ", stream=" + config.isStream()
+                + ", promptCaching=" + config.isPromptCaching();
     }
 
-    private JsonObject buildRequestBody(String systemPrompt, List<Message> userMessage, String context, List<Tool> availableTools) {
-        JsonObject requestBody = new JsonObject();
-        requestBody.addProperty("model", config.getModel());
-        requestBody.addProperty("max_tokens", config.getMaxTokens());
-        requestBody.addProperty("system", systemPrompt);
+    private static void writeMessages(JsonWriter writer, List<Message> messages, boolean cacheLastMessage) throws IOException {
+        writer.name("messages").beginArray();
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).writeTo(writer, cacheLastMessage && i == messages.size() - 1);
+        }
+        writer.endArray();
+    }
 
-        JsonArray messages = new JsonArray();
-        if (userMessage != null && !userMessage.isEmpty()) {
-            for (Message message : userMessage) {
-                messages.add(message.toJsonObject());
+    /**
+     * 工具定义位于缓存前缀的最前面，在最后一个工具上设置断点即可缓存全部工具定义。
+     * 工具列表的顺序必须保持稳定，否则缓存无法命中。
+     */
+    private void writeTools(JsonWriter writer, List<Tool> availableTools) throws IOException {
+        if (availableTools == null || availableTools.isEmpty()) {
+            return;
+        }
+        writer.name("tools").beginArray();
+        for (int i = 0; i < availableTools.size(); i++) {
+            JsonObject tool = availableTools.get(i).toClaudeFormat();
+            if (config.isPromptCaching() && i == availableTools.size() - 1) {
+                tool.add("cache_control", ephemeralCacheControl());
             }
+            JsonRequestBody.writeElement(writer, tool);
         }
-        requestBody.add("messages", messages);
+        writer.endArray();
+    }
 
-        if (availableTools != null && !availableTools.isEmpty()) {
-            JsonArray toolsArray = new JsonArray();
-            for (Tool tool : availableTools) {
-                toolsArray.add(tool.toClaudeFormat());
-            }
-            requestBody.add("tools", toolsArray);
+    private void writeStreamFlag(JsonWriter writer) throws IOException {
+        if (config.isStream()) {
+            writer.name("stream").value(true);
+        }
+    }
+
+    private static void writeTextBlock(JsonWriter writer, String text, boolean cacheBreakpoint) throws IOException {
+        writer.beginObject();
+        writer.name("type").value("text");
+        writer.name("text").value(text);
+        if (cacheBreakpoint) {
+            writeCacheControl(writer);
         }
+        writer.endObject();
+    }
+
+    private static void writeCacheControl(JsonWriter writer) throws IOException {
+        writer.name("cache_control").beginObject().name("type").value("ephemeral").endObject();
+    }
+
+    private static JsonObject ephemeralCacheControl() {
+        JsonObject cacheControl = new JsonObject();
+        cacheControl.addProperty("type", "ephemeral");
+        return cacheControl;
+    }
 
-        return requestBody;
+    private void recordUsage(AIClaudeResponse claudeResponse, JsonRequestBody requestBody) {
+        if (claudeResponse == null || claudeResponse.usage == null) {
+            return;
+        }
+        TokenUsage usage = claudeResponse.usage.toTokenUsage();
+        sessionUsage.add(usage);
+        BoykaAILogger.info("Claude usage: " + usage + ", estimated input: " + requestBody.getInputTokens());
+        // 缓存命中与否不影响输入的总 token 数
+        TokenCounter.getInstance().calibrate(config.getModel(), requestBody.getInputTokens(),
+                usage.getInputTokens() + usage.getCacheCreationInputTokens() + usage.getCacheReadInputTokens());
     }
 
-    private AIClaudeResponse sendRequest(JsonObject requestBody) throws IOException {
+    private CompletableFuture<AIClaudeResponse> sendRequestAsync(JsonRequestBody requestBody, StreamListener listener, CallFuture<?> owner) {
         Request request = new Request.Builder()
                 .url(apiUrl + "messages")
-                .post(RequestBody.create(MediaType.parse("application/json"), requestBody.toString()))
+                .post(requestBody)
+                .tag(RateLimiter.Cost.class, RateLimiter.getInstance().estimateCost(requestBody, config.getMaxTokens()))
                 .addHeader("x-api-key", apiKey)
                 .addHeader("anthropic-version", config.getAnthropicVersion())
                 .build();
 
-        BoykaAILogger.info("Claude Request: " + requestBody);
+        BoykaAILogger.info("Claude Request: " + requestBody.getSummary());
+        if (BoykaAILogger.isDebugEnabled()) {
+            BoykaAILogger.debug("Claude Request: " + requestBody.toJsonString());
+        }
 
-        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
-            try (Response response = httpClient.newCall(request).execute()) {
-                if (!response.isSuccessful()) {
-                    String errorBody = response.body().string();
-                    BoykaAILogger.warn("Attempt " + (attempt + 1) + " - Unexpected code " + response.code() + " " + errorBody);
-                    if (attempt == MAX_RETRIES - 1) {
-                        throw new IOException("Unexpected code " + response.code() + " " + errorBody);
+        // 已经推送给界面的增量文本无法撤回，此后出错不再重试
+        boolean[] streamed = {false};
+        StreamListener trackingListener = listener == null ? null : delta -> {
+            streamed[0] = true;
+            listener.onTextDelta(delta);
+        };
+
+        return BoykaAIHttpService.getInstance().executeAsync(httpClient, request, response -> {
+            if (!config.isStream()) {
+                AIClaudeResponse claudeResponse = BoykaAIHttpService.readJson(gson, response.body(), AIClaudeResponse.class, "Claude");
+                recordUsage(claudeResponse, requestBody);
+                return claudeResponse;
+            }
+            try {
+                AIClaudeResponse claudeResponse = readStream(response.body().source(), trackingListener);
+                recordUsage(claudeResponse, requestBody);
+                return claudeResponse;
+            } catch (IOException e) {
+                throw streamed[0] ? new BoykaAIHttpService.PartialResponseException(e) : e;
+            }
+        }, owner);
+    }
+
+    /**
+     * 解析 Claude 的 SSE 流，逐个事件重建 ContentBlock，并把文本增量推送给 listener。
+     */
+    private AIClaudeResponse readStream(BufferedSource source, StreamListener listener) throws IOException {
+        ServerSentEventReader reader = new ServerSentEventReader(source);
+        AIClaudeResponse claudeResponse = new AIClaudeResponse();
+        claudeResponse.content = new ArrayList<>();
+        Map<Integer, StringBuilder> buffers = new HashMap<>();
+
+        ServerSentEventReader.Event event;
+        while ((event = reader.next()) != null) {
+            JsonObject data = gson.fromJson(event.data, JsonObject.class);
+            String type = data.has("type") ? data.get("type").getAsString() : event.name;
+            if (type == null) {
+                continue;
+            }
+            switch (type) {
+                case "message_start": {
+                    JsonObject message = data.getAsJsonObject("message");
+                    claudeResponse.id = getString(message, "id");
+                    claudeResponse.model = getString(message, "model");
+                    claudeResponse.role = getString(message, "role");
+                    if (message.has("usage") && message.get("usage").isJsonObject()) {
+                        claudeResponse.usage = gson.fromJson(message.get("usage"), Usage.class);
                     }
-                } else {
-                    String responseBody = response.body().string();
-                    BoykaAILogger.info("Claude Response: " + responseBody);
-                    return gson.fromJson(responseBody, AIClaudeResponse.class);
+                    break;
                 }
-            } catch (IOException e) {
-                if (attempt == MAX_RETRIES - 1) {
-                    throw e;
+                case "content_block_start": {
+                    int index = data.get("index").getAsInt();
+                    ContentBlock block = gson.fromJson(data.getAsJsonObject("content_block"), ContentBlock.class);
+                    while (claudeResponse.content.size() <= index) {
+                        claudeResponse.content.add(null);
+                    }
+                    claudeResponse.content.set(index, block);
+                    buffers.put(index, new StringBuilder("text".equals(block.type) && block.text != null ? block.text : ""));
+                    break;
                 }
-                BoykaAILogger.warn("Attempt " + (attempt + 1) + " failed. Retrying...");
-            }
-            // Exponential backoff
-            try {
-                Thread.sleep((long) Math.pow(2, attempt) * 1000);
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
-                throw new IOException("Request interrupted", ie);
+                case "content_block_delta": {
+                    int index = data.get("index").getAsInt();
+                    StringBuilder buffer = buffers.get(index);
+                    JsonObject delta = data.getAsJsonObject("delta");
+                    String deltaType = getString(delta, "type");
+                    if (buffer == null || deltaType == null) {
+                        break;
+                    }
+                    if ("text_delta".equals(deltaType)) {
+                        String text = delta.get("text").getAsString();
+                        buffer.append(text);
+                        if (listener != null) {
+                            listener.onTextDelta(text);
+                        }
+                    } else if ("input_json_delta".equals(deltaType)) {
+                        buffer.append(delta.get("partial_json").getAsString());
+                    }
+                    break;
+                }
+                case "content_block_stop": {
+                    int index = data.get("index").getAsInt();
+                    ContentBlock block = claudeResponse.content.get(index);
+                    StringBuilder buffer = buffers.remove(index);
+                    if (block == null || buffer == null) {
+                        break;
+                    }
+                    if ("text".equals(block.type)) {
+                        block.text = buffer.toString();
+                        if (listener != null && buffer.length() > 0) {
+                            listener.onTextDelta("\n");
+                        }
+                    } else if ("tool_use".equals(block.type)) {
+                        block.input = buffer.length() == 0 ? new JsonObject() : gson.fromJson(buffer.toString(), JsonObject.class);
+                    }
+                    break;
+                }
+                case "message_delta": {
+                    JsonObject delta = data.getAsJsonObject("delta");
+                    if (delta != null && getString(delta, "stop_reason") != null) {
+                        claudeResponse.stop_reason = getString(delta, "stop_reason");
+                    }
+                    // message_delta 中的 output_tokens 是累计值
+                    if (data.has("usage") && data.get("usage").isJsonObject()) {
+                        Usage usage = gson.fromJson(data.get("usage"), Usage.class);
+                        if (claudeResponse.usage == null) {
+                            claudeResponse.usage = usage;
+                        } else {
+                            claudeResponse.usage.output_tokens = usage.output_tokens;
+                        }
+                    }
+                    break;
+                }
+                case "message_stop":
+                    claudeResponse.content.removeIf(Objects::isNull);
+                    return claudeResponse;
+                case "error":
+                    throw new IOException("Claude stream error: " + data.get("error"));
+                default:
+                    // ping 等事件无需处理
+                    break;
             }
         }
-        throw new IOException("Failed after " + MAX_RETRIES + " attempts");
+        throw new IOException("Claude stream ended before message_stop");
+    }
+
+    private static String getString(JsonObject object, String member) {
+        if (object == null || !object.has(member) || object.get(member).isJsonNull()) {
+            return null;
+        }
+        return object.get(member).getAsString();
     }
 
-    private String processClaudeResponse(AIClaudeResponse claudeResponse, List<Tool> availableTools, int depth) throws IOException {
+    private CompletableFuture<String> processClaudeResponse(AIClaudeResponse claudeResponse, List<Tool> availableTools, int depth,
+                                                            StreamListener listener, CallFuture<?> owner) {
+        if (owner != null && !owner.admit()) {
+            // 对冲请求中落后的一方，不写入历史、不执行工具
+            return CompletableFuture.failedFuture(new CancellationException("Response discarded"));
+        }
         if (depth >= MAX_RECURSION_DEPTH) {
             BoykaAILogger.warn("Max recursion depth reached. Stopping further processing.");
-            return "Max recursion depth reached. Stopping further processing.";
+            return CompletableFuture.completedFuture("Max recursion depth reached. Stopping further processing.");
         }
 
         StringBuilder finalResponse = new StringBuilder();
         List<ToolResult> toolResults = new ArrayList<>();
+        // 工具按出现顺序依次执行
+        CompletableFuture<Void> toolsDone = CompletableFuture.completedFuture(null);
 
         for (ContentBlock block : claudeResponse.content) {
             if ("text".equals(block.type)) {
                 finalResponse.append(block.text).append("\n");
             } else if ("tool_use".equals(block.type)) {
-                String toolResult = executeToolCall(block);
-                toolResults.add(new ToolResult(block.id, toolResult, false));
+                toolsDone = toolsDone.thenCompose(ignored -> executeToolCall(block))
+                        .thenAccept(toolResult -> toolResults.add(new ToolResult(block.id, toolResult, false)));
             }
         }
 
         conversationHistory.add(new Message("assistant", claudeResponse.content));
 
-        if (!toolResults.isEmpty()) {
+        return toolsDone.thenCompose(ignored -> {
+            if (toolResults.isEmpty()) {
+                return CompletableFuture.completedFuture(finalResponse.toString().trim());
+            }
             conversationHistory.add(new Message("user", toolResults));
-            String claudeResponseToTool = sendToolResultToClaude(availableTools, depth + 1);
-            finalResponse.append(claudeResponseToTool).append("\n");
-        }
-
-        return finalResponse.toString().trim();
+            return sendToolResultToClaude(availableTools, depth + 1, listener, owner)
+                    .thenApply(claudeResponseToTool -> finalResponse.append(claudeResponseToTool).append("\n").toString().trim());
+        });
     }
 
-    private String executeToolCall(ContentBlock toolUseBlock) {
+    private CompletableFuture<String> executeToolCall(ContentBlock toolUseBlock) {
         if (toolExecutor == null) {
-            return "Error: Tool execution is not available.";
-        }
-        try {
-            return toolExecutor.executeToolCall(toolUseBlock.name, gson.toJson(toolUseBlock.input));
-        } catch (Exception e) {
-            BoykaAILogger.error("Error executing tool call", e);
-            return "Error: An error occurred during tool execution: " + e.getMessage();
+            return CompletableFuture.completedFuture("Error: Tool execution is not available.");
         }
+        return toolExecutor.executeToolCallAsync(toolUseBlock.name, gson.toJson(toolUseBlock.input))
+                .exceptionally(e -> {
+                    BoykaAILogger.error("Error executing tool call", e);
+                    return "Error: An error occurred during tool execution: " + CallFuture.unwrap(e).getMessage();
+                });
     }
 
-    private String sendToolResultToClaude(List<Tool> availableTools, int depth) throws IOException {
-        JsonObject requestBody = buildRequestBody("", availableTools);
-        AIClaudeResponse claudeResponse = sendRequest(requestBody);
-        return processClaudeResponse(claudeResponse, availableTools, depth);
+    private CompletableFuture<String> sendToolResultToClaude(List<Tool> availableTools, int depth, StreamListener listener, CallFuture<?> owner) {
+        compactHistory();
+        JsonRequestBody requestBody;
+        try {
+            requestBody = buildRequestBody("", availableTools);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return sendRequestAsync(requestBody, listener, owner)
+                .thenCompose(claudeResponse -> processClaudeResponse(claudeResponse, availableTools, depth, listener, owner));
     }
 
     private static class AIClaudeResponse {
@@ -227,6 +580,18 @@ public class ClaudeClient {
         String role;
         List<ContentBlock> content;
         String stop_reason;
+        Usage usage;
+    }
+
+    private static class Usage {
+        int input_tokens;
+        int output_tokens;
+        int cache_creation_input_tokens;
+        int cache_read_input_tokens;
+
+        TokenUsage toTokenUsage() {
+            return new TokenUsage(input_tokens, output_tokens, cache_creation_input_tokens, cache_read_input_tokens);
+        }
     }
 
     private static class ContentBlock {
@@ -236,22 +601,26 @@ public class ClaudeClient {
         String name;
         JsonObject input;
 
-        JsonObject toJsonObject() {
-            JsonObject jsonObject = new JsonObject();
-            jsonObject.addProperty("type", type);
+        void writeTo(JsonWriter writer, boolean cacheBreakpoint) throws IOException {
+            writer.beginObject();
+            writer.name("type").value(type);
             if (text != null) {
-                jsonObject.addProperty("text", text);
+                writer.name("text").value(text);
             }
             if (id != null) {
-                jsonObject.addProperty("id", id);
+                writer.name("id").value(id);
             }
             if (name != null) {
-                jsonObject.addProperty("name", name);
+                writer.name("name").value(name);
             }
             if (input != null) {
-                jsonObject.add("input", input);
+                writer.name("input");
+                JsonRequestBody.writeElement(writer, input);
+            }
+            if (cacheBreakpoint) {
+                writeCacheControl(writer);
             }
-            return jsonObject;
+            writer.endObject();
         }
     }
 
@@ -264,27 +633,40 @@ public class ClaudeClient {
             this.content = content;
         }
 
-        JsonObject toJsonObject() {
-            JsonObject jsonObject = new JsonObject();
-            jsonObject.addProperty("role", role);
+        /**
+         * @param cacheBreakpoint 是否在最后一个内容块上设置缓存断点，纯文本内容会改写为单个 text 块
+         */
+        void writeTo(JsonWriter writer, boolean cacheBreakpoint) throws IOException {
+            writer.beginObject();
+            writer.name("role").value(role);
             if (content instanceof String) {
-                jsonObject.addProperty("content", (String) content);
+                writer.name("content");
+                if (cacheBreakpoint && !((String) content).isEmpty()) {
+                    writer.beginArray();
+                    writeTextBlock(writer, (String) content, true);
+                    writer.endArray();
+                } else {
+                    writer.value((String) content);
+                }
             } else if (content instanceof List) {
-                JsonArray contentArray = new JsonArray();
-                for (Object item : (List<?>) content) {
+                List<?> items = (List<?>) content;
+                writer.name("content").beginArray();
+                for (int i = 0; i < items.size(); i++) {
+                    Object item = items.get(i);
+                    boolean last = cacheBreakpoint && i == items.size() - 1;
                     if (item instanceof ContentBlock) {
-                        contentArray.add(((ContentBlock) item).toJsonObject());
+                        ((ContentBlock) item).writeTo(writer, last);
                     } else if (item instanceof ToolResult) {
-                        contentArray.add(((ToolResult) item).toJsonObject());
+                        ((ToolResult) item).writeTo(writer, last);
                     } else if (item instanceof String) {
-                        contentArray.add((String) item);
+                        writer.value((String) item);
                     } else if (item instanceof JsonObject) {
-                        contentArray.add((JsonObject) item);
+                        JsonRequestBody.writeElement(writer, (JsonObject) item);
                     }
                 }
-                jsonObject.add("content", contentArray);
+                writer.endArray();
             }
-            return jsonObject;
+            writer.endObject();
         }
     }
 
@@ -300,13 +682,105 @@ public class ClaudeClient {
             this.is_error = is_error;
         }
 
-        JsonObject toJsonObject() {
-            JsonObject jsonObject = new JsonObject();
-            jsonObject.addProperty("type", type);
-            jsonObject.addProperty("tool_use_id", tool_use_id);
-            jsonObject.addProperty("content", content);
-            jsonObject.addProperty("is_error", is_error);
-            return jsonObject;
+        void writeTo(JsonWriter writer, boolean cacheBreakpoint) throws IOException {
+            writer.beginObject();
+            writer.name("type").value(type);
+            writer.name("tool_use_id").value(tool_use_id);
+            writer.name("content").value(content);
+            writer.name("is_error").value(is_error);
+            if (cacheBreakpoint) {
+                writeCacheControl(writer);
+            }
+            writer.endObject();
+        }
+    }
+
+    /**
+     * 供 {@link HistoryCompactor} 识别 Claude 消息结构：纯文本的 user 消息是一轮的开始，
+     * 工具结果是 user 消息中的 tool_result 块，工具调用是 assistant 消息中的 tool_use 块。
+     */
+    private static class HistoryAdapter implements HistoryCompactor.Adapter<Message> {
+        private final RequestTokenCounter requestTokens;
+
+        HistoryAdapter(RequestTokenCounter requestTokens) {
+            this.requestTokens = requestTokens;
+        }
+
+        @Override
+        public int estimateTokens(Message message) {
+            return requestTokens.part(message, writer -> message.writeTo(writer, false));
+        }
+
+        @Override
+        public boolean isUserText(Message message) {
+            return "user".equals(message.role) && message.content instanceof String;
+        }
+
+        @Override
+        public Message stub(Message message) {
+            if (message.content instanceof String) {
+                String content = RelevanceIndex.stripRelevantCode((String) message.content);
+                return content.equals(message.content) ? message : new Message(message.role, content);
+            }
+            if (!(message.content instanceof List)) {
+                return message;
+            }
+            List<Object> items = new ArrayList<>();
+            boolean changed = false;
+            for (Object item : (List<?>) message.content) {
+                Object stubbed = item;
+                if (item instanceof ToolResult) {
+                    ToolResult toolResult = (ToolResult) item;
+                    String content = HistoryCompactor.stubText(toolResult.content);
+                    if (!Objects.equals(content, toolResult.content)) {
+                        stubbed = new ToolResult(toolResult.tool_use_id, content, toolResult.is_error);
+                    }
+                } else if (item instanceof ContentBlock && ((ContentBlock) item).input != null) {
+                    ContentBlock block = (ContentBlock) item;
+                    JsonElement input = HistoryCompactor.stubLargeStrings(block.input);
+                    if (input != block.input) {
+                        ContentBlock copy = new ContentBlock();
+                        copy.type = block.type;
+                        copy.id = block.id;
+                        copy.name = block.name;
+                        copy.text = block.text;
+                        copy.input = input.getAsJsonObject();
+                        stubbed = copy;
+                    }
+                }
+                changed |= stubbed != item;
+                items.add(stubbed);
+            }
+            return changed ? new Message(message.role, items) : message;
+        }
+
+        @Override
+        public String text(Message message) {
+            if (message.content instanceof String) {
+                return (String) message.content;
+            }
+            StringBuilder text = new StringBuilder();
+            if (message.content instanceof List) {
+                for (Object item : (List<?>) message.content) {
+                    if (item instanceof ContentBlock && "text".equals(((ContentBlock) item).type) && ((ContentBlock) item).text != null) {
+                        text.append(((ContentBlock) item).text).append('\n');
+                    }
+                }
+            }
+            return text.toString().trim();
+        }
+
+        @Override
+        public List<String> toolNames(Message message) {
+            List<String> names = new ArrayList<>();
+            if (message.content instanceof List) {
+                for (Object item : (List<?>) message.content) {
+                    if (item instanceof ContentBlock && "tool_use".equals(((ContentBlock) item).type)) {
+                        names.add(((ContentBlock) item).name);
+                    }
+                }
+            }
+            return names;
         }
     }
 }
\ No newline at end of file
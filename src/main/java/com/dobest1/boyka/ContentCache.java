@@ -0,0 +1,176 @@
+package com.dobest1.boyka;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.util.LowMemoryWatcher;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 应用级的文件内容缓存，按占用字节数做 LRU 淘汰。各使用方以命名空间区分，例如某个项目的文件工具。
+ * 写入时按内容去重，多个键引用相同的内容时只保存一份，也只计算一次大小。
+ * IDE 内存不足时（{@link LowMemoryWatcher}）整个缓存被清空，使用方需要能在未命中时重新读取。
+ */
+public class ContentCache implements Disposable {
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+    // 每个条目的键、链表节点等固定开销的估计值
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final LinkedHashMap<String, Shared> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final HashMap<String, Shared> contents = new HashMap<>();
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public static ContentCache getInstance() {
+        return ServiceManager.getService(ContentCache.class);
+    }
+
+    public ContentCache() {
+        LowMemoryWatcher.register(this::onLowMemory, this);
+    }
+
+    public synchronized String get(String namespace, String key) {
+        Shared shared = entries.get(entryKey(namespace, key));
+        if (shared == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return shared.content;
+    }
+
+    public synchronized void put(String namespace, String key, String content) {
+        String entryKey = entryKey(namespace, key);
+        release(entries.remove(entryKey));
+        if (content == null) {
+            return;
+        }
+        long maxBytes = maxBytes();
+        if (weight(content) > maxBytes) {
+            // 超过整个缓存容量的内容不缓存，避免清空其他条目
+            return;
+        }
+        Shared shared = contents.get(content);
+        if (shared == null) {
+            shared = new Shared(content);
+            contents.put(content, shared);
+            totalBytes += weight(content);
+        }
+        shared.references++;
+        entries.put(entryKey, shared);
+        totalBytes += ENTRY_OVERHEAD_BYTES;
+        evict(maxBytes);
+    }
+
+    public synchronized void remove(String namespace, String key) {
+        release(entries.remove(entryKey(namespace, key)));
+    }
+
+    /**
+     * 命名空间中当前缓存的全部条目，按最近访问的先后排列（最久未访问的在前）。不影响访问顺序。
+     */
+    public synchronized Map<String, String> entries(String namespace) {
+        String prefix = namespace + '\0';
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Shared> entry : entries.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                result.put(entry.getKey().substring(prefix.length()), entry.getValue().content);
+            }
+        }
+        return result;
+    }
+
+    public synchronized void clear(String namespace) {
+        String prefix = namespace + '\0';
+        Iterator<Map.Entry<String, Shared>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Shared> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                iterator.remove();
+                release(entry.getValue());
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        contents.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "content cache " + entries.size() + " entries (" + contents.size() + " distinct), "
+                + (totalBytes / 1024) + " KB of " + (maxBytes() / 1024) + " KB, hits " + hits + ", misses " + misses
+                + ", evictions " + evictions;
+    }
+
+    @Override
+    public void dispose() {
+        clear();
+    }
+
+    private void onLowMemory() {
+        BoykaAILogger.info("Low memory, clearing " + this);
+        clear();
+    }
+
+    private void evict(long maxBytes) {
+        Iterator<Map.Entry<String, Shared>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Shared shared = iterator.next().getValue();
+            iterator.remove();
+            release(shared);
+            evictions++;
+        }
+    }
+
+    // 去掉一个键对内容的引用，没有键引用时释放内容
+    private void release(Shared shared) {
+        if (shared == null) {
+            return;
+        }
+        totalBytes -= ENTRY_OVERHEAD_BYTES;
+        if (--shared.references == 0) {
+            contents.remove(shared.content);
+            totalBytes -= weight(shared.content);
+        }
+    }
+
+    private static String entryKey(String namespace, String key) {
+        return namespace + '\0' + key;
+    }
+
+    // 按 UTF-16 估算字符串占用的堆内存
+    private static long weight(String content) {
+        return 2L * content.length();
+    }
+
+    private static long maxBytes() {
+        BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
+        int megabytes = settings != null ? settings.contentCacheMaxMb : 64;
+        return Math.max(1, megabytes) * BYTES_PER_MB;
+    }
+
+    private static class Shared {
+        final String content;
+        int references;
+
+        Shared(String content) {
+            this.content = content;
+        }
+    }
+}
\ No newline at end of file
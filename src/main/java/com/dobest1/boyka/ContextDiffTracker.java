@@ -0,0 +1,183 @@
+package com.dobest1.boyka;
+
+import com.intellij.util.diff.Diff;
+import com.intellij.util.diff.FilesTooBigForDiffException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 记录一次对话中已经发给模型的上下文文件内容。对话开始时的上下文作为基线放在系统提示中，
+ * 之后保持不变以便命中提示缓存；文件再有变化时，只在新的用户消息中附加相对上次发送内容的统一差异。
+ * 历史被压缩后，早先消息中的差异可能已被丢弃，此时重新以当前内容作为基线完整发送。
+ * 由各客户端持有，调用方负责在同一对话内按顺序调用。
+ */
+class ContextDiffTracker {
+    private static final int CONTEXT_LINES = 2;
+    // 差异超过新内容这一比例时直接发送新内容
+    private static final double MAX_DIFF_RATIO = 0.75;
+    private static final String UPDATE_START = "\n\n<context_update>\n";
+    private static final String UPDATE_END = "</context_update>";
+
+    // 系统提示中的上下文，为 null 表示本次对话还没有发送过
+    private String baseline;
+    // 模型已知的各文件段落，即基线加上已确认的更新
+    private Map<String, String> sent = new LinkedHashMap<>();
+    // 本轮消息中附加的更新，本轮完成后才确认
+    private Map<String, String> pending;
+
+    /**
+     * 系统提示中使用的上下文文本。本次对话第一次调用时以当前上下文作为基线，之后返回同一基线。
+     */
+    synchronized String systemContext(Map<String, String> sections) {
+        if (baseline == null) {
+            baseline = String.join("", sections.values());
+            sent = new LinkedHashMap<>(sections);
+            pending = null;
+        }
+        return baseline;
+    }
+
+    /**
+     * 当前上下文相对模型已知内容的更新说明，没有变化时返回空字符串。更新在 {@link #commit()} 后才计入已发送的内容。
+     */
+    synchronized String prepareUpdate(Map<String, String> sections) {
+        pending = null;
+        if (baseline == null || sections.equals(sent)) {
+            return "";
+        }
+        StringBuilder update = new StringBuilder("Context files changed since they were last sent; "
+                + "the File Context in the system prompt is outdated for these files:\n");
+        for (Map.Entry<String, String> entry : sections.entrySet()) {
+            String previous = sent.get(entry.getKey());
+            if (previous == null) {
+                update.append("Added to context:\n").append(entry.getValue());
+            } else if (!previous.equals(entry.getValue())) {
+                String diff = unifiedDiff(entry.getKey(), previous, entry.getValue());
+                if (diff == null || diff.length() > entry.getValue().length() * MAX_DIFF_RATIO) {
+                    update.append("Updated, new content:\n").append(entry.getValue());
+                } else {
+                    update.append(diff).append('\n');
+                }
+            }
+        }
+        for (String file : sent.keySet()) {
+            if (!sections.containsKey(file)) {
+                update.append("Removed from context: ").append(file).append('\n');
+            }
+        }
+        update.append("All other context files are unchanged.\n");
+        pending = new LinkedHashMap<>(sections);
+        return update.toString();
+    }
+
+    /**
+     * 附加了更新的用户消息已完成一轮问答，之后的差异以它为准。
+     */
+    synchronized void commit() {
+        if (pending != null) {
+            sent = pending;
+            pending = null;
+        }
+    }
+
+    /**
+     * 附加了更新的消息被撤回，下次重新计算差异。
+     */
+    synchronized void discard() {
+        pending = null;
+    }
+
+    /**
+     * 清空对话或压缩历史后调用，下一次请求重新完整发送上下文。
+     */
+    synchronized void reset() {
+        baseline = null;
+        sent = new LinkedHashMap<>();
+        pending = null;
+    }
+
+    /**
+     * 把更新说明放在用户问题之后、自动附加的代码片段之前。
+     */
+    static String attach(String message, String update) {
+        if (update == null || update.isEmpty()) {
+            return message;
+        }
+        String question = RelevanceIndex.stripRelevantCode(message);
+        return question + UPDATE_START + update + UPDATE_END + message.substring(question.length());
+    }
+
+    // 按行比较，输出带少量上下文行的统一差异；文件过大无法比较时返回 null
+    static String unifiedDiff(String path, String before, String after) {
+        String[] oldLines = lines(before);
+        String[] newLines = lines(after);
+        Diff.Change change;
+        try {
+            change = Diff.buildChanges(oldLines, newLines);
+        } catch (FilesTooBigForDiffException e) {
+            return null;
+        }
+        List<Diff.Change> changes = new ArrayList<>();
+        for (; change != null; change = change.link) {
+            changes.add(change);
+        }
+        StringBuilder diff = new StringBuilder("--- ").append(path).append("\n+++ ").append(path).append('\n');
+        int i = 0;
+        while (i < changes.size()) {
+            // 间隔不超过两倍上下文行的改动合并为一个 hunk
+            int j = i;
+            while (j + 1 < changes.size() && changes.get(j + 1).line0 - (changes.get(j).line0 + changes.get(j).deleted) <= 2 * CONTEXT_LINES) {
+                j++;
+            }
+            Diff.Change first = changes.get(i);
+            Diff.Change last = changes.get(j);
+            int oldStart = Math.max(0, first.line0 - CONTEXT_LINES);
+            int oldEnd = Math.min(oldLines.length, last.line0 + last.deleted + CONTEXT_LINES);
+            int newStart = first.line1 - (first.line0 - oldStart);
+            int newEnd = last.line1 + last.inserted + (oldEnd - last.line0 - last.deleted);
+            diff.append("@@ -").append(hunkRange(oldStart, oldEnd)).append(" +").append(hunkRange(newStart, newEnd)).append(" @@\n");
+            int line = oldStart;
+            for (int k = i; k <= j; k++) {
+                Diff.Change c = changes.get(k);
+                for (; line < c.line0; line++) {
+                    diff.append(' ').append(oldLines[line]).append('\n');
+                }
+                for (int d = 0; d < c.deleted; d++) {
+                    diff.append('-').append(oldLines[c.line0 + d]).append('\n');
+                }
+                for (int n = 0; n < c.inserted; n++) {
+                    diff.append('+').append(newLines[c.line1 + n]).append('\n');
+                }
+                line = c.line0 + c.deleted;
+            }
+            for (; line < oldEnd; line++) {
+                diff.append(' ').append(oldLines[line]).append('\n');
+            }
+            i = j + 1;
+        }
+        return diff.toString();
+    }
+
+    // 以换行结尾时最后的空串不是一行；没有以换行结尾的最后一行带上 "\ No newline at end of file"，
+    // 与 diff -u 相同，只有结尾换行不同时也能比较出差异
+    private static String[] lines(String text) {
+        if (text.isEmpty()) {
+            return new String[0];
+        }
+        String[] lines = text.split("\n", -1);
+        if (text.endsWith("\n")) {
+            return Arrays.copyOf(lines, lines.length - 1);
+        }
+        lines[lines.length - 1] += "\n\\ No newline at end of file";
+        return lines;
+    }
+
+    // 行数为 0 时起始行号是范围之前的一行，与 diff -u 相同
+    private static String hunkRange(int start, int end) {
+        return (end == start ? start : start + 1) + "," + (end - start);
+    }
+}
\ No newline at end of file
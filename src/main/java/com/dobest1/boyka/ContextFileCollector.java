@@ -0,0 +1,116 @@
+package com.dobest1.boyka;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vcs.changes.ChangeListManager;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 把项目视图中选中的文件和目录展开为要加入上下文的文件列表。
+ * 目录递归展开，跳过排除的目录、IDE 忽略的文件（例如 .git）、版本控制忽略的文件（.gitignore 等）和二进制文件；
+ * 直接选中的文件总是保留。每个目录在单独的短读操作中列出，遍历大目录时不会长时间阻塞写操作，
+ * 因此不要在读操作中调用；在后台任务中调用时可以取消。
+ */
+final class ContextFileCollector {
+    private final Project project;
+    private final ProjectFileIndex fileIndex;
+    private final ChangeListManager changeListManager;
+    private final List<PathMatcher> includes = new ArrayList<>();
+
+    /**
+     * @param globs 目录中要包含的文件，逗号分隔的 glob，例如 *.java,src/**.kt；不含 / 的只匹配文件名，
+     *              否则匹配相对于所选目录的路径。为空时包含所有文件
+     */
+    ContextFileCollector(Project project, String globs) {
+        this.project = project;
+        this.fileIndex = ProjectFileIndex.getInstance(project);
+        this.changeListManager = ChangeListManager.getInstance(project);
+        if (globs != null) {
+            for (String glob : globs.split(",")) {
+                if (!glob.isBlank()) {
+                    includes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob.trim()));
+                }
+            }
+        }
+    }
+
+    List<String> collect(VirtualFile[] selection) {
+        Set<String> paths = new LinkedHashSet<>();
+        for (VirtualFile selected : selection) {
+            if (!selected.isDirectory()) {
+                paths.add(selected.getPath());
+                continue;
+            }
+            for (VirtualFile file : listFiles(selected)) {
+                if (!file.getFileType().isBinary() && isIncluded(selected, file)) {
+                    paths.add(file.getPath());
+                }
+            }
+        }
+        return new ArrayList<>(paths);
+    }
+
+    /**
+     * 目录下没有被忽略的所有文件，同一目录中的文件在子目录之前。
+     */
+    List<VirtualFile> listFiles(VirtualFile root) {
+        List<VirtualFile> files = new ArrayList<>();
+        Deque<VirtualFile> directories = new ArrayDeque<>();
+        directories.push(root);
+        while (!directories.isEmpty()) {
+            ProgressManager.checkCanceled();
+            VirtualFile directory = directories.pop();
+            List<VirtualFile> subdirectories = new ArrayList<>();
+            ReadAction.run(() -> {
+                if (!directory.isValid() || project.isDisposed()) {
+                    return;
+                }
+                for (VirtualFile child : directory.getChildren()) {
+                    if (isIgnored(child)) {
+                        continue;
+                    }
+                    if (child.isDirectory()) {
+                        subdirectories.add(child);
+                    } else {
+                        files.add(child);
+                    }
+                }
+            });
+            for (int i = subdirectories.size() - 1; i >= 0; i--) {
+                directories.push(subdirectories.get(i));
+            }
+        }
+        return files;
+    }
+
+    private boolean isIgnored(VirtualFile file) {
+        return fileIndex.isExcluded(file) || FileTypeManager.getInstance().isFileIgnored(file) || changeListManager.isIgnoredFile(file);
+    }
+
+    private boolean isIncluded(VirtualFile root, VirtualFile file) {
+        if (includes.isEmpty()) {
+            return true;
+        }
+        String relativePath = VfsUtilCore.getRelativePath(file, root);
+        for (PathMatcher include : includes) {
+            if (include.matches(Paths.get(file.getName())) || relativePath != null && include.matches(Paths.get(relativePath))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
\ No newline at end of file
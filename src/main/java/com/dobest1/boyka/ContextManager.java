@@ -1,29 +1,83 @@
 package com.dobest1.boyka;
 
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 管理加入上下文的文件。文件内容在加入时读取一次，之后由 VFS 事件和文档修改事件驱动，
+ * 只重新读取发生变化的文件，内容确实变化时才发布新的 {@link ContextSnapshot} 并通知；读取上下文时不加锁。
+ * 文件列表和内容哈希保存在 {@link ContextStore} 中，重新打开项目后恢复。编辑产生的新内容先只保存在内存中，
+ * 延迟一段时间或项目关闭时才写入 store，不在每次输入停顿时写入。
+ * 开启符号上下文时只发送各文件的符号大纲，消息中提到的方法和字段再单独附加，见 {@link SymbolChunker}。
+ */
+public class ContextManager implements Disposable {
+    // 连续的修改（例如逐字输入、批量加入文件）合并为一次刷新
+    private static final long REFRESH_DELAY_MS = 300;
+    // 编辑产生的内容延迟写入 store，期间的多次修改只写入最后的内容
+    private static final long PERSIST_DELAY_MS = 30_000;
+    private static final int MAX_REFERENCED_SYMBOLS = 20;
+    // 批量加入文件时读取内容的线程池
+    private static final ExecutorService LOAD_EXECUTOR = AppExecutorUtil.createBoundedApplicationPoolExecutor("BoykaAI Context Loading", 4);
 
-public class ContextManager {
     private final BoykaAISettings settings;
     private final List<String> contextFiles;
     private final List<ContextChangeListener> listeners;
-    private final ConcurrentHashMap<String, String> fileContents;
+    // 工具读写过的文件内容，放在共享的 ContentCache 中，可能被淘汰
+    private final String contentNamespace;
+    // 上下文文件的路径到内容哈希，内容本身在 store 中
+    private final Map<String, String> contextHashes = new ConcurrentHashMap<>();
     private final Project project;
-    private String cachedContext;
-    private long lastUpdateTime;
-    private static final long CACHE_VALIDITY_PERIOD = 5000; // 5 seconds
+    private final ContextStore store;
+    private final Set<String> dirtyFiles = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+    private final AtomicBoolean persistScheduled = new AtomicBoolean();
+    private final Object publishLock = new Object();
+    // 已发布但尚未写入 store 的内容，哈希到内容，在 publishLock 内访问
+    private final Map<String, String> unsavedContents = new HashMap<>();
+    private volatile ContextSnapshot snapshot = ContextSnapshot.EMPTY;
+    private volatile SymbolContext symbolContext;
+
     public static ContextManager getInstance(Project project) {
         return ServiceManager.getService(project,ContextManager.class);
     }
@@ -31,19 +85,126 @@ public class ContextManager {
     public ContextManager(Project project) {
         this.project = project;
         this.contextFiles = new CopyOnWriteArrayList<>();
-        this.listeners = new ArrayList<>();
-        this.fileContents = new ConcurrentHashMap<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.contentNamespace = "context:" + project.getBasePath();
         this.settings = BoykaAISettings.getInstance();
+        this.store = ContextStore.getInstance(project);
+
+        ContextStore.State saved = store.getState();
+        contextFiles.addAll(saved.files);
+        contextHashes.putAll(saved.hashes);
+        snapshot = new ContextSnapshot(store, contextFiles, contextHashes);
+        // 项目关闭期间文件可能被修改过，恢复后重新读取一遍
+        for (String filePath : saved.files) {
+            markDirty(filePath);
+        }
 
+        project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                onFileEvents(events);
+            }
+        });
+        EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentListener() {
+            @Override
+            public void documentChanged(@NotNull DocumentEvent event) {
+                VirtualFile file = FileDocumentManager.getInstance().getFile(event.getDocument());
+                if (file != null && snapshot.contains(file.getPath())) {
+                    markDirty(file.getPath());
+                }
+            }
+        }, this);
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (publishLock) {
+            persist(snapshot);
+        }
+        listeners.clear();
+        ContentCache.getInstance().clear(contentNamespace);
     }
 
     public void addFileToContext(String filePath) {
         if (!contextFiles.contains(filePath)) {
-            contextFiles.add(filePath);
+            // 立即发布并记录文件列表，内容读取失败时文件也在快照和 store 中，仍会响应后续的修改
+            synchronized (publishLock) {
+                if (contextFiles.contains(filePath)) {
+                    return;
+                }
+                contextFiles.add(filePath);
+                saveContext();
+            }
             BoykaAILogger.info("File added to context: " + filePath);
             notifyContextChanged();
         }
-        saveContext();
+        // 文件内容在后台读取，读完后发布新的快照
+        markDirty(filePath);
+    }
+
+    /**
+     * 批量加入文件：先在有界线程池中并行读取内容并写入 store，再把读取成功的文件一次加入列表，
+     * 只发布一次快照并通知一次。无法读取的文件和取消时尚未读取的文件不加入。在后台线程调用，返回实际加入的文件数。
+     */
+    public int addFilesToContext(List<String> filePaths, ProgressIndicator indicator) {
+        List<String> candidates = new ArrayList<>();
+        for (String filePath : new LinkedHashSet<>(filePaths)) {
+            if (!contextFiles.contains(filePath)) {
+                candidates.add(filePath);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+        AtomicInteger done = new AtomicInteger();
+        List<CompletableFuture<String>> hashes = new ArrayList<>();
+        for (String filePath : candidates) {
+            hashes.add(CompletableFuture.supplyAsync(() -> {
+                if (indicator.isCanceled()) {
+                    return null;
+                }
+                String hash = loadAndStore(filePath);
+                indicator.setFraction((double) done.incrementAndGet() / candidates.size());
+                return hash;
+            }, LOAD_EXECUTOR));
+        }
+        List<String> loaded = new ArrayList<>();
+        for (CompletableFuture<String> hash : hashes) {
+            loaded.add(hash.join());
+        }
+        int added = 0;
+        synchronized (publishLock) {
+            for (int i = 0; i < candidates.size(); i++) {
+                String hash = loaded.get(i);
+                // 读取较早的文件的 blob 可能已被当作无人引用删除，重新写入
+                if (hash != null && !store.retain(hash)) {
+                    hash = loadAndStore(candidates.get(i));
+                }
+                if (hash != null && !contextFiles.contains(candidates.get(i))) {
+                    contextHashes.put(candidates.get(i), hash);
+                    contextFiles.add(candidates.get(i));
+                    added++;
+                }
+            }
+            saveContext();
+        }
+        BoykaAILogger.info("Files added to context: " + added + " of " + candidates.size());
+        notifyContextChanged();
+        return added;
+    }
+
+    // 读取文件内容并写入 store，返回内容哈希；无法读取时返回 null
+    private String loadAndStore(String filePath) {
+        String content = loadContent(filePath);
+        if (content == null) {
+            return null;
+        }
+        try {
+            return store.put(content);
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to store context content of " + filePath + ": " + e.getMessage());
+            return null;
+        }
     }
 
     public boolean isFileInContext(String filePath) {
@@ -78,36 +239,75 @@ public class ContextManager {
 
     public void removeFileFromContext(String filePath) {
         contextFiles.remove(filePath);
+        contextHashes.remove(filePath);
         saveContext();
     }
 
+    /**
+     * 发布当前文件列表和内容的新快照，并记录到 {@link ContextStore}。
+     */
     public void saveContext() {
-        BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
-        assert settings != null;
-        settings.projectContexts = getFullContext();
-        BoykaAILogger.info("Context saved: " + settings.projectContexts);
+        ContextSnapshot current;
+        // 并发发布时保证 store 中的记录与最后发布的快照一致
+        synchronized (publishLock) {
+            current = publish();
+            persist(current);
+        }
+        BoykaAILogger.info("Context saved: " + current.getFiles().size() + " files");
     }
 
-    public List<String> searchProjectFiles(String query) {
-        List<String> results = new ArrayList<>();
-        VirtualFile projectDir = ProjectManager.getInstance().getOpenProjects()[0].getBaseDir();
-        if (projectDir == null) {
-            return results;
+    // 在 publishLock 内调用
+    private ContextSnapshot publish() {
+        ContextSnapshot current = new ContextSnapshot(store, contextFiles, contextHashes, unsavedContents);
+        snapshot = current;
+        return current;
+    }
+
+    // 把快照用到的未写入内容写入 store，并记录快照的文件列表和哈希；在 publishLock 内调用
+    private void persist(ContextSnapshot current) {
+        Set<String> referenced = new HashSet<>(current.getHashes().values());
+        unsavedContents.entrySet().removeIf(entry -> !referenced.contains(entry.getKey()) || writeBlob(entry.getValue()));
+        store.update(current.getFiles(), current.getHashes());
+    }
+
+    private boolean writeBlob(String content) {
+        try {
+            store.put(content);
+            return true;
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to store context content: " + e.getMessage());
+            return false;
         }
-        searchFiles(projectDir, query, results);
-        return results;
     }
 
-    private void searchFiles(VirtualFile dir, String query, List<String> results) {
-        for (VirtualFile file : dir.getChildren()) {
-            if (file.isDirectory()) {
-                searchFiles(file, query, results);
-            } else if (file.getName().toLowerCase().contains(query.toLowerCase())) {
-                results.add(file.getPath());
-            }
+    private void schedulePersist() {
+        if (persistScheduled.compareAndSet(false, true)) {
+            AppExecutorUtil.getAppScheduledExecutorService().schedule(this::persistContext, PERSIST_DELAY_MS, TimeUnit.MILLISECONDS);
         }
     }
 
+    private void persistContext() {
+        persistScheduled.set(false);
+        // 项目关闭时已在 dispose 中写入
+        if (project.isDisposed()) {
+            return;
+        }
+        synchronized (publishLock) {
+            persist(snapshot);
+        }
+    }
+
+    public ContextSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * 在本项目中按文件名搜索，结果按匹配程度排序，见 {@link ProjectFileSearch}。
+     */
+    public List<String> searchProjectFiles(String query) {
+        return ProjectFileSearch.search(project, query, ProjectFileSearch.DEFAULT_LIMIT);
+    }
+
     public String addExternalFile(String filePath) {
         Path path = Paths.get(filePath);
         if (path.toFile().exists()) {
@@ -121,46 +321,256 @@ public class ContextManager {
         return null;
     }
 
-    // 在任何更新上下文的方法中调用 invalidateCache()
     public void updateFileContent(String filePath, String content) {
-        fileContents.put(filePath, content);
-        invalidateCache();
+        updateFileContents(Collections.singletonMap(filePath, content));
+    }
+
+    /**
+     * 记录工具读写过的多个文件内容，其中有上下文文件时只发布一次快照。
+     */
+    public void updateFileContents(Map<String, String> contents) {
+        boolean contextChanged = false;
+        for (Map.Entry<String, String> entry : contents.entrySet()) {
+            ContentCache.getInstance().put(contentNamespace, entry.getKey(), entry.getValue());
+            if (snapshot.contains(entry.getKey())) {
+                storeContent(entry.getKey(), entry.getValue());
+                contextChanged = true;
+            }
+        }
+        if (contextChanged) {
+            saveContext();
+        }
     }
 
     public String getFileContent(String filePath) {
-        return fileContents.getOrDefault(filePath, "");
-    }
-
-
-    public synchronized String getFullContext() {
-        long currentTime = System.currentTimeMillis();
-        if (cachedContext == null || (currentTime - lastUpdateTime) > CACHE_VALIDITY_PERIOD) {
-            StringBuilder context = new StringBuilder();
-            for (String filePath : contextFiles) {
-                context.append("File: ").append(filePath).append("\n");
-                String content = fileContents.get(filePath);
-                if (content == null) {
-                    content = readFileContent(filePath);
-                    if (content != null) {
-                        fileContents.put(filePath, content);
-                    }
+        String content = ContentCache.getInstance().get(contentNamespace, filePath);
+        return content != null ? content : "";
+    }
+
+
+    /**
+     * 文件在上下文中占用的 token 数，按当前模型统计，与 {@link #getFullContext()} 中该文件的部分一致。
+     * 可能需要读取文件，不要在 EDT 上调用。
+     */
+    public int getTokenCount(String filePath) {
+        String content = snapshot.getContent(filePath);
+        if (content == null) {
+            content = readFileContent(filePath);
+            if (content == null) {
+                return 0;
+            }
+        }
+        String section = isSymbolContext() ? symbolSection(filePath, content, SymbolChunker.chunk(project, fileName(filePath), content))
+                : "File: " + filePath + "\n" + content + "\n\n";
+        return TokenCounter.getInstance().count(TokenCounter.activeModel(), section);
+    }
+
+    /**
+     * 当前快照的上下文全文。不加锁；全文在快照内缓存，首次读取时从 store 拼接。
+     * 开启符号上下文时返回各文件的符号大纲，同样按快照缓存。
+     */
+    public String getFullContext() {
+        return String.join("", getContextSections().values());
+    }
+
+    /**
+     * 上下文全文按文件拆开的段落，文件路径到该文件的段落，顺序与 {@link #getFullContext()} 一致。
+     */
+    public Map<String, String> getContextSections() {
+        return isSymbolContext() ? getSymbolContext().sections : snapshot.getSections();
+    }
+
+    /**
+     * 上下文文件中被消息提到名称的方法、字段等符号的完整代码，未开启符号上下文时返回空字符串。
+     * 需要解析文件，不要在 EDT 上调用。
+     */
+    public String getReferencedSymbols(String message) {
+        if (!isSymbolContext() || message == null) {
+            return "";
+        }
+        StringBuilder result = new StringBuilder();
+        int count = 0;
+        for (Map.Entry<String, List<SymbolChunker.Symbol>> entry : getSymbolContext().symbols.entrySet()) {
+            for (SymbolChunker.Symbol symbol : SymbolChunker.referencedBy(entry.getValue(), message)) {
+                if (count++ == MAX_REFERENCED_SYMBOLS) {
+                    return result.toString();
+                }
+                result.append("File: ").append(entry.getKey()).append(" (lines ").append(symbol.getStartLine()).append('-')
+                        .append(symbol.getEndLine()).append(")\n").append(symbol.getText()).append("\n\n");
+            }
+        }
+        return result.toString();
+    }
+
+    private boolean isSymbolContext() {
+        BoykaAISettings.State state = settings.getState();
+        return state != null && state.symbolContext;
+    }
+
+    // 符号大纲按快照缓存，快照更换后第一次读取时重新解析
+    private SymbolContext getSymbolContext() {
+        ContextSnapshot current = snapshot;
+        SymbolContext cached = symbolContext;
+        if (cached != null && cached.snapshot == current) {
+            return cached;
+        }
+        Map<String, List<SymbolChunker.Symbol>> symbols = new LinkedHashMap<>();
+        Map<String, String> sections = new LinkedHashMap<>();
+        for (String file : current.getFiles()) {
+            String content = current.getContent(file);
+            if (content == null) {
+                sections.put(file, current.getSections().get(file));
+                continue;
+            }
+            List<SymbolChunker.Symbol> fileSymbols = SymbolChunker.chunk(project, fileName(file), content);
+            symbols.put(file, fileSymbols);
+            sections.put(file, symbolSection(file, content, fileSymbols));
+        }
+        cached = new SymbolContext(current, symbols, Collections.unmodifiableMap(sections));
+        symbolContext = cached;
+        return cached;
+    }
+
+    // 没有符号的文件（例如纯文本或没有结构视图的语言）仍然发送全文
+    private static String symbolSection(String filePath, String content, List<SymbolChunker.Symbol> symbols) {
+        if (symbols.isEmpty()) {
+            return "File: " + filePath + "\n" + content + "\n\n";
+        }
+        return "File: " + filePath + " (outline only, use read_symbol to read a symbol)\n" + SymbolChunker.outline(symbols) + "\n";
+    }
+
+    private static String fileName(String filePath) {
+        return filePath.substring(filePath.lastIndexOf('/') + 1);
+    }
+
+    private static final class SymbolContext {
+        final ContextSnapshot snapshot;
+        final Map<String, List<SymbolChunker.Symbol>> symbols;
+        final Map<String, String> sections;
+
+        SymbolContext(ContextSnapshot snapshot, Map<String, List<SymbolChunker.Symbol>> symbols, Map<String, String> sections) {
+            this.snapshot = snapshot;
+            this.symbols = symbols;
+            this.sections = sections;
+        }
+    }
+
+    // 上下文文件被修改、删除、重建或改名时只刷新对应的文件
+    private void onFileEvents(List<? extends VFileEvent> events) {
+        ContextSnapshot current = snapshot;
+        boolean renamed = false;
+        for (VFileEvent event : events) {
+            String oldPath = null;
+            if (event instanceof VFileMoveEvent) {
+                oldPath = ((VFileMoveEvent) event).getOldPath();
+            } else if (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename()) {
+                oldPath = ((VFilePropertyChangeEvent) event).getOldPath();
+            }
+            if (oldPath != null && current.contains(oldPath)) {
+                int index = contextFiles.indexOf(oldPath);
+                if (index >= 0) {
+                    contextFiles.set(index, event.getPath());
+                    contextHashes.remove(oldPath);
+                    renamed = true;
                 }
-                context.append(content != null ? content : "File content not available").append("\n\n");
+                markDirty(event.getPath());
+            } else if (current.contains(event.getPath())) {
+                markDirty(event.getPath());
             }
-            cachedContext = context.toString();
-            lastUpdateTime = currentTime;
         }
-        return cachedContext;
+        if (renamed) {
+            saveContext();
+            notifyContextChanged();
+        }
     }
 
-    public synchronized void invalidateCache() {
-        cachedContext = null;
+    private void markDirty(String filePath) {
+        dirtyFiles.add(filePath);
+        if (refreshScheduled.compareAndSet(false, true)) {
+            AppExecutorUtil.getAppScheduledExecutorService().schedule(this::refreshDirtyFiles, REFRESH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
     }
 
+    private void refreshDirtyFiles() {
+        refreshScheduled.set(false);
+        List<String> paths = new ArrayList<>(dirtyFiles);
+        dirtyFiles.removeAll(paths);
+        if (project.isDisposed()) {
+            return;
+        }
+        // 读取在锁外进行，文件路径到内容，无法读取时为 null
+        Map<String, String> contents = new LinkedHashMap<>();
+        for (String filePath : paths) {
+            if (contextFiles.contains(filePath)) {
+                contents.put(filePath, loadContent(filePath));
+            }
+        }
+        // 只更新内存中的哈希和快照，内容没有变化（例如保存文档、重新打开项目）时不发布也不通知
+        boolean changed = false;
+        synchronized (publishLock) {
+            for (Map.Entry<String, String> entry : contents.entrySet()) {
+                String filePath = entry.getKey();
+                if (!contextFiles.contains(filePath)) {
+                    continue;
+                }
+                String hash = entry.getValue() != null ? ContextStore.hash(entry.getValue()) : null;
+                String previous = contextHashes.get(filePath);
+                if (Objects.equals(hash, previous)) {
+                    continue;
+                }
+                if (hash != null) {
+                    contextHashes.put(filePath, hash);
+                    unsavedContents.put(hash, entry.getValue());
+                } else {
+                    contextHashes.remove(filePath);
+                }
+                // 连续编辑的中间内容不再需要写入
+                if (previous != null && !contextHashes.containsValue(previous)) {
+                    unsavedContents.remove(previous);
+                }
+                changed = true;
+            }
+            if (changed) {
+                publish();
+            }
+        }
+        if (changed) {
+            schedulePersist();
+            notifyContextChanged();
+        }
+    }
+
+    // 写入 blob 和记录哈希在同一把锁内完成，避免并发发布的快照把刚写入的 blob 当作无人引用而删除
+    private void storeContent(String filePath, String content) {
+        synchronized (publishLock) {
+            try {
+                contextHashes.put(filePath, store.put(content));
+            } catch (IOException e) {
+                BoykaAILogger.warn("Failed to store context content of " + filePath + ": " + e.getMessage());
+                contextHashes.remove(filePath);
+            }
+        }
+    }
 
+    // 文件在编辑器中打开时以文档为准（可能有未保存的修改），否则读取磁盘
+    private String loadContent(String filePath) {
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath);
+        Document document = file != null ? FileDocumentManager.getInstance().getCachedDocument(file) : null;
+        if (document != null) {
+            return ReadAction.compute(document::getText);
+        }
+        return Files.isRegularFile(Paths.get(filePath)) ? readFileContent(filePath) : null;
+    }
+
+
+    // 与文档和 RelevanceIndex 一样按文件自身的编码解码，同一文件从不同途径读取时哈希一致；找不到 VirtualFile 时按 UTF-8
     private String readFileContent(String filePath) {
         try {
-            return new String(Files.readAllBytes(Paths.get(filePath)));
+            VirtualFile file = LocalFileSystem.getInstance().findFileByPath(filePath);
+            if (file != null) {
+                return VfsUtilCore.loadText(file);
+            }
+            return new String(Files.readAllBytes(Paths.get(filePath)), StandardCharsets.UTF_8);
         } catch (IOException e) {
             BoykaAILogger.error("Error reading file: " + filePath, e);
             return null;
@@ -0,0 +1,109 @@
+package com.dobest1.boyka;
+
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 某一时刻上下文文件及其内容的不可变快照。{@link ContextManager} 在文件变化时发布新的快照，
+ * 读取方直接使用当前快照，不需要加锁。快照只记录内容哈希，内容在读取时从 {@link ContextStore} 加载；
+ * 编辑中尚未写入 store 的内容由快照直接持有。
+ */
+public final class ContextSnapshot {
+    static final ContextSnapshot EMPTY = new ContextSnapshot(null, Collections.emptyList(), Collections.emptyMap());
+    private static final String CONTENT_NOT_AVAILABLE = "File content not available";
+
+    private final ContextStore store;
+    private final List<String> files;
+    private final Set<String> fileSet;
+    private final Map<String, String> hashes;
+    // 尚未写入 store 的内容，哈希到内容
+    private final Map<String, String> unsaved;
+    // 各文件的上下文段落在内存紧张时可以回收，回收后下次读取重新从 blob 拼接
+    private volatile SoftReference<Map<String, String>> sections = new SoftReference<>(null);
+
+    ContextSnapshot(ContextStore store, List<String> files, Map<String, String> hashes) {
+        this(store, files, hashes, Collections.emptyMap());
+    }
+
+    /**
+     * @param unsaved 尚未写入 store 的内容，哈希到内容，只保留快照中的文件用到的
+     */
+    ContextSnapshot(ContextStore store, List<String> files, Map<String, String> hashes, Map<String, String> unsaved) {
+        this.store = store;
+        this.files = List.copyOf(files);
+        this.fileSet = new HashSet<>(files);
+        Map<String, String> copy = new HashMap<>();
+        for (String file : this.files) {
+            String hash = hashes.get(file);
+            if (hash != null) {
+                copy.put(file, hash);
+            }
+        }
+        this.hashes = Collections.unmodifiableMap(copy);
+        Map<String, String> contents = new HashMap<>();
+        for (String hash : copy.values()) {
+            String content = unsaved.get(hash);
+            if (content != null) {
+                contents.put(hash, content);
+            }
+        }
+        this.unsaved = contents;
+    }
+
+    public List<String> getFiles() {
+        return files;
+    }
+
+    public boolean contains(String filePath) {
+        return fileSet.contains(filePath);
+    }
+
+    /**
+     * 文件路径到内容哈希的映射，不包括尚未加载或读取失败的文件。
+     */
+    public Map<String, String> getHashes() {
+        return hashes;
+    }
+
+    /**
+     * 文件在快照中的内容，尚未加载或读取失败时返回 null。
+     */
+    public String getContent(String filePath) {
+        String hash = hashes.get(filePath);
+        if (hash == null) {
+            return null;
+        }
+        String content = unsaved.get(hash);
+        return content != null ? content : store.read(hash);
+    }
+
+    /**
+     * 每个文件在上下文中的段落（文件路径加内容），按加入顺序排列。
+     */
+    public Map<String, String> getSections() {
+        Map<String, String> result = sections.get();
+        if (result == null) {
+            Map<String, String> map = new LinkedHashMap<>();
+            for (String file : files) {
+                String content = getContent(file);
+                map.put(file, "File: " + file + "\n" + (content != null ? content : CONTENT_NOT_AVAILABLE) + "\n\n");
+            }
+            result = Collections.unmodifiableMap(map);
+            sections = new SoftReference<>(result);
+        }
+        return result;
+    }
+
+    /**
+     * 所有文件按加入顺序拼接后的上下文文本。
+     */
+    public String getText() {
+        return String.join("", getSections().values());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,214 @@
+package com.dobest1.boyka;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.PersistentStateComponent;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.components.State;
+import com.intellij.openapi.components.Storage;
+import com.intellij.openapi.components.StoragePathMacros;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import okio.ByteString;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 项目级的上下文存储。工作区文件中只保存上下文文件的路径和内容的 SHA-256，
+ * 内容按哈希存放在 IDE 系统目录下该项目的 blob 目录中，需要时通过内存映射读取。
+ * 相同内容只存一份；不再被引用的 blob 过一段时间后删除，旧快照在此期间仍可读取。
+ */
+@State(
+        name = "BoykaAIContext",
+        storages = {@Storage(StoragePathMacros.WORKSPACE_FILE)}
+)
+public class ContextStore implements PersistentStateComponent<ContextStore.State> {
+    private static final long RELEASE_DELAY_MS = 60_000;
+
+    public static class State {
+        /**
+         * 上下文文件路径，按加入顺序
+         */
+        public List<String> files = new ArrayList<>();
+        /**
+         * 路径到内容哈希的映射
+         */
+        public Map<String, String> hashes = new LinkedHashMap<>();
+    }
+
+    private final Path directory;
+    private State myState = new State();
+
+    public static ContextStore getInstance(Project project) {
+        return ServiceManager.getService(project, ContextStore.class);
+    }
+
+    public ContextStore(Project project) {
+        this(Paths.get(PathManager.getSystemPath(), "boyka-ai", "context",
+                project.getName() + "." + Integer.toHexString(String.valueOf(project.getBasePath()).hashCode())));
+    }
+
+    ContextStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized State getState() {
+        return myState;
+    }
+
+    @Override
+    public synchronized void loadState(@NotNull State state) {
+        myState = state;
+        // 清理上次异常退出时遗留的 blob
+        AppExecutorUtil.getAppExecutorService().execute(this::deleteUnreferencedBlobs);
+    }
+
+    /**
+     * 保存内容并返回其哈希，相同内容的 blob 已存在时不再写入，只更新修改时间，
+     * 使它在调用方记录哈希之前不会被当作无人引用的旧 blob 删除。
+     */
+    public String put(String content) throws IOException {
+        ByteString bytes = ByteString.encodeUtf8(content);
+        String hash = hash(bytes);
+        if (!retain(hash)) {
+            Path blob = directory.resolve(hash);
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, hash, ".tmp");
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return hash;
+    }
+
+    /**
+     * 内容的哈希，与 {@link #put} 返回的相同，不写入 blob。
+     */
+    public static String hash(String content) {
+        return hash(ByteString.encodeUtf8(content));
+    }
+
+    private static String hash(ByteString bytes) {
+        return bytes.sha256().hex();
+    }
+
+    /**
+     * 更新已有 blob 的修改时间，之后一段时间内不会被删除；blob 不存在时返回 false。
+     * 与删除在同一把锁内进行，返回 true 时 blob 一定仍然存在。
+     */
+    public synchronized boolean retain(String hash) {
+        try {
+            Files.setLastModifiedTime(directory.resolve(hash), FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 读取哈希对应的内容，blob 不存在或读取失败时返回 null。
+     */
+    public String read(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve(hash), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return "";
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to read context blob " + hash + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 记录当前的上下文文件及其内容哈希，不再被引用的 blob 延迟删除。
+     */
+    public void update(List<String> files, Map<String, String> hashes) {
+        Set<String> released;
+        synchronized (this) {
+            released = new HashSet<>(myState.hashes.values());
+            State state = new State();
+            state.files = new ArrayList<>(files);
+            state.hashes = new LinkedHashMap<>(hashes);
+            myState = state;
+            released.removeAll(hashes.values());
+        }
+        if (!released.isEmpty()) {
+            AppExecutorUtil.getAppScheduledExecutorService().schedule(
+                    () -> deleteUnreferenced(released), RELEASE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void deleteUnreferencedBlobs() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        Set<String> referenced;
+        synchronized (this) {
+            referenced = new HashSet<>(myState.hashes.values());
+        }
+        List<String> unreferenced = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (!referenced.contains(file.getFileName().toString())) {
+                    unreferenced.add(file.getFileName().toString());
+                }
+            }
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to list context blobs in " + directory + ": " + e.getMessage());
+        }
+        deleteUnreferenced(unreferenced);
+    }
+
+    // 删除前再检查一次，期间可能又有路径引用了相同的内容；最近写入或 put 过的 blob 可能属于尚未记录哈希的调用方，暂不删除。
+    // 检查和删除与 retain 在同一把锁内进行
+    private synchronized void deleteUnreferenced(Collection<String> names) {
+        long cutoff = System.currentTimeMillis() - RELEASE_DELAY_MS;
+        Set<String> referenced = new HashSet<>(myState.hashes.values());
+        for (String name : names) {
+            if (!referenced.contains(name)) {
+                deleteBlob(name, cutoff);
+            }
+        }
+    }
+
+    private void deleteBlob(String name, long cutoff) {
+        Path blob = directory.resolve(name);
+        try {
+            if (Files.getLastModifiedTime(blob).toMillis() < cutoff) {
+                Files.delete(blob);
+            }
+        } catch (NoSuchFileException e) {
+            // 已被删除
+        } catch (IOException e) {
+            // Windows 上仍被映射的文件无法删除，留待下次启动时清理
+            BoykaAILogger.debug("Failed to delete context blob " + name + ": " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,187 @@
+package com.dobest1.boyka;
+
+import okhttp3.Headers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 默认的重试策略：
+ * 只重试网络错误、408、409、429、5xx 和 529；优先使用服务端给出的 retry-after / 限流重置时间，
+ * 否则使用带完全抖动（full jitter）的指数退避，避免多个 IDE 在同一时刻集中重试。
+ */
+public class DefaultRetryPolicy implements RetryPolicy {
+    private static final Pattern GO_DURATION = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+    private static final String[] ANTHROPIC_RESET_HEADERS = {
+            "anthropic-ratelimit-requests-reset",
+            "anthropic-ratelimit-tokens-reset",
+            "anthropic-ratelimit-input-tokens-reset",
+            "anthropic-ratelimit-output-tokens-reset"
+    };
+    private static final String[] OPENAI_RESET_HEADERS = {
+            "x-ratelimit-reset-requests",
+            "x-ratelimit-reset-tokens"
+    };
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxBackoffMillis;
+    private final long maxServerDelayMillis;
+    // 计算 HTTP 日期和限流重置时间距现在的等待时间
+    private final Clock clock;
+
+    public DefaultRetryPolicy() {
+        this(3, 1000, 30_000, 60_000);
+    }
+
+    /**
+     * @param maxAttempts          最多尝试次数（包括第一次）
+     * @param baseDelayMillis      指数退避的基数
+     * @param maxBackoffMillis     指数退避的上限
+     * @param maxServerDelayMillis 服务端要求的等待超过此值时直接失败，不再重试
+     */
+    public DefaultRetryPolicy(int maxAttempts, long baseDelayMillis, long maxBackoffMillis, long maxServerDelayMillis) {
+        this(maxAttempts, baseDelayMillis, maxBackoffMillis, maxServerDelayMillis, Clock.systemUTC());
+    }
+
+    DefaultRetryPolicy(int maxAttempts, long baseDelayMillis, long maxBackoffMillis, long maxServerDelayMillis, Clock clock) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxServerDelayMillis = maxServerDelayMillis;
+        this.clock = clock;
+    }
+
+    @Override
+    public long nextDelayMillis(int attempt, int statusCode, Headers headers, IOException error) {
+        if (attempt + 1 >= maxAttempts || !isRetryable(statusCode, error)) {
+            return -1;
+        }
+        long serverDelay = headers != null ? serverDelayMillis(statusCode, headers) : -1;
+        if (serverDelay >= 0) {
+            return serverDelay <= maxServerDelayMillis ? serverDelay : -1;
+        }
+        long ceiling = Math.min(maxBackoffMillis, baseDelayMillis << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    @Override
+    public boolean isEndpointFailure(int statusCode, IOException error) {
+        if (statusCode < 0) {
+            return !isCancellation(error);
+        }
+        return statusCode >= 500;
+    }
+
+    protected boolean isRetryable(int statusCode, IOException error) {
+        if (statusCode < 0) {
+            return error != null && !(error instanceof BoykaAIHttpService.PartialResponseException) && !isCancellation(error);
+        }
+        return statusCode == 408 || statusCode == 409 || statusCode == 429 || statusCode >= 500;
+    }
+
+    private static boolean isCancellation(IOException error) {
+        return error instanceof InterruptedIOException && "Canceled".equals(error.getMessage());
+    }
+
+    /**
+     * 解析服务端的退避提示，没有时返回 -1。限流重置时间只在 429 时使用。
+     */
+    long serverDelayMillis(int statusCode, Headers headers) {
+        Instant now = clock.instant();
+        String retryAfterMs = headers.get("retry-after-ms");
+        if (retryAfterMs != null) {
+            try {
+                return Math.max(0, (long) Double.parseDouble(retryAfterMs.trim()));
+            } catch (NumberFormatException ignored) {
+                // 继续尝试其他响应头
+            }
+        }
+        String retryAfter = headers.get("retry-after");
+        if (retryAfter != null) {
+            long delay = parseRetryAfter(retryAfter.trim(), now);
+            if (delay >= 0) {
+                return delay;
+            }
+        }
+        if (statusCode != 429) {
+            return -1;
+        }
+        long delay = -1;
+        for (String name : ANTHROPIC_RESET_HEADERS) {
+            String value = headers.get(name);
+            if (value != null) {
+                delay = Math.max(delay, untilInstant(value.trim(), now));
+            }
+        }
+        for (String name : OPENAI_RESET_HEADERS) {
+            String value = headers.get(name);
+            if (value != null) {
+                delay = Math.max(delay, parseGoDuration(value.trim()));
+            }
+        }
+        return delay;
+    }
+
+    // retry-after 可以是秒数，也可以是 HTTP 日期
+    private static long parseRetryAfter(String value, Instant now) {
+        try {
+            return Math.max(0, (long) (Double.parseDouble(value) * 1000));
+        } catch (NumberFormatException ignored) {
+            // 不是秒数
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(now, date.toInstant()).toMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    // anthropic-ratelimit-*-reset 是 RFC 3339 时间戳
+    private static long untilInstant(String value, Instant now) {
+        try {
+            return Math.max(0, Duration.between(now, Instant.parse(value)).toMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    // x-ratelimit-reset-* 形如 "1s"、"6m0s"、"250ms"
+    private static long parseGoDuration(String value) {
+        Matcher matcher = GO_DURATION.matcher(value);
+        double millis = 0;
+        int end = 0;
+        while (matcher.find()) {
+            if (matcher.start() != end) {
+                return -1;
+            }
+            end = matcher.end();
+            double amount = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "h":
+                    millis += amount * 3_600_000;
+                    break;
+                case "m":
+                    millis += amount * 60_000;
+                    break;
+                case "s":
+                    millis += amount * 1000;
+                    break;
+                default:
+                    millis += amount;
+                    break;
+            }
+        }
+        return end == value.length() && end > 0 ? (long) millis : -1;
+    }
+}
\ No newline at end of file
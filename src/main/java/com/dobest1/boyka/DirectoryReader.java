@@ -0,0 +1,148 @@
+package com.dobest1.boyka;
+
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.UnknownFileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * 读取目录下的文本文件，每读完一个文件就交给调用方，不把整个目录读入内存。
+ * 跳过排除的目录和忽略的文件（规则与 {@link ContextFileCollector} 相同）以及二进制文件：
+ * 已知的二进制类型直接跳过，类型未知的文件检查开头是否有空字节。
+ * 文件在线程池中并行读取，仍按路径顺序交付；总字节数有预算，用完后不再读取。
+ */
+final class DirectoryReader {
+    private static final int MAX_FILE_BYTES = 200_000;
+    private static final int SNIFF_BYTES = 8192;
+    // 同时在读取或等待交付的文件数，限制占用的内存
+    private static final int READ_AHEAD = 8;
+    private static final byte[] BINARY = new byte[0];
+
+    private final Project project;
+    private final ExecutorService executor;
+    private final long byteBudget;
+
+    DirectoryReader(Project project, ExecutorService executor, long byteBudget) {
+        this.project = project;
+        this.executor = executor;
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * 读取 root 下的文件，每个文件以 "File: label/相对路径" 开头交给 consumer。
+     *
+     * @return 读取结果的摘要，包括跳过、截断和因预算用完未读取的文件数
+     */
+    String read(VirtualFile root, String label, Consumer<String> consumer) {
+        List<VirtualFile> files = new ArrayList<>();
+        for (VirtualFile file : new ContextFileCollector(project, null).listFiles(root)) {
+            if (!isKnownBinary(file.getFileType())) {
+                files.add(file);
+            }
+        }
+
+        Deque<PendingRead> pending = new ArrayDeque<>();
+        long reserved = 0;
+        int next = 0;
+        int read = 0;
+        int skipped = 0;
+        int truncated = 0;
+        long bytes = 0;
+        while (true) {
+            // 按文件大小预留预算后提交读取，实际读到的少于预留时在交付后退回
+            while (next < files.size() && pending.size() < READ_AHEAD && reserved < byteBudget) {
+                VirtualFile file = files.get(next++);
+                int limit = (int) Math.min(MAX_FILE_BYTES, byteBudget - reserved);
+                long reservation = Math.min(file.getLength(), limit);
+                reserved += reservation;
+                pending.add(new PendingRead(file, reservation, CompletableFuture.supplyAsync(() -> readPrefix(file, limit), executor)));
+            }
+            PendingRead current = pending.poll();
+            if (current == null) {
+                break;
+            }
+            byte[] content = current.content.join();
+            if (content == null || content == BINARY) {
+                reserved -= current.reservation;
+                skipped++;
+                continue;
+            }
+            reserved -= current.reservation - content.length;
+            String path = label + "/" + VfsUtilCore.getRelativePath(current.file, root);
+            String text = new String(content, charset(current.file));
+            if (current.file.getLength() > current.reservation && content.length >= current.reservation) {
+                int end = text.lastIndexOf('\n');
+                text = (end > 0 ? text.substring(0, end + 1) : text) + "\n[truncated: showing the first "
+                        + content.length + " of " + current.file.getLength() + " bytes]";
+                truncated++;
+            }
+            consumer.accept("File: " + path + "\n" + text);
+            read++;
+            bytes += content.length;
+        }
+
+        StringBuilder summary = new StringBuilder("Read ").append(read).append(" files (").append(bytes).append(" bytes) under ").append(label);
+        if (skipped > 0) {
+            summary.append("; skipped ").append(skipped).append(" binary or unreadable files");
+        }
+        if (truncated > 0) {
+            summary.append("; truncated ").append(truncated).append(" large files");
+        }
+        if (next < files.size()) {
+            summary.append("; ").append(files.size() - next).append(" more files were not read because the limit of ")
+                    .append(byteBudget).append(" bytes was reached, read a subdirectory or use read_multiple_files for them");
+        }
+        return summary.append('.').toString();
+    }
+
+    // 类型未知的文件不能按类型判断，交给读取时检查内容
+    private static boolean isKnownBinary(FileType fileType) {
+        return fileType != null && fileType.isBinary() && !(fileType instanceof UnknownFileType);
+    }
+
+    private static Charset charset(VirtualFile file) {
+        return file.getCharset() != null ? file.getCharset() : Charset.defaultCharset();
+    }
+
+    // 读取文件开头不超过 limit 字节；开头有空字节时视为二进制文件，返回 BINARY；读取失败返回 null
+    private static byte[] readPrefix(VirtualFile file, int limit) {
+        try (InputStream in = Files.newInputStream(Paths.get(file.getPath()))) {
+            byte[] content = in.readNBytes(limit);
+            for (int i = 0; i < Math.min(content.length, SNIFF_BYTES); i++) {
+                if (content[i] == 0) {
+                    return BINARY;
+                }
+            }
+            return content;
+        } catch (IOException e) {
+            BoykaAILogger.debug("Failed to read " + file.getPath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static final class PendingRead {
+        final VirtualFile file;
+        final long reservation;
+        final CompletableFuture<byte[]> content;
+
+        PendingRead(VirtualFile file, long reservation, CompletableFuture<byte[]> content) {
+            this.file = file;
+            this.reservation = reservation;
+            this.content = content;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package com.dobest1.boyka;
+
+import java.util.Arrays;
+
+/**
+ * 单个端点最近一段时间的延迟和错误率。延迟是从发出请求到收到响应头的时间，
+ * 流式请求即首包时间；只保留最近的若干个样本，用于路由和对冲请求的阈值判断。
+ */
+public class EndpointStats {
+    private static final int LATENCY_SAMPLES = 64;
+    private static final int OUTCOME_SAMPLES = 32;
+
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private final boolean[] failures = new boolean[OUTCOME_SAMPLES];
+    private int latencyCount;
+    private int latencyNext;
+    private int outcomeCount;
+    private int outcomeNext;
+
+    public synchronized void recordSuccess(long latencyMillis) {
+        latencies[latencyNext] = latencyMillis;
+        latencyNext = (latencyNext + 1) % LATENCY_SAMPLES;
+        latencyCount = Math.min(latencyCount + 1, LATENCY_SAMPLES);
+        recordOutcome(false);
+    }
+
+    public synchronized void recordFailure() {
+        recordOutcome(true);
+    }
+
+    private void recordOutcome(boolean failed) {
+        failures[outcomeNext] = failed;
+        outcomeNext = (outcomeNext + 1) % OUTCOME_SAMPLES;
+        outcomeCount = Math.min(outcomeCount + 1, OUTCOME_SAMPLES);
+    }
+
+    /**
+     * 延迟分位数（毫秒），没有样本时返回 -1。
+     */
+    public synchronized long percentile(double quantile) {
+        if (latencyCount == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(quantile * latencyCount) - 1;
+        return sorted[Math.max(0, Math.min(index, latencyCount - 1))];
+    }
+
+    public long p50() {
+        return percentile(0.5);
+    }
+
+    public long p95() {
+        return percentile(0.95);
+    }
+
+    public synchronized double errorRate() {
+        if (outcomeCount == 0) {
+            return 0;
+        }
+        int failed = 0;
+        for (int i = 0; i < outcomeCount; i++) {
+            if (failures[i]) {
+                failed++;
+            }
+        }
+        return (double) failed / outcomeCount;
+    }
+
+    public synchronized int getSampleCount() {
+        return outcomeCount;
+    }
+
+    public synchronized int getLatencySampleCount() {
+        return latencyCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (outcomeCount == 0) {
+            return "no requests yet";
+        }
+        return "p50 " + p50() + " ms, p95 " + p95() + " ms, errors " + Math.round(errorRate() * 100) + "% of " + outcomeCount;
+    }
+}
\ No newline at end of file
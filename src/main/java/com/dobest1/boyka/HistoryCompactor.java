@@ -0,0 +1,245 @@
+package com.dobest1.boyka;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * 按 token 预算压缩对话历史。历史以“一轮问答”为单位处理：一轮从用户输入的文本消息开始，
+ * 包括其后的助手回答、工具调用和工具结果。最近 N 轮始终原样保留；超出预算时：
+ * <ol>
+ *     <li>较早轮次中的大段工具结果和工具参数替换为占位文本，tool_use / tool_result 的配对关系不变；</li>
+ *     <li>仍超出预算时，从最早的轮次开始整轮移除，并把每轮的要点追加到摘要中，摘要由客户端放入系统提示。</li>
+ * </ol>
+ * 消息的具体结构由各客户端通过 {@link Adapter} 提供。
+ */
+public class HistoryCompactor<M> {
+    private static final int STUB_THRESHOLD_CHARS = 256;
+    private static final int STUB_PREVIEW_CHARS = 120;
+    private static final int SUMMARY_USER_CHARS = 200;
+    private static final int SUMMARY_ASSISTANT_CHARS = 300;
+    private static final int MAX_SUMMARY_CHARS = 8000;
+    private static final String SUMMARY_HEADER = "Summary of earlier turns in this conversation (removed to save context):\n";
+
+    public interface Adapter<M> {
+        /**
+         * 估算单条消息序列化后的 token 数。
+         */
+        int estimateTokens(M message);
+
+        /**
+         * 是否是用户输入的文本消息，即一轮问答的开始。工具结果不算。
+         */
+        boolean isUserText(M message);
+
+        /**
+         * 返回大段工具结果和工具参数被替换为占位文本、用户消息去掉自动附加的代码片段后的消息，无需压缩时返回原对象。
+         */
+        M stub(M message);
+
+        /**
+         * 消息中的纯文本部分。
+         */
+        String text(M message);
+
+        /**
+         * 消息中调用的工具名。
+         */
+        List<String> toolNames(M message);
+    }
+
+    private final Adapter<M> adapter;
+    private final Map<M, Integer> tokenCache = new WeakHashMap<>();
+    private final List<String> summaryLines = new ArrayList<>();
+
+    public HistoryCompactor(Adapter<M> adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * 就地压缩历史，返回是否有改动。
+     *
+     * @param tokenBudget   历史和摘要合计的 token 上限，0 表示不限制
+     * @param keepExchanges 原样保留的最近轮数
+     */
+    public synchronized boolean compact(List<M> history, int tokenBudget, int keepExchanges) {
+        if (tokenBudget <= 0) {
+            return false;
+        }
+        long total = totalTokens(history);
+        if (total <= tokenBudget) {
+            return false;
+        }
+        long before = total;
+        int keepFrom = keepFrom(history, Math.max(1, keepExchanges));
+
+        for (int i = 0; i < keepFrom && total > tokenBudget; i++) {
+            M message = history.get(i);
+            M stubbed = adapter.stub(message);
+            if (stubbed != message) {
+                total += tokens(stubbed) - tokens(message);
+                history.set(i, stubbed);
+            }
+        }
+
+        int dropped = 0;
+        while (total > tokenBudget && keepFrom > 0) {
+            int end = nextExchangeStart(history, 0);
+            if (end <= 0 || end > keepFrom) {
+                end = keepFrom;
+            }
+            List<M> exchange = history.subList(0, end);
+            long summaryBefore = TokenEstimator.estimate(getSummaryText());
+            summarize(exchange);
+            for (M message : exchange) {
+                total -= tokens(message);
+            }
+            total += TokenEstimator.estimate(getSummaryText()) - summaryBefore;
+            exchange.clear();
+            keepFrom -= end;
+            dropped++;
+        }
+
+        BoykaAILogger.info("Compacted conversation history from ~" + before + " to ~" + total + " tokens"
+                + (dropped > 0 ? ", summarized " + dropped + " earlier exchange(s)" : ""));
+        return true;
+    }
+
+    /**
+     * 被移除轮次的摘要（带标题），供客户端放入系统提示；没有时返回 null。
+     */
+    public synchronized String getSummary() {
+        return summaryLines.isEmpty() ? null : SUMMARY_HEADER + getSummaryText();
+    }
+
+    public synchronized void reset() {
+        summaryLines.clear();
+        tokenCache.clear();
+    }
+
+    private String getSummaryText() {
+        return String.join("\n", summaryLines);
+    }
+
+    private long totalTokens(List<M> history) {
+        long total = TokenEstimator.estimate(getSummaryText());
+        for (M message : history) {
+            total += tokens(message);
+        }
+        return total;
+    }
+
+    private int tokens(M message) {
+        return tokenCache.computeIfAbsent(message, adapter::estimateTokens);
+    }
+
+    // 倒数第 keepExchanges 轮的起始位置；轮数不足时返回 0
+    private int keepFrom(List<M> history, int keepExchanges) {
+        int found = 0;
+        for (int i = history.size() - 1; i >= 0; i--) {
+            if (adapter.isUserText(history.get(i)) && ++found == keepExchanges) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private int nextExchangeStart(List<M> history, int from) {
+        for (int i = from + 1; i < history.size(); i++) {
+            if (adapter.isUserText(history.get(i))) {
+                return i;
+            }
+        }
+        return history.size();
+    }
+
+    private void summarize(List<M> exchange) {
+        String user = null;
+        String answer = null;
+        Set<String> tools = new LinkedHashSet<>();
+        for (M message : exchange) {
+            String text = adapter.text(message);
+            if (user == null && adapter.isUserText(message)) {
+                user = text;
+            } else if (text != null && !text.isBlank()) {
+                answer = text;
+            }
+            tools.addAll(adapter.toolNames(message));
+        }
+        StringBuilder line = new StringBuilder("- User: ").append(abbreviate(user, SUMMARY_USER_CHARS));
+        if (!tools.isEmpty()) {
+            line.append(" | Tools: ").append(String.join(", ", tools));
+        }
+        if (answer != null) {
+            line.append(" | Assistant: ").append(abbreviate(answer, SUMMARY_ASSISTANT_CHARS));
+        }
+        summaryLines.add(line.toString());
+        // 摘要本身也有上限，超出时丢弃最早的条目
+        int length = getSummaryText().length();
+        while (length > MAX_SUMMARY_CHARS && summaryLines.size() > 1) {
+            length -= summaryLines.remove(0).length() + 1;
+        }
+    }
+
+    private static String abbreviate(String text, int maxChars) {
+        if (text == null) {
+            return "";
+        }
+        String singleLine = text.replaceAll("\\s+", " ").trim();
+        return singleLine.length() <= maxChars ? singleLine : singleLine.substring(0, maxChars) + "…";
+    }
+
+    /**
+     * 超过阈值的文本替换为开头预览加省略说明，短文本原样返回。
+     */
+    public static String stubText(String text) {
+        if (text == null || text.length() <= STUB_THRESHOLD_CHARS) {
+            return text;
+        }
+        return text.substring(0, STUB_PREVIEW_CHARS) + "… [" + (text.length() - STUB_PREVIEW_CHARS)
+                + " chars omitted from earlier in the conversation]";
+    }
+
+    /**
+     * 返回把其中的长字符串替换为占位文本后的副本，没有长字符串时返回原对象。
+     */
+    public static JsonElement stubLargeStrings(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return element;
+        }
+        if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isString()) {
+                String stubbed = stubText(primitive.getAsString());
+                return stubbed.equals(primitive.getAsString()) ? element : new JsonPrimitive(stubbed);
+            }
+            return element;
+        }
+        if (element.isJsonArray()) {
+            JsonArray copy = new JsonArray();
+            boolean changed = false;
+            for (JsonElement item : element.getAsJsonArray()) {
+                JsonElement stubbed = stubLargeStrings(item);
+                changed |= stubbed != item;
+                copy.add(stubbed);
+            }
+            return changed ? copy : element;
+        }
+        JsonObject copy = new JsonObject();
+        boolean changed = false;
+        for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+            JsonElement stubbed = stubLargeStrings(entry.getValue());
+            changed |= stubbed != entry.getValue();
+            copy.add(entry.getKey(), stubbed);
+        }
+        return changed ? copy : element;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+package com.dobest1.boyka;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 发送时才序列化的 JSON 请求体。内容由 {@link Content} 通过 JsonWriter 直接写入 OkHttp 的 BufferedSink，
+ * 不会先构建 JsonObject 树再转换成字符串，请求体的内存占用不随对话历史的长度增长。
+ * 请求重试时会重新调用 Content，因此 Content 只能读取不会再变化的数据。
+ */
+public class JsonRequestBody extends RequestBody {
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private final Content content;
+    private final String summary;
+    private int inputTokens = -1;
+
+    public interface Content {
+        void writeTo(JsonWriter writer) throws IOException;
+    }
+
+    /**
+     * @param summary 写入日志的简要描述，代替完整的请求体
+     */
+    public JsonRequestBody(Content content, String summary) {
+        this.content = content;
+        this.summary = summary;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public void writeTo(@NotNull BufferedSink sink) throws IOException {
+        // 不关闭 writer，sink 由 OkHttp 负责关闭
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8));
+        content.writeTo(writer);
+        writer.flush();
+    }
+
+    /**
+     * 把整个请求体序列化为字符串，仅用于调试。
+     */
+    public String toJsonString() {
+        Buffer buffer = new Buffer();
+        try {
+            writeTo(buffer);
+        } catch (IOException e) {
+            // 写入内存缓冲区不会发生 I/O 错误
+            throw new UncheckedIOException(e);
+        }
+        return buffer.readUtf8();
+    }
+
+    public String getSummary() {
+        return summary;
+    }
+
+    /**
+     * 发送前本地统计的输入 token 数，未统计时为 -1。
+     */
+    public int getInputTokens() {
+        return inputTokens;
+    }
+
+    public JsonRequestBody inputTokens(int inputTokens) {
+        this.inputTokens = inputTokens;
+        return this;
+    }
+
+    /**
+     * 写入一个已经构建好的小型 JsonElement，例如工具定义或工具调用参数。
+     */
+    static void writeElement(JsonWriter writer, JsonElement element) {
+        GSON.toJson(element, writer);
+    }
+}
\ No newline at end of file
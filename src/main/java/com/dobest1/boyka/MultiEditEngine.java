@@ -0,0 +1,115 @@
+package com.dobest1.boyka;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 把一组 SEARCH/REPLACE 编辑一次应用到文件内容上。所有 SEARCH 都在原始内容中定位，
+ * 后面的编辑不会匹配到前面编辑替换出的文本；定位完成后按位置顺序一次拼出结果，不为每个编辑复制整个文件。
+ * 不能确定位置的编辑不应用，原因记录在结果中：找不到、出现多处（内容相同的多个编辑按出现顺序各取一处）、
+ * 与其他编辑的范围重叠。
+ */
+final class MultiEditEngine {
+
+    private MultiEditEngine() {
+    }
+
+    static final class Result {
+        final String content;
+        final int applied;
+        // 未应用的编辑，每项包含编号、原因和 SEARCH 内容
+        final List<String> failures;
+
+        Result(String content, int applied, List<String> failures) {
+            this.content = content;
+            this.applied = applied;
+            this.failures = failures;
+        }
+    }
+
+    /**
+     * @param searches     各编辑的 SEARCH 内容，为空表示插入到文件开头
+     * @param replacements 与 searches 一一对应的 REPLACE 内容
+     */
+    static Result apply(String original, List<String> searches, List<String> replacements) {
+        // 编号到未应用的原因，按编号排序
+        Map<Integer, String> failures = new TreeMap<>();
+        // 内容相同的 SEARCH 放在一起定位
+        Map<String, List<Integer>> editsBySearch = new LinkedHashMap<>();
+        for (int i = 0; i < searches.size(); i++) {
+            editsBySearch.computeIfAbsent(searches.get(i), s -> new ArrayList<>()).add(i);
+        }
+        List<Match> matches = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> entry : editsBySearch.entrySet()) {
+            String search = entry.getKey();
+            List<Integer> edits = entry.getValue();
+            if (search.isEmpty()) {
+                for (int edit : edits) {
+                    matches.add(new Match(edit, 0, 0));
+                }
+                continue;
+            }
+            // 只需要知道出现次数是否与编辑数相同，多找一处即可判断
+            List<Integer> occurrences = new ArrayList<>();
+            for (int from = original.indexOf(search); from >= 0 && occurrences.size() <= edits.size(); from = original.indexOf(search, from + 1)) {
+                occurrences.add(from);
+            }
+            if (occurrences.size() == edits.size()) {
+                for (int k = 0; k < edits.size(); k++) {
+                    matches.add(new Match(edits.get(k), occurrences.get(k), occurrences.get(k) + search.length()));
+                }
+            } else {
+                String reason = occurrences.isEmpty() ? "content not found"
+                        : "matches " + (occurrences.size() > edits.size() ? "more than " + edits.size() : String.valueOf(occurrences.size()))
+                        + " places, include more surrounding lines to make it unique";
+                for (int edit : edits) {
+                    failures.put(edit, failure(edit, reason, search));
+                }
+            }
+        }
+
+        // 按位置排序，插入排在同一位置的替换之前；与前一个已接受的编辑重叠的不应用
+        matches.sort(Comparator.<Match>comparingInt(match -> match.start).thenComparingInt(match -> match.end)
+                .thenComparingInt(match -> match.edit));
+        List<Match> accepted = new ArrayList<>();
+        int length = original.length();
+        for (Match match : matches) {
+            Match previous = accepted.isEmpty() ? null : accepted.get(accepted.size() - 1);
+            if (previous != null && match.start < previous.end) {
+                failures.put(match.edit, failure(match.edit, "overlaps edit " + (previous.edit + 1), searches.get(match.edit)));
+                continue;
+            }
+            accepted.add(match);
+            length += replacements.get(match.edit).length() - (match.end - match.start);
+        }
+
+        StringBuilder edited = new StringBuilder(Math.max(length, 0));
+        int copied = 0;
+        for (Match match : accepted) {
+            edited.append(original, copied, match.start).append(replacements.get(match.edit));
+            copied = match.end;
+        }
+        edited.append(original, copied, original.length());
+        return new Result(edited.toString(), accepted.size(), new ArrayList<>(failures.values()));
+    }
+
+    private static String failure(int edit, String reason, String search) {
+        return "Edit " + (edit + 1) + " (" + reason + "): " + search;
+    }
+
+    private static final class Match {
+        final int edit;
+        final int start;
+        final int end;
+
+        Match(int edit, int start, int end) {
+            this.edit = edit;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
\ No newline at end of file
@@ -1,16 +1,25 @@
 package com.dobest1.boyka;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import okhttp3.*;
+import okio.BufferedSource;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
 
-public class OpenAIClient {
+public class OpenAIClient implements ChatClient {
     private static final Gson gson = new Gson();
     private final OkHttpClient httpClient;
     private final String apiKey;
@@ -19,11 +28,71 @@ public class OpenAIClient {
     private final OpenAIConfig config;
     private final String BASE_SYSTEM_PROMPT;
     private final ToolExecutor toolExecutor;
-    private static final int MAX_RETRIES = 3;
     private static final int MAX_RECURSION_DEPTH = 20;
 
+    private final TokenUsage sessionUsage = new TokenUsage();
+    private final RequestTokenCounter requestTokens;
+    private final HistoryCompactor<Message> historyCompactor;
+    private final ContextDiffTracker contextTracker = new ContextDiffTracker();
+
+    @Override
+    public String getName() {
+        return "OpenAI";
+    }
+
+    @Override
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    @Override
+    public int getHistorySize() {
+        return conversationHistory.size();
+    }
+
+    @Override
+    public void truncateHistory(int size) {
+        while (conversationHistory.size() > size) {
+            conversationHistory.remove(conversationHistory.size() - 1);
+        }
+        contextTracker.discard();
+    }
+
+    @Override
+    public void appendExchange(String userMessage, String assistantMessage) {
+        if (userMessage == null || userMessage.isEmpty() || assistantMessage == null || assistantMessage.isEmpty()) {
+            return;
+        }
+        conversationHistory.add(new Message("user", userMessage));
+        conversationHistory.add(new Message("assistant", assistantMessage));
+        compactHistory();
+    }
+
+    /**
+     * 历史超出 token 预算时压缩较早的轮次。只在一轮问答完成后和工具调用轮次之间调用，
+     * 发送新问题时不调用，以免打乱 {@link ProviderRouter} 记录的历史长度。
+     */
+    private void compactHistory() {
+        if (historyCompactor.compact(conversationHistory, config.getHistoryTokenBudget(), config.getHistoryKeepExchanges())) {
+            // 被压缩掉的消息里可能有上下文差异，下一次请求重新完整发送上下文
+            contextTracker.reset();
+        }
+    }
+
+    @Override
     public void clearConversationHistory() {
         this.conversationHistory.clear();
+        this.historyCompactor.reset();
+        this.contextTracker.reset();
+        this.sessionUsage.reset();
+    }
+
+    /**
+     * 自上次清空对话以来累计的 token 用量，cache read 对应 OpenAI 自动前缀缓存命中的部分。
+     */
+    @Override
+    public TokenUsage getSessionUsage() {
+        return sessionUsage.snapshot();
     }
 
     public OpenAIClient(OpenAIConfig config, String prompt, ToolExecutor toolExecutor) {
@@ -32,12 +101,11 @@ public class OpenAIClient {
         this.apiUrl = config.getApiUrl();
         this.toolExecutor = toolExecutor;
 
-        this.httpClient = new OkHttpClient.Builder()
-                .connectTimeout(config.getConnectionTimeout(), TimeUnit.SECONDS)
-                .readTimeout(config.getReadTimeout(), TimeUnit.SECONDS)
-                .writeTimeout(config.getWriteTimeout(), TimeUnit.SECONDS)
-                .build();
+        this.httpClient = BoykaAIHttpService.getInstance().getClient(
+                config.getConnectionTimeout(), config.getReadTimeout(), config.getWriteTimeout());
         this.conversationHistory = new ArrayList<>();
+        this.requestTokens = new RequestTokenCounter(config.getModel());
+        this.historyCompactor = new HistoryCompactor<>(new HistoryAdapter(requestTokens));
         this.BASE_SYSTEM_PROMPT = prompt;
 
     }
@@ -47,138 +115,372 @@ public class OpenAIClient {
     }
 
     public String sendMessage(String userMessage, List<Tool> availableTools) throws IOException {
-        JsonObject requestBody = buildRequestBody(userMessage, availableTools);
-        AIOpenAIResponse openAIResponse = sendRequest(requestBody);
-        return processOpenAIResponse(openAIResponse, availableTools, 0);
+        return sendMessage(userMessage, availableTools, null);
     }
 
-    public String sendMessageNoHistory(String systemPrompt, String userMessage, String context, List<Tool> availableTools) throws IOException {
-        JsonObject requestBody = buildRequestBody(systemPrompt, userMessage, context, availableTools);
-        AIOpenAIResponse openAIResponse = sendRequest(requestBody);
-        return processOpenAIResponse(openAIResponse, availableTools, 0);
+    public String sendMessage(String userMessage, List<Tool> availableTools, StreamListener listener) throws IOException {
+        return sendMessageAsync(userMessage, availableTools, listener).await();
     }
 
-    private JsonObject buildRequestBody(String userMessage, List<Tool> availableTools) {
-        JsonObject requestBody = new JsonObject();
-        requestBody.addProperty("model", config.getModel());
-        requestBody.addProperty("max_tokens", config.getMaxTokens());
+    /**
+     * 异步发送消息，包括后续的工具调用轮次。取消返回的 CallFuture 会中断正在进行的请求。
+     */
+    @Override
+    public CallFuture<String> sendMessageAsync(String userMessage, List<Tool> availableTools, StreamListener listener) {
+        return sendMessageAsync(userMessage, availableTools, listener, new CallFuture<>());
+    }
 
-        JsonArray messages = new JsonArray();
-        Message systemMessage = new Message("system", BASE_SYSTEM_PROMPT);
-        BoykaAISettings.State Settings = BoykaAISettings.getInstance().getState();
+    @Override
+    public CallFuture<String> sendMessageAsync(String userMessage, List<Tool> availableTools, StreamListener listener,
+                                               CallFuture<String> result) {
+        JsonRequestBody requestBody;
+        try {
+            requestBody = buildRequestBody(userMessage, availableTools);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        result.completeFrom(sendRequestAsync(requestBody, listener, result)
+                .thenCompose(openAIResponse -> processOpenAIResponse(openAIResponse, availableTools, 0, listener, result))
+                .thenApply(text -> {
+                    contextTracker.commit();
+                    compactHistory();
+                    return text;
+                }));
+        return result;
+    }
 
-        assert Settings != null;
-        String latestContext = Settings.projectContexts;
-        systemMessage = new Message("system", BASE_SYSTEM_PROMPT.replace("<content></content>", "\n\nFile Context: " + latestContext + "\n\n"));
+    public String sendMessageNoHistory(String systemPrompt, String userMessage, String context, List<Tool> availableTools) throws IOException {
+        return sendMessageNoHistoryAsync(systemPrompt, userMessage, context, availableTools).await();
+    }
 
-        messages.add(systemMessage.toJsonObject());
-        for (Message message : conversationHistory) {
-            messages.add(message.toJsonObject());
+    public CallFuture<String> sendMessageNoHistoryAsync(String systemPrompt, String userMessage, String context, List<Tool> availableTools) {
+        CallFuture<String> result = new CallFuture<>();
+        JsonRequestBody requestBody;
+        try {
+            requestBody = buildRequestBody(systemPrompt, userMessage, context, availableTools);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
         }
-        if (userMessage != null && !userMessage.isEmpty()) {
-            messages.add(new Message("user", userMessage).toJsonObject());
+        // 只有不带工具的调用才是确定性的，可以复用缓存的回答
+        String cacheKey = config.isResponseCache() && (availableTools == null || availableTools.isEmpty())
+                ? ResponseCache.key("openai " + apiUrl, requestBody) : null;
+        if (cacheKey != null) {
+            String cached = ResponseCache.getInstance().get(cacheKey);
+            if (cached != null) {
+                BoykaAILogger.info("OpenAI response cache hit: " + cacheKey);
+                result.complete(cached);
+                return result;
+            }
         }
-        requestBody.add("messages", messages);
+        CompletableFuture<String> response = sendRequestAsync(requestBody, null, result)
+                .thenCompose(openAIResponse -> processOpenAIResponse(openAIResponse, availableTools, 0, null, result));
+        if (cacheKey != null) {
+            response = response.thenApply(text -> {
+                ResponseCache.getInstance().put(cacheKey, text);
+                return text;
+            });
+        }
+        result.completeFrom(response);
+        return result;
+    }
 
-        if (availableTools != null && !availableTools.isEmpty()) {
-            JsonArray toolsArray = new JsonArray();
-            for (Tool tool : availableTools) {
-                toolsArray.add(tool.toOpenAIFormat());
+    private JsonRequestBody buildRequestBody(String userMessage, List<Tool> availableTools) throws IOException {
+        // 系统提示中的上下文在一次对话内保持不变，之后的变化以差异附在新问题中
+        Map<String, String> sections = config.getContextProvider().get();
+        String latestContext = contextTracker.systemContext(sections);
+        // 用户消息写入历史，之后的工具调用轮次和下一次提问都要带上它
+        if (userMessage != null && !userMessage.isEmpty()) {
+            conversationHistory.add(new Message("user", ContextDiffTracker.attach(userMessage, contextTracker.prepareUpdate(sections))));
+        }
+        String system = BASE_SYSTEM_PROMPT.replace("<content></content>", "\n\nFile Context: " + latestContext + "\n\n");
+        String historySummary = historyCompactor.getSummary();
+        List<Message> messages = new ArrayList<>(conversationHistory.size() + 1);
+        messages.add(new Message("system", historySummary != null ? system + "\n\n" + historySummary : system));
+        messages.addAll(conversationHistory);
+        try {
+            return buildChatRequest(messages, availableTools);
+        } catch (IOException e) {
+            // 请求没有发出，撤回刚加入的问题，历史保持发送前的状态
+            if (userMessage != null && !userMessage.isEmpty()) {
+                conversationHistory.remove(conversationHistory.size() - 1);
+                contextTracker.discard();
             }
-            requestBody.add("tools", toolsArray);
-            requestBody.addProperty("tool_choice", "auto");
+            throw e;
         }
-
-        return requestBody;
     }
 
-    private JsonObject buildRequestBody(String systemPrompt, String userMessage, String context, List<Tool> availableTools) {
-        JsonObject requestBody = new JsonObject();
-        requestBody.addProperty("model", config.getModel());
-        requestBody.addProperty("max_tokens", config.getMaxTokens());
-
-        JsonArray messages = new JsonArray();
-        messages.add(new Message("system", systemPrompt).toJsonObject());
+    private JsonRequestBody buildRequestBody(String systemPrompt, String userMessage, String context, List<Tool> availableTools) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message("system", systemPrompt));
         if (userMessage != null && !userMessage.isEmpty()) {
-            messages.add(new Message("user", userMessage).toJsonObject());
+            messages.add(new Message("user", userMessage));
         }
-        requestBody.add("messages", messages);
+        return buildChatRequest(messages, availableTools);
+    }
 
-        if (availableTools != null && !availableTools.isEmpty()) {
-            JsonArray toolsArray = new JsonArray();
-            for (Tool tool : availableTools) {
-                toolsArray.add(tool.toOpenAIFormat());
+    /**
+     * messages 必须是调用方独占的列表；请求体在 OkHttp 线程上序列化，重试时会再次序列化。
+     * 发送前统计输入 token 数，放不进上下文窗口时抛出 {@link TokenCounter.RequestTooLargeException}。
+     */
+    private JsonRequestBody buildChatRequest(List<Message> messages, List<Tool> availableTools) throws IOException {
+        int inputTokens = countRequestTokens(messages, availableTools);
+        int maxTokens = TokenCounter.getInstance().fitMaxTokens(config.getModel(), inputTokens, config.getMaxTokens());
+        return new JsonRequestBody(writer -> {
+            writer.beginObject();
+            writer.name("model").value(config.getModel());
+            writer.name("max_tokens").value(maxTokens);
+            writer.name("messages").beginArray();
+            for (Message message : messages) {
+                message.writeTo(writer);
+            }
+            writer.endArray();
+            if (availableTools != null && !availableTools.isEmpty()) {
+                writeTools(writer, availableTools);
+                writer.name("tool_choice").value("auto");
             }
-            requestBody.add("tools", toolsArray);
-            requestBody.addProperty("tool_choice", "auto");
+            if (config.isStream()) {
+                writer.name("stream").value(true);
+                // 流式响应默认不带 usage，需要显式请求最后一个 chunk 附带用量
+                writer.name("stream_options").beginObject().name("include_usage").value(true).endObject();
+            }
+            writer.endObject();
+        }, "model=" + config.getModel()
+                + ", messages=" + messages.size()
+                + ", tools=" + (availableTools == null ? 0 : availableTools.size())
+                + ", stream=" + config.isStream()).inputTokens(inputTokens);
+    }
+
+    private static void writeTools(JsonWriter writer, List<Tool> availableTools) throws IOException {
+        writer.name("tools").beginArray();
+        for (Tool tool : availableTools) {
+            JsonRequestBody.writeElement(writer, tool.toOpenAIFormat());
         }
+        writer.endArray();
+    }
 
-        return requestBody;
+    /**
+     * 消息和工具列表的 token 数。历史中的消息对象在多轮之间不变，计数按对象缓存，每轮只统计新增的消息。
+     */
+    private int countRequestTokens(List<Message> messages, List<Tool> availableTools) {
+        int tokens = 0;
+        for (Message message : messages) {
+            tokens += requestTokens.part(message, message::writeTo);
+        }
+        if (availableTools != null && !availableTools.isEmpty()) {
+            tokens += requestTokens.part(availableTools, writer -> {
+                writer.beginObject();
+                writeTools(writer, availableTools);
+                writer.endObject();
+            });
+        }
+        return tokens;
     }
 
-    private AIOpenAIResponse sendRequest(JsonObject requestBody) throws IOException {
+    private CompletableFuture<AIOpenAIResponse> sendRequestAsync(JsonRequestBody requestBody, StreamListener listener, CallFuture<?> owner) {
         Request request = new Request.Builder()
                 .url(apiUrl + "chat/completions")
-                .post(RequestBody.create(MediaType.parse("application/json"), requestBody.toString()))
+                .post(requestBody)
+                .tag(RateLimiter.Cost.class, RateLimiter.getInstance().estimateCost(requestBody, config.getMaxTokens()))
                 .addHeader("Authorization", "Bearer " + apiKey)
                 .addHeader("Content-Type", "application/json")
                 .build();
 
-        BoykaAILogger.info("Request: " + requestBody);
+        BoykaAILogger.info("Request: " + requestBody.getSummary());
+        if (BoykaAILogger.isDebugEnabled()) {
+            BoykaAILogger.debug("OpenAI Request: " + requestBody.toJsonString());
+        }
 
-        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
-            try (Response response = httpClient.newCall(request).execute()) {
-                if (!response.isSuccessful()) {
-                    String errorBody = response.body().string();
-                    BoykaAILogger.warn("Attempt " + (attempt + 1) + " - Unexpected code " + response.code() + " " + errorBody);
-                    if (attempt == MAX_RETRIES - 1) {
-                        throw new IOException("Unexpected code " + response.code() + " " + errorBody);
+        // 文本已推送给界面后，出错不再重试；提前执行的只有只读工具，出错时取消，不妨碍重试
+        boolean[] streamed = {false};
+        StreamListener trackingListener = delta -> {
+            streamed[0] = true;
+            if (listener != null) {
+                listener.onTextDelta(delta);
+            }
+        };
+
+        return BoykaAIHttpService.getInstance().executeAsync(httpClient, request, response -> {
+            if (!config.isStream()) {
+                AIOpenAIResponse openAIResponse = BoykaAIHttpService.readJson(gson, response.body(), AIOpenAIResponse.class, "OpenAI");
+                recordUsage(openAIResponse, requestBody);
+                return openAIResponse;
+            }
+            try {
+                AIOpenAIResponse openAIResponse = readStream(response.body().source(), trackingListener,
+                        () -> owner == null || owner.admit());
+                recordUsage(openAIResponse, requestBody);
+                return openAIResponse;
+            } catch (IOException e) {
+                throw streamed[0] ? new BoykaAIHttpService.PartialResponseException(e) : e;
+            }
+        }, owner);
+    }
+
+    /**
+     * 解析 chat/completions 的 SSE 流。tool_calls 的 arguments 按片段拼接，
+     * 一旦出现下一个 tool_call，前一个的参数即已完整，只读工具立即开始执行，不必等整条消息结束；
+     * 修改文件或执行代码的工具要等流正常结束、确认 finish_reason 为 tool_calls 后才执行。
+     * 流读取失败时取消已开始的工具调用。
+     */
+    private AIOpenAIResponse readStream(BufferedSource source, StreamListener listener, BooleanSupplier beforeToolStart) throws IOException {
+        ServerSentEventReader reader = new ServerSentEventReader(source);
+        AIOpenAIResponse openAIResponse = new AIOpenAIResponse();
+        openAIResponse.choices = new ArrayList<>();
+        openAIResponse.startedToolCalls = new HashMap<>();
+        Map<Integer, StreamedChoice> streamedChoices = new HashMap<>();
+
+        try {
+            readEvents(reader, openAIResponse, streamedChoices, listener, beforeToolStart);
+        } catch (IOException | RuntimeException e) {
+            cancelStartedToolCalls(openAIResponse);
+            throw e;
+        }
+
+        for (StreamedChoice streamed : streamedChoices.values()) {
+            streamed.finish();
+            if (streamed.content.length() > 0) {
+                listener.onTextDelta("\n");
+            }
+        }
+        return openAIResponse;
+    }
+
+    private void readEvents(ServerSentEventReader reader, AIOpenAIResponse openAIResponse, Map<Integer, StreamedChoice> streamedChoices,
+                            StreamListener listener, BooleanSupplier beforeToolStart) throws IOException {
+        CompletableFuture<String> lastStarted = CompletableFuture.completedFuture(null);
+        ServerSentEventReader.Event event;
+        while ((event = reader.next()) != null) {
+            if ("[DONE]".equals(event.data.trim())) {
+                break;
+            }
+            JsonObject chunk = gson.fromJson(event.data, JsonObject.class);
+            if (chunk.has("error")) {
+                throw new IOException("OpenAI stream error: " + chunk.get("error"));
+            }
+            if (openAIResponse.id == null && chunk.has("id")) {
+                openAIResponse.id = chunk.get("id").getAsString();
+                openAIResponse.model = chunk.has("model") ? chunk.get("model").getAsString() : null;
+            }
+            if (chunk.has("usage") && chunk.get("usage").isJsonObject()) {
+                openAIResponse.usage = gson.fromJson(chunk.get("usage"), Usage.class);
+            }
+            if (!chunk.has("choices") || !chunk.get("choices").isJsonArray()) {
+                continue;
+            }
+            for (JsonElement choiceElement : chunk.getAsJsonArray("choices")) {
+                JsonObject choiceObject = choiceElement.getAsJsonObject();
+                int index = choiceObject.has("index") ? choiceObject.get("index").getAsInt() : 0;
+                StreamedChoice streamed = streamedChoices.computeIfAbsent(index, i -> {
+                    StreamedChoice created = new StreamedChoice(i);
+                    openAIResponse.choices.add(created.choice);
+                    return created;
+                });
+
+                JsonObject delta = choiceObject.has("delta") && choiceObject.get("delta").isJsonObject()
+                        ? choiceObject.getAsJsonObject("delta") : null;
+                if (delta != null) {
+                    if (delta.has("content") && !delta.get("content").isJsonNull()) {
+                        String text = delta.get("content").getAsString();
+                        streamed.content.append(text);
+                        if (!text.isEmpty()) {
+                            listener.onTextDelta(text);
+                        }
+                    }
+                    if (delta.has("tool_calls") && delta.get("tool_calls").isJsonArray()) {
+                        for (JsonElement toolCallElement : delta.getAsJsonArray("tool_calls")) {
+                            JsonObject toolCallDelta = toolCallElement.getAsJsonObject();
+                            int toolIndex = toolCallDelta.has("index") ? toolCallDelta.get("index").getAsInt() : streamed.toolCalls.size();
+                            // 新的 tool_call 出现，说明之前的参数都已完整
+                            while (!streamed.deferred && streamed.started < Math.min(toolIndex, streamed.toolCalls.size())) {
+                                ToolCall toolCall = streamed.toolCall(streamed.started++);
+                                if (ToolExecutor.isReadOnly(toolCall.function.name)) {
+                                    lastStarted = startToolCall(openAIResponse, toolCall, lastStarted, beforeToolStart);
+                                } else {
+                                    // 后面的工具可能要看到这个工具的修改，都等流结束后按顺序执行
+                                    streamed.deferred = true;
+                                }
+                            }
+                            streamed.appendToolCallDelta(toolIndex, toolCallDelta);
+                        }
                     }
-                } else {
-                    String responseBody = response.body().string();
-                    BoykaAILogger.info("Response: " + responseBody);
-                    return gson.fromJson(responseBody, AIOpenAIResponse.class);
                 }
-            } catch (IOException e) {
-                if (attempt == MAX_RETRIES - 1) {
-                    throw e;
+                if (choiceObject.has("finish_reason") && !choiceObject.get("finish_reason").isJsonNull()) {
+                    streamed.choice.finish_reason = choiceObject.get("finish_reason").getAsString();
                 }
-                BoykaAILogger.warn("Attempt " + (attempt + 1) + " failed. Retrying...");
             }
-            // Exponential backoff
-            try {
-                Thread.sleep((long) Math.pow(2, attempt) * 1000);
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
-                throw new IOException("Request interrupted", ie);
+        }
+    }
+
+    // 已开始的都是只读工具，回复作废时取消即可，不需要记录结果
+    private static void cancelStartedToolCalls(AIOpenAIResponse openAIResponse) {
+        if (openAIResponse.startedToolCalls != null) {
+            for (CompletableFuture<String> started : openAIResponse.startedToolCalls.values()) {
+                started.cancel(false);
             }
         }
-        throw new IOException("Failed after " + MAX_RETRIES + " attempts");
     }
 
-    private String processOpenAIResponse(AIOpenAIResponse openAIResponse, List<Tool> availableTools, int depth) throws IOException {
+    private CompletableFuture<String> startToolCall(AIOpenAIResponse openAIResponse, ToolCall toolCall,
+                                                    CompletableFuture<String> previous, BooleanSupplier beforeToolStart) {
+        if (toolExecutor == null || toolCall.id == null || !beforeToolStart.getAsBoolean()) {
+            return previous;
+        }
+        BoykaAILogger.info("Starting tool call before stream end: " + toolCall.function.name);
+        // 按顺序串行执行，保证后一个工具能看到前一个工具的结果
+        CompletableFuture<String> started = previous.handle((result, error) -> null)
+                .thenCompose(ignored -> executeToolCall(toolCall));
+        openAIResponse.startedToolCalls.put(toolCall.id, started);
+        return started;
+    }
+
+    private CompletableFuture<String> processOpenAIResponse(AIOpenAIResponse openAIResponse, List<Tool> availableTools, int depth,
+                                                            StreamListener listener, CallFuture<?> owner) {
+        if (owner != null && !owner.admit()) {
+            // 对冲请求中落后的一方，不写入历史、不执行工具
+            cancelStartedToolCalls(openAIResponse);
+            return CompletableFuture.failedFuture(new CancellationException("Response discarded"));
+        }
         if (depth >= MAX_RECURSION_DEPTH) {
             BoykaAILogger.warn("Max recursion depth reached. Stopping further processing.");
-            return "Max recursion depth reached. Stopping further processing.";
+            return CompletableFuture.completedFuture("Max recursion depth reached. Stopping further processing.");
         }
 
         StringBuilder finalResponse = new StringBuilder();
+        // 各 choice 及其工具调用按顺序串联执行
+        CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
 
         if (openAIResponse.choices != null && !openAIResponse.choices.isEmpty()) {
             for (Choice choice : openAIResponse.choices) {
-                if (choice.message != null) {
+                if (choice.message == null) {
+                    continue;
+                }
+                done = done.thenCompose(ignored -> {
                     if (choice.message.content != null && !choice.message.content.isEmpty()) {
                         finalResponse.append(choice.message.content).append("\n");
                     }
-                    conversationHistory.add(choice.message);
+                    boolean runTools = "tool_calls".equals(choice.finish_reason);
+                    if (!runTools && choice.message.tool_calls != null) {
+                        // 回复没有以 tool_calls 结束（例如被截断），其中的工具调用不执行，也不写入历史，
+                        // 否则历史中会有缺少结果的 tool_call
+                        cancelStartedToolCalls(openAIResponse);
+                        choice.message.tool_calls = null;
+                    }
+                    if (choice.message.content != null || choice.message.tool_calls != null) {
+                        conversationHistory.add(choice.message);
+                    }
 
-                    if ("tool_calls".equals(choice.finish_reason) && choice.message.tool_calls != null && !choice.message.tool_calls.isEmpty()) {
+                    if (runTools && choice.message.tool_calls != null && !choice.message.tool_calls.isEmpty()) {
+                        CompletableFuture<Void> toolsDone = CompletableFuture.completedFuture(null);
                         for (ToolCall toolCall : choice.message.tool_calls) {
-                            String toolResult = executeToolCall(toolCall);
-                            conversationHistory.add(new Message("tool", toolResult, toolCall.id));
+                            CompletableFuture<String> started = openAIResponse.startedToolCalls != null
+                                    ? openAIResponse.startedToolCalls.get(toolCall.id) : null;
+                            toolsDone = toolsDone.thenCompose(v -> started != null ? started : executeToolCall(toolCall))
+                                    .thenAccept(toolResult -> conversationHistory.add(new Message("tool", toolResult, toolCall.id)));
                         }
-                        String openAIResponseToTool = sendToolResultToOpenAI(availableTools, depth + 1);
-                        finalResponse.append(openAIResponseToTool).append("\n");
+                        return toolsDone.thenCompose(v -> sendToolResultToOpenAI(availableTools, depth + 1, listener, owner))
+                                .thenAccept(openAIResponseToTool -> finalResponse.append(openAIResponseToTool).append("\n"));
                     } else if ("stop".equals(choice.finish_reason)) {
                         // Normal completion, no further action needed
                     } else if ("length".equals(choice.finish_reason)) {
@@ -190,29 +492,35 @@ public class OpenAIClient {
                     } else {
                         BoykaAILogger.warn("Unexpected finish_reason: " + choice.finish_reason);
                     }
-                }
+                    return CompletableFuture.completedFuture(null);
+                });
             }
         }
 
-        return finalResponse.toString().trim();
+        return done.thenApply(ignored -> finalResponse.toString().trim());
     }
 
-    private String executeToolCall(ToolCall toolCall) {
+    private CompletableFuture<String> executeToolCall(ToolCall toolCall) {
         if (toolExecutor == null) {
-            return "Error: Tool execution is not available.";
-        }
-        try {
-            return toolExecutor.executeToolCall(toolCall.function.name, toolCall.function.arguments);
-        } catch (Exception e) {
-            BoykaAILogger.error("Error executing tool call", e);
-            return "Error: An error occurred during tool execution: " + e.getMessage();
+            return CompletableFuture.completedFuture("Error: Tool execution is not available.");
         }
+        return toolExecutor.executeToolCallAsync(toolCall.function.name, toolCall.function.arguments)
+                .exceptionally(e -> {
+                    BoykaAILogger.error("Error executing tool call", e);
+                    return "Error: An error occurred during tool execution: " + CallFuture.unwrap(e).getMessage();
+                });
     }
 
-    private String sendToolResultToOpenAI(List<Tool> availableTools, int depth) throws IOException {
-        JsonObject requestBody = buildRequestBody("", availableTools);
-        AIOpenAIResponse openAIResponse = sendRequest(requestBody);
-        return processOpenAIResponse(openAIResponse, availableTools, depth);
+    private CompletableFuture<String> sendToolResultToOpenAI(List<Tool> availableTools, int depth, StreamListener listener, CallFuture<?> owner) {
+        compactHistory();
+        JsonRequestBody requestBody;
+        try {
+            requestBody = buildRequestBody("", availableTools);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return sendRequestAsync(requestBody, listener, owner)
+                .thenCompose(openAIResponse -> processOpenAIResponse(openAIResponse, availableTools, depth, listener, owner));
     }
 
     private static class AIOpenAIResponse {
@@ -223,6 +531,8 @@ public class OpenAIClient {
         String system_fingerprint;
         List<Choice> choices;
         Usage usage;
+        // 流式读取时已提前开始执行的工具调用，按 tool_call id 索引
+        transient Map<String, CompletableFuture<String>> startedToolCalls;
 
         public Choice getFirstChoice() {
             return (choices != null && !choices.isEmpty()) ? choices.get(0) : null;
@@ -236,10 +546,88 @@ public class OpenAIClient {
         Object logprobs;
     }
 
+    /**
+     * 流式读取过程中单个 choice 的累积状态。
+     */
+    private static class StreamedChoice {
+        final Choice choice = new Choice();
+        final StringBuilder content = new StringBuilder();
+        final List<ToolCall> toolCalls = new ArrayList<>();
+        final List<StringBuilder> arguments = new ArrayList<>();
+        int started;
+        // 遇到会修改文件的工具后，不再提前执行后面的工具
+        boolean deferred;
+
+        StreamedChoice(int index) {
+            choice.index = index;
+        }
+
+        void appendToolCallDelta(int toolIndex, JsonObject toolCallDelta) {
+            while (toolCalls.size() <= toolIndex) {
+                ToolCall toolCall = new ToolCall();
+                toolCall.type = "function";
+                toolCall.function = new Function();
+                toolCalls.add(toolCall);
+                arguments.add(new StringBuilder());
+            }
+            ToolCall toolCall = toolCalls.get(toolIndex);
+            if (toolCallDelta.has("id") && !toolCallDelta.get("id").isJsonNull()) {
+                toolCall.id = toolCallDelta.get("id").getAsString();
+            }
+            if (toolCallDelta.has("type") && !toolCallDelta.get("type").isJsonNull()) {
+                toolCall.type = toolCallDelta.get("type").getAsString();
+            }
+            JsonObject function = toolCallDelta.has("function") && toolCallDelta.get("function").isJsonObject()
+                    ? toolCallDelta.getAsJsonObject("function") : null;
+            if (function != null) {
+                if (function.has("name") && !function.get("name").isJsonNull()) {
+                    toolCall.function.name = function.get("name").getAsString();
+                }
+                if (function.has("arguments") && !function.get("arguments").isJsonNull()) {
+                    arguments.get(toolIndex).append(function.get("arguments").getAsString());
+                }
+            }
+        }
+
+        ToolCall toolCall(int toolIndex) {
+            ToolCall toolCall = toolCalls.get(toolIndex);
+            toolCall.function.arguments = arguments.get(toolIndex).toString();
+            return toolCall;
+        }
+
+        void finish() {
+            for (int i = 0; i < toolCalls.size(); i++) {
+                toolCall(i);
+            }
+            choice.message = new Message("assistant", content.length() > 0 ? content.toString() : null,
+                    toolCalls.isEmpty() ? null : toolCalls, null);
+        }
+    }
+
+    private void recordUsage(AIOpenAIResponse openAIResponse, JsonRequestBody requestBody) {
+        if (openAIResponse == null || openAIResponse.usage == null) {
+            return;
+        }
+        TokenUsage usage = openAIResponse.usage.toTokenUsage();
+        sessionUsage.add(usage);
+        BoykaAILogger.info("OpenAI usage: " + usage + ", estimated input: " + requestBody.getInputTokens());
+        TokenCounter.getInstance().calibrate(config.getModel(), requestBody.getInputTokens(), openAIResponse.usage.prompt_tokens);
+    }
+
     private static class Usage {
         int prompt_tokens;
         int completion_tokens;
         int total_tokens;
+        PromptTokensDetails prompt_tokens_details;
+
+        TokenUsage toTokenUsage() {
+            int cached = prompt_tokens_details != null ? prompt_tokens_details.cached_tokens : 0;
+            return new TokenUsage(prompt_tokens - cached, completion_tokens, 0, cached);
+        }
+    }
+
+    private static class PromptTokensDetails {
+        int cached_tokens;
     }
 
     private static class Message {
@@ -263,23 +651,23 @@ public class OpenAIClient {
             this.tool_call_id = tool_call_id;
         }
 
-        JsonObject toJsonObject() {
-            JsonObject jsonObject = new JsonObject();
-            jsonObject.addProperty("role", role);
+        void writeTo(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("role").value(role);
             if (content != null) {
-                jsonObject.addProperty("content", content);
+                writer.name("content").value(content);
             }
             if (tool_calls != null && !tool_calls.isEmpty()) {
-                JsonArray toolCallsArray = new JsonArray();
+                writer.name("tool_calls").beginArray();
                 for (ToolCall toolCall : tool_calls) {
-                    toolCallsArray.add(toolCall.toJsonObject());
+                    toolCall.writeTo(writer);
                 }
-                jsonObject.add("tool_calls", toolCallsArray);
+                writer.endArray();
             }
             if (tool_call_id != null) {
-                jsonObject.addProperty("tool_call_id", tool_call_id);
+                writer.name("tool_call_id").value(tool_call_id);
             }
-            return jsonObject;
+            writer.endObject();
         }
     }
 
@@ -288,12 +676,13 @@ public class OpenAIClient {
         String type;
         Function function;
 
-        JsonObject toJsonObject() {
-            JsonObject jsonObject = new JsonObject();
-            jsonObject.addProperty("id", id);
-            jsonObject.addProperty("type", type);
-            jsonObject.add("function", function.toJsonObject());
-            return jsonObject;
+        void writeTo(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("id").value(id);
+            writer.name("type").value(type);
+            writer.name("function");
+            function.writeTo(writer);
+            writer.endObject();
         }
     }
 
@@ -301,11 +690,98 @@ public class OpenAIClient {
         String name;
         String arguments;
 
-        JsonObject toJsonObject() {
-            JsonObject jsonObject = new JsonObject();
-            jsonObject.addProperty("name", name);
-            jsonObject.addProperty("arguments", arguments);
-            return jsonObject;
+        void writeTo(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("name").value(name);
+            writer.name("arguments").value(arguments);
+            writer.endObject();
+        }
+    }
+
+    /**
+     * 供 {@link HistoryCompactor} 识别 OpenAI 消息结构：user 消息是一轮的开始，
+     * 工具结果是 tool 消息，工具调用是 assistant 消息中的 tool_calls。
+     */
+    private static class HistoryAdapter implements HistoryCompactor.Adapter<Message> {
+        private final RequestTokenCounter requestTokens;
+
+        HistoryAdapter(RequestTokenCounter requestTokens) {
+            this.requestTokens = requestTokens;
+        }
+
+        @Override
+        public int estimateTokens(Message message) {
+            return requestTokens.part(message, message::writeTo);
+        }
+
+        @Override
+        public boolean isUserText(Message message) {
+            return "user".equals(message.role);
+        }
+
+        @Override
+        public Message stub(Message message) {
+            if ("tool".equals(message.role)) {
+                String content = HistoryCompactor.stubText(message.content);
+                return Objects.equals(content, message.content) ? message : new Message("tool", content, message.tool_call_id);
+            }
+            if ("user".equals(message.role)) {
+                String content = RelevanceIndex.stripRelevantCode(message.content);
+                return Objects.equals(content, message.content) ? message : new Message("user", content);
+            }
+            if (message.tool_calls == null || message.tool_calls.isEmpty()) {
+                return message;
+            }
+            List<ToolCall> toolCalls = new ArrayList<>();
+            boolean changed = false;
+            for (ToolCall toolCall : message.tool_calls) {
+                String arguments = stubArguments(toolCall.function.arguments);
+                if (Objects.equals(arguments, toolCall.function.arguments)) {
+                    toolCalls.add(toolCall);
+                    continue;
+                }
+                ToolCall copy = new ToolCall();
+                copy.id = toolCall.id;
+                copy.type = toolCall.type;
+                copy.function = new Function();
+                copy.function.name = toolCall.function.name;
+                copy.function.arguments = arguments;
+                toolCalls.add(copy);
+                changed = true;
+            }
+            return changed ? new Message(message.role, message.content, toolCalls, message.tool_call_id) : message;
+        }
+
+        // arguments 是 JSON 字符串，尽量保持为合法 JSON
+        private static String stubArguments(String arguments) {
+            if (arguments == null) {
+                return arguments;
+            }
+            try {
+                JsonElement parsed = JsonParser.parseString(arguments);
+                JsonElement stubbed = HistoryCompactor.stubLargeStrings(parsed);
+                return stubbed == parsed ? arguments : stubbed.toString();
+            } catch (JsonParseException e) {
+                return HistoryCompactor.stubText(arguments);
+            }
+        }
+
+        @Override
+        public String text(Message message) {
+            return "tool".equals(message.role) ? "" : message.content;
+        }
+
+        @Override
+        public List<String> toolNames(Message message) {
+            List<String> names = new ArrayList<>();
+            if (message.tool_calls != null) {
+                for (ToolCall toolCall : message.tool_calls) {
+                    if (toolCall.function != null) {
+                        names.add(toolCall.function.name);
+                    }
+                }
+            }
+            return names;
         }
     }
 }
\ No newline at end of file
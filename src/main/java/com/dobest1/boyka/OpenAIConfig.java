@@ -1,5 +1,9 @@
 package com.dobest1.boyka;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Supplier;
+
 public class OpenAIConfig {
     private final String apiKey;
     private final String apiUrl;
@@ -8,6 +12,11 @@ public class OpenAIConfig {
     private final int connectionTimeout;
     private final int readTimeout;
     private final int writeTimeout;
+    private final boolean stream;
+    private final boolean responseCache;
+    private final int historyTokenBudget;
+    private final int historyKeepExchanges;
+    private final Supplier<Map<String, String>> contextProvider;
 
     private OpenAIConfig(Builder builder) {
         this.apiKey = builder.apiKey;
@@ -17,6 +26,11 @@ public class OpenAIConfig {
         this.connectionTimeout = builder.connectionTimeout;
         this.readTimeout = builder.readTimeout;
         this.writeTimeout = builder.writeTimeout;
+        this.stream = builder.stream;
+        this.responseCache = builder.responseCache;
+        this.historyTokenBudget = builder.historyTokenBudget;
+        this.historyKeepExchanges = builder.historyKeepExchanges;
+        this.contextProvider = builder.contextProvider;
     }
 
     public String getApiKey() {
@@ -47,6 +61,29 @@ public class OpenAIConfig {
         return writeTimeout;
     }
 
+    public boolean isStream() {
+        return stream;
+    }
+
+    public boolean isResponseCache() {
+        return responseCache;
+    }
+
+    public int getHistoryTokenBudget() {
+        return historyTokenBudget;
+    }
+
+    public int getHistoryKeepExchanges() {
+        return historyKeepExchanges;
+    }
+
+    /**
+     * 提供当前的文件上下文，文件路径到该文件在上下文中的段落，每次构建请求时调用。
+     */
+    public Supplier<Map<String, String>> getContextProvider() {
+        return contextProvider;
+    }
+
     public static class Builder {
         private String apiKey;
         private String apiUrl;
@@ -55,6 +92,11 @@ public class OpenAIConfig {
         private int connectionTimeout = 120;
         private int readTimeout = 120;
         private int writeTimeout = 120;
+        private boolean stream = false;
+        private boolean responseCache = false;
+        private int historyTokenBudget = 0;
+        private int historyKeepExchanges = 4;
+        private Supplier<Map<String, String>> contextProvider = Collections::emptyMap;
 
         public Builder apiKey(String apiKey) {
             this.apiKey = apiKey;
@@ -91,6 +133,37 @@ public class OpenAIConfig {
             return this;
         }
 
+        public Builder stream(boolean stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        public Builder responseCache(boolean responseCache) {
+            this.responseCache = responseCache;
+            return this;
+        }
+
+        /**
+         * 对话历史的 token 预算，超出时压缩较早的轮次；0 表示不限制。
+         */
+        public Builder historyTokenBudget(int historyTokenBudget) {
+            this.historyTokenBudget = historyTokenBudget;
+            return this;
+        }
+
+        /**
+         * 压缩时原样保留的最近问答轮数。
+         */
+        public Builder historyKeepExchanges(int historyKeepExchanges) {
+            this.historyKeepExchanges = historyKeepExchanges;
+            return this;
+        }
+
+        public Builder contextProvider(Supplier<Map<String, String>> contextProvider) {
+            this.contextProvider = contextProvider;
+            return this;
+        }
+
         public OpenAIConfig build() {
             if (apiKey == null || apiUrl == null) {
                 throw new IllegalStateException("API key and URL must be set");
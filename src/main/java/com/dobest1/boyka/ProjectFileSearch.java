@@ -0,0 +1,104 @@
+package com.dobest1.boyka;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.codeStyle.MinusculeMatcher;
+import com.intellij.psi.codeStyle.NameUtil;
+import com.intellij.psi.search.FilenameIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 按文件名搜索项目文件。文件名取自 IDE 的 {@link FilenameIndex}，不遍历目录；
+ * 匹配与 Go to File 相同，支持驼峰缩写（例如 CtxMgr 匹配 ContextManager），按匹配程度排序。
+ * 查询可以带目录前缀，例如 boyka/Context，目录部分要求出现在路径中。
+ * 只搜索项目内容，排除的目录和库不在结果中；索引尚未建好时退回遍历内容根。
+ */
+public final class ProjectFileSearch {
+    public static final int DEFAULT_LIMIT = 50;
+
+    private ProjectFileSearch() {
+    }
+
+    public static List<String> search(Project project, String query, int limit) {
+        String normalized = query == null ? "" : query.trim().replace('\\', '/');
+        int slash = normalized.lastIndexOf('/');
+        String namePattern = normalized.substring(slash + 1);
+        String directory = slash > 0 ? normalized.substring(0, slash).toLowerCase(Locale.ROOT) + "/" : "";
+        if (namePattern.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        MinusculeMatcher matcher = NameUtil.buildMatcher("*" + namePattern, NameUtil.MatchingCaseSensitivity.NONE);
+        List<Match> matches = ReadAction.compute(() -> DumbService.isDumb(project)
+                ? scanContent(project, matcher, directory)
+                : searchIndex(project, matcher, directory, limit));
+        matches.sort(Match.ORDER);
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, matches.size()); i++) {
+            result.add(matches.get(i).path);
+        }
+        return result;
+    }
+
+    // 先在文件名索引中筛出匹配的文件名，按匹配程度从高到低取文件，够数且后面的文件名匹配程度更低时停止
+    private static List<Match> searchIndex(Project project, MinusculeMatcher matcher, String directory, int limit) {
+        GlobalSearchScope scope = GlobalSearchScope.projectScope(project);
+        List<Match> names = new ArrayList<>();
+        FilenameIndex.processAllFileNames(name -> {
+            if (matcher.matches(name)) {
+                names.add(new Match(name, matcher.matchingDegree(name)));
+            }
+            return true;
+        }, scope, null);
+        names.sort(Match.ORDER);
+        List<Match> matches = new ArrayList<>();
+        for (Match name : names) {
+            if (matches.size() >= limit && name.degree < matches.get(matches.size() - 1).degree) {
+                break;
+            }
+            for (VirtualFile file : FilenameIndex.getVirtualFilesByName(name.path, scope)) {
+                if (!file.isDirectory() && inDirectory(file.getPath(), directory)) {
+                    matches.add(new Match(file.getPath(), name.degree));
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static List<Match> scanContent(Project project, MinusculeMatcher matcher, String directory) {
+        List<Match> matches = new ArrayList<>();
+        ProjectFileIndex.getInstance(project).iterateContent(file -> {
+            if (!file.isDirectory() && matcher.matches(file.getName()) && inDirectory(file.getPath(), directory)) {
+                matches.add(new Match(file.getPath(), matcher.matchingDegree(file.getName())));
+            }
+            return true;
+        });
+        return matches;
+    }
+
+    private static boolean inDirectory(String path, String directory) {
+        return directory.isEmpty() || path.toLowerCase(Locale.ROOT).contains(directory);
+    }
+
+    private static final class Match {
+        // 匹配程度高的在前，相同时路径短的在前
+        static final Comparator<Match> ORDER = Comparator.<Match>comparingInt(match -> -match.degree)
+                .thenComparingInt(match -> match.path.length())
+                .thenComparing(match -> match.path);
+
+        final String path;
+        final int degree;
+
+        Match(String path, int degree) {
+            this.path = path;
+            this.degree = degree;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,136 @@
+package com.dobest1.boyka;
+
+import com.intellij.find.FindModel;
+import com.intellij.find.impl.FindInProjectUtil;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Segment;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.usages.FindUsagesProcessPresentation;
+import com.intellij.usages.UsageViewPresentation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * 在项目文件内容中搜索文本或正则表达式，供 grep_project 工具使用。
+ * 搜索由 IDE 的 Find in Files 完成，字面量查询先通过 IDE 的单词和三元组索引筛选候选文件，不逐个读取文件；
+ * 范围与 Find in Files 的项目范围相同，排除的目录和库不在其中。
+ * 结果按文件分组，匹配行前后带少量上下文行，总匹配数有上限，避免一次工具调用返回过多内容。
+ */
+public final class ProjectGrep {
+    private static final int MAX_MATCHES = 100;
+    private static final int CONTEXT_LINES = 2;
+    private static final int MAX_LINE_CHARS = 300;
+
+    private ProjectGrep() {
+    }
+
+    /**
+     * 搜索项目并返回按文件分组的匹配行，格式类似 grep -n -C2：匹配行在行号后用冒号，上下文行用短横线。
+     *
+     * @param fileMask 文件名过滤，例如 *.java 或 *.java,*.kt，为空时搜索所有文件
+     */
+    public static String grep(Project project, String query, boolean regex, boolean caseSensitive, String fileMask) {
+        if (query == null || query.isEmpty()) {
+            return "Error: 搜索内容不能为空";
+        }
+        if (regex) {
+            try {
+                Pattern.compile(query);
+            } catch (PatternSyntaxException e) {
+                return "Error: 无效的正则表达式: " + e.getDescription();
+            }
+        }
+        FindModel model = new FindModel();
+        model.setStringToFind(query);
+        model.setRegularExpressions(regex);
+        model.setCaseSensitive(caseSensitive);
+        model.setProjectScope(true);
+        model.setMultipleFiles(true);
+        model.setFindAll(true);
+        if (fileMask != null && !fileMask.isBlank()) {
+            model.setFileFilter(fileMask.trim());
+        }
+
+        // 每个文件中匹配的起始偏移量，按发现顺序
+        Map<VirtualFile, List<Integer>> offsets = new LinkedHashMap<>();
+        int[] count = {0};
+        ProgressManager.getInstance().runProcess(() -> FindInProjectUtil.findUsages(model, project, usage -> {
+            VirtualFile file = usage.getVirtualFile();
+            Segment segment = usage.getSegment();
+            if (file == null || segment == null) {
+                return true;
+            }
+            synchronized (offsets) {
+                if (count[0] >= MAX_MATCHES) {
+                    count[0]++;
+                    return false;
+                }
+                count[0]++;
+                offsets.computeIfAbsent(file, f -> new ArrayList<>()).add(segment.getStartOffset());
+                return true;
+            }
+        }, new FindUsagesProcessPresentation(new UsageViewPresentation())), new EmptyProgressIndicator());
+
+        if (offsets.isEmpty()) {
+            return "No matches found for: " + query;
+        }
+        StringBuilder result = new StringBuilder();
+        if (count[0] > MAX_MATCHES) {
+            result.append("Showing the first ").append(MAX_MATCHES).append(" matches in ").append(offsets.size())
+                    .append(" files; there are more, narrow the query or use file_mask.\n\n");
+        } else {
+            result.append("Found ").append(count[0]).append(" matches in ").append(offsets.size()).append(" files.\n\n");
+        }
+        ReadAction.run(() -> {
+            for (Map.Entry<VirtualFile, List<Integer>> entry : offsets.entrySet()) {
+                Document document = FileDocumentManager.getInstance().getDocument(entry.getKey());
+                if (document != null) {
+                    appendFile(result, entry.getKey().getPath(), document, entry.getValue());
+                }
+            }
+        });
+        return result.toString();
+    }
+
+    private static void appendFile(StringBuilder result, String path, Document document, List<Integer> offsets) {
+        int textLength = document.getCharsSequence().length();
+        TreeSet<Integer> matched = new TreeSet<>();
+        for (int offset : offsets) {
+            matched.add(document.getLineNumber(Math.min(offset, textLength)));
+        }
+        // 以换行结尾的文件最后是一个空行，不作为上下文输出
+        int lastLine = document.getLineCount() - 1;
+        if (lastLine > 0 && document.getLineStartOffset(lastLine) == textLength) {
+            lastLine--;
+        }
+        result.append(path).append('\n');
+        int printed = -1;
+        for (int line : matched) {
+            int from = Math.max(line - CONTEXT_LINES, printed + 1);
+            if (printed >= 0 && from > printed + 1) {
+                result.append("--\n");
+            }
+            int to = Math.min(line + CONTEXT_LINES, lastLine);
+            for (int current = from; current <= to; current++) {
+                CharSequence text = document.getCharsSequence()
+                        .subSequence(document.getLineStartOffset(current), document.getLineEndOffset(current));
+                result.append(current + 1).append(matched.contains(current) ? ": " : "- ")
+                        .append(text.length() > MAX_LINE_CHARS ? text.subSequence(0, MAX_LINE_CHARS) + "…" : text)
+                        .append('\n');
+                printed = current;
+            }
+        }
+        result.append('\n');
+    }
+}
\ No newline at end of file
@@ -0,0 +1,241 @@
+package com.dobest1.boyka;
+
+import okhttp3.HttpUrl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在已启用的服务商之间路由请求：
+ * 按设置中的顺序优先使用第一个，断路器打开或近期错误率过高的服务商排到后面；
+ * 请求在产生任何输出之前失败时自动切换到下一个服务商；
+ * 启用对冲后，首选服务商在阈值内没有任何输出时同时向下一个服务商发送同一请求，先产生输出的一方胜出，另一方被取消。
+ * 被放弃的一方写入的对话历史会被撤销，胜出的问答以纯文本同步到其他服务商的历史中。
+ */
+public class ProviderRouter {
+    private static final int MIN_SAMPLES = 5;
+    private static final double UNHEALTHY_ERROR_RATE = 0.5;
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 5000;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 1000;
+    private static final long MAX_HEDGE_DELAY_MILLIS = 30_000;
+
+    private final List<ChatClient> clients;
+    private final BoykaAISettings.State settings;
+
+    /**
+     * @param clients 已启用的客户端，按偏好顺序排列
+     */
+    public ProviderRouter(List<ChatClient> clients, BoykaAISettings.State settings) {
+        this.clients = List.copyOf(clients);
+        this.settings = settings;
+    }
+
+    public boolean isEmpty() {
+        return clients.isEmpty();
+    }
+
+    public List<ChatClient> getClients() {
+        return clients;
+    }
+
+    public CallFuture<String> sendMessageAsync(String userMessage, List<Tool> availableTools, StreamListener listener) {
+        List<ChatClient> candidates = orderByHealth();
+        if (!settings.enableFailover && !settings.enableHedging) {
+            candidates = candidates.subList(0, 1);
+        }
+        return new RoutedCall(candidates, userMessage, availableTools, listener).start();
+    }
+
+    // 稳定排序：健康的服务商保持设置中的顺序，不健康的排到最后
+    private List<ChatClient> orderByHealth() {
+        List<ChatClient> ordered = new ArrayList<>(clients);
+        ordered.sort(Comparator.comparing(client -> !isHealthy(client)));
+        return ordered;
+    }
+
+    private static boolean isHealthy(ChatClient client) {
+        HttpUrl url = HttpUrl.parse(client.getApiUrl());
+        if (url == null) {
+            return false;
+        }
+        BoykaAIHttpService httpService = BoykaAIHttpService.getInstance();
+        if (httpService.getCircuitBreaker(url).isOpen()) {
+            return false;
+        }
+        EndpointStats stats = httpService.getEndpointStats(url);
+        return stats.getSampleCount() < MIN_SAMPLES || stats.errorRate() < UNHEALTHY_ERROR_RATE;
+    }
+
+    // 未设置阈值时取首选端点的 p95 首包延迟，样本不足时使用默认值
+    private long hedgeDelayMillis(ChatClient primary) {
+        if (settings.hedgeDelayMs > 0) {
+            return settings.hedgeDelayMs;
+        }
+        HttpUrl url = HttpUrl.parse(primary.getApiUrl());
+        EndpointStats stats = url != null ? BoykaAIHttpService.getInstance().getEndpointStats(url) : null;
+        if (stats == null || stats.getLatencySampleCount() < MIN_SAMPLES) {
+            return DEFAULT_HEDGE_DELAY_MILLIS;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(MAX_HEDGE_DELAY_MILLIS, stats.p95()));
+    }
+
+    /**
+     * 一次路由调用。所有状态变化都在本对象的锁内进行。
+     */
+    private class RoutedCall {
+        private final List<ChatClient> candidates;
+        private final String userMessage;
+        private final List<Tool> availableTools;
+        private final StreamListener listener;
+        private final CallFuture<String> result = new CallFuture<>();
+        private final List<Attempt> attempts = new ArrayList<>();
+        private Attempt winner;
+        private int next;
+
+        RoutedCall(List<ChatClient> candidates, String userMessage, List<Tool> availableTools, StreamListener listener) {
+            this.candidates = candidates;
+            this.userMessage = userMessage;
+            this.availableTools = availableTools;
+            this.listener = listener;
+        }
+
+        CallFuture<String> start() {
+            result.whenComplete((value, error) -> {
+                if (result.isCancelled()) {
+                    cancelAll();
+                }
+            });
+            synchronized (this) {
+                startNext();
+            }
+            if (settings.enableHedging && candidates.size() > 1) {
+                long delay = hedgeDelayMillis(candidates.get(0));
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> hedge(delay));
+            }
+            return result;
+        }
+
+        private boolean startNext() {
+            if (next >= candidates.size()) {
+                return false;
+            }
+            Attempt attempt = new Attempt(candidates.get(next++));
+            attempts.add(attempt);
+            attempt.start();
+            return true;
+        }
+
+        private synchronized void hedge(long delay) {
+            if (result.isDone() || winner != null) {
+                return;
+            }
+            ChatClient hedged = next < candidates.size() ? candidates.get(next) : null;
+            if (hedged != null) {
+                BoykaAILogger.info("No response from " + attempts.get(0).client.getName() + " after " + delay
+                        + " ms, sending hedged request to " + hedged.getName());
+                startNext();
+            }
+        }
+
+        /**
+         * 尝试成为胜出者。第一个产生输出的请求胜出，其余请求被取消并撤销各自写入的历史。
+         */
+        private synchronized boolean claim(Attempt attempt) {
+            if (winner == null && !result.isDone()) {
+                winner = attempt;
+                for (Attempt other : attempts) {
+                    if (other != attempt && !other.future.isDone()) {
+                        other.abandon();
+                    }
+                }
+            }
+            return winner == attempt;
+        }
+
+        private synchronized void onAttemptDone(Attempt attempt, String value, Throwable error) {
+            if (result.isDone()) {
+                return;
+            }
+            if (error == null && claim(attempt)) {
+                syncHistory(attempt, value);
+                result.complete(value);
+                return;
+            }
+            if (attempt == winner) {
+                // 已经产生过输出，不能再换服务商重来
+                result.completeExceptionally(CallFuture.unwrap(error));
+                return;
+            }
+            if (attempt.abandoned) {
+                return;
+            }
+            Throwable cause = error != null ? CallFuture.unwrap(error) : new IllegalStateException("Response discarded");
+            attempt.rollback();
+            if (settings.enableFailover && next < candidates.size()) {
+                BoykaAILogger.warn(attempt.client.getName() + " request failed (" + cause.getMessage()
+                        + "), failing over to " + candidates.get(next).getName());
+                startNext();
+                return;
+            }
+            for (Attempt other : attempts) {
+                if (!other.future.isDone()) {
+                    // 对冲的另一方仍在进行
+                    return;
+                }
+            }
+            result.completeExceptionally(cause);
+        }
+
+        // 其他服务商没有参与这一轮，补上纯文本问答，避免之后切换时丢失上下文
+        private void syncHistory(Attempt attempt, String value) {
+            for (ChatClient client : clients) {
+                if (client != attempt.client) {
+                    client.appendExchange(userMessage, value);
+                }
+            }
+        }
+
+        private synchronized void cancelAll() {
+            for (Attempt attempt : attempts) {
+                attempt.future.cancel(true);
+            }
+        }
+
+        private class Attempt {
+            final ChatClient client;
+            final int historyMark;
+            final CallFuture<String> future = new CallFuture<>();
+            boolean abandoned;
+
+            Attempt(ChatClient client) {
+                this.client = client;
+                this.historyMark = client.getHistorySize();
+            }
+
+            void start() {
+                future.setAdmission(() -> claim(this));
+                StreamListener gated = delta -> {
+                    if (claim(this) && listener != null) {
+                        listener.onTextDelta(delta);
+                    }
+                };
+                client.sendMessageAsync(userMessage, availableTools, gated, future);
+                future.whenComplete((value, error) -> onAttemptDone(this, value, error));
+            }
+
+            void abandon() {
+                abandoned = true;
+                BoykaAILogger.info("Cancelling slower request to " + client.getName());
+                future.cancel(true);
+                rollback();
+            }
+
+            void rollback() {
+                client.truncateHistory(historyMark);
+            }
+        }
+    }
+}
\ No newline at end of file
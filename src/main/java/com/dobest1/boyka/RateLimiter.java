@@ -0,0 +1,274 @@
+package com.dobest1.boyka;
+
+import com.intellij.openapi.components.ServiceManager;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okio.ByteString;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 应用级的客户端限流器。按“端点 + API Key”分别维护每分钟请求数、输入 token 数和输出 token 数三个令牌桶，
+ * IDE 中所有项目、所有请求（包括工具循环中的连续调用）共用同一份额度。
+ * 额度不足时请求会排队等待，而不是发出去再收到 429。
+ * 上限优先取设置中的值；设置为 0 时从服务端的限流响应头中学习，学到之前不限流。
+ */
+public class RateLimiter {
+    private static final long MINUTE_MILLIS = 60_000L;
+    private static final int DEFAULT_OUTPUT_ESTIMATE = 1024;
+
+    private final Map<String, EndpointLimits> endpoints = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile EndpointLimits lastUsed;
+
+    public static RateLimiter getInstance() {
+        return ServiceManager.getService(RateLimiter.class);
+    }
+
+    /**
+     * 一次请求的预估开销，作为 OkHttp Request 的 tag 传给 {@link BoykaAIHttpService}。
+     */
+    public static class Cost {
+        final int inputTokens;
+        final int outputTokens;
+
+        public Cost(int inputTokens, int outputTokens) {
+            this.inputTokens = inputTokens;
+            this.outputTokens = outputTokens;
+        }
+    }
+
+    /**
+     * 估算请求的开销。输入优先使用发送前已统计的 token 数；输出按 max_tokens 和一个典型值中的较小者预约，
+     * 实际用量由响应头校正。未启用限流时返回 null，避免多序列化一次请求体。
+     */
+    public Cost estimateCost(JsonRequestBody body, int maxTokens) {
+        if (!isEnabled()) {
+            return null;
+        }
+        int inputTokens = body.getInputTokens() >= 0 ? body.getInputTokens() : TokenEstimator.estimate(body);
+        return new Cost(inputTokens, Math.min(maxTokens, DEFAULT_OUTPUT_ESTIMATE));
+    }
+
+    /**
+     * 为请求预约额度，返回发送前需要等待的毫秒数。
+     */
+    public long reserve(Request request) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        EndpointLimits limits = limitsFor(request);
+        lastUsed = limits;
+        Cost cost = request.tag(Cost.class);
+        return limits.reserve(cost, BoykaAISettings.getInstance().getState(), System.currentTimeMillis());
+    }
+
+    /**
+     * 根据响应头中的限流信息校正上限和剩余额度。
+     */
+    public void update(Request request, Headers headers) {
+        if (!isEnabled()) {
+            return;
+        }
+        limitsFor(request).update(headers, System.currentTimeMillis());
+    }
+
+    void queuedChanged(int delta) {
+        queued.addAndGet(delta);
+    }
+
+    /**
+     * 状态栏显示的简短状态。
+     */
+    public String getStatusText() {
+        int waiting = queued.get();
+        if (waiting > 0) {
+            return "AI: " + waiting + " queued";
+        }
+        EndpointLimits limits = lastUsed;
+        if (!isEnabled() || limits == null) {
+            return "Boyka AI";
+        }
+        return "AI " + limits.describe(System.currentTimeMillis(), true);
+    }
+
+    /**
+     * 状态栏提示中的限流部分，HTML 片段。
+     */
+    public String getTooltipText() {
+        if (!isEnabled()) {
+            return "Boyka AI Assistant (rate limiting disabled)";
+        }
+        StringBuilder tooltip = new StringBuilder("Boyka AI rate limits (available / per minute)");
+        long now = System.currentTimeMillis();
+        for (EndpointLimits limits : endpoints.values()) {
+            tooltip.append("<br>").append(limits.label).append(": ").append(limits.describe(now, false));
+        }
+        if (queued.get() > 0) {
+            tooltip.append("<br>").append(queued.get()).append(" request(s) waiting");
+        }
+        return tooltip.toString();
+    }
+
+    private EndpointLimits limitsFor(Request request) {
+        HttpUrl url = request.url();
+        String apiKey = request.header("x-api-key");
+        if (apiKey == null) {
+            apiKey = request.header("Authorization");
+        }
+        // 只保存 API Key 的摘要
+        String keyHash = apiKey == null ? "" : ByteString.encodeUtf8(apiKey).sha256().hex().substring(0, 8);
+        String key = url.scheme() + "://" + url.host() + ":" + url.port() + "#" + keyHash;
+        return endpoints.computeIfAbsent(key, k -> new EndpointLimits(url.host() + (keyHash.isEmpty() ? "" : " (key " + keyHash + ")")));
+    }
+
+    private static boolean isEnabled() {
+        BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
+        return settings != null && settings.enableRateLimit;
+    }
+
+    private static class EndpointLimits {
+        final String label;
+        final TokenBucket requests = new TokenBucket();
+        final TokenBucket inputTokens = new TokenBucket();
+        final TokenBucket outputTokens = new TokenBucket();
+
+        EndpointLimits(String label) {
+            this.label = label;
+        }
+
+        synchronized long reserve(Cost cost, BoykaAISettings.State settings, long now) {
+            if (settings != null) {
+                requests.configure(settings.rateLimitRpm, now);
+                inputTokens.configure(settings.rateLimitInputTpm, now);
+                outputTokens.configure(settings.rateLimitOutputTpm, now);
+            }
+            long wait = requests.reserve(1, now);
+            if (cost != null) {
+                wait = Math.max(wait, inputTokens.reserve(cost.inputTokens, now));
+                wait = Math.max(wait, outputTokens.reserve(cost.outputTokens, now));
+            }
+            return wait;
+        }
+
+        synchronized void update(Headers headers, long now) {
+            // Anthropic
+            requests.learn(headers.get("anthropic-ratelimit-requests-limit"), headers.get("anthropic-ratelimit-requests-remaining"), now);
+            inputTokens.learn(headers.get("anthropic-ratelimit-input-tokens-limit"), headers.get("anthropic-ratelimit-input-tokens-remaining"), now);
+            outputTokens.learn(headers.get("anthropic-ratelimit-output-tokens-limit"), headers.get("anthropic-ratelimit-output-tokens-remaining"), now);
+            // OpenAI：输入输出共用一个 TPM 额度，记在输入桶上
+            requests.learn(headers.get("x-ratelimit-limit-requests"), headers.get("x-ratelimit-remaining-requests"), now);
+            inputTokens.learn(headers.get("x-ratelimit-limit-tokens"), headers.get("x-ratelimit-remaining-tokens"), now);
+        }
+
+        synchronized String describe(long now, boolean compact) {
+            StringBuilder text = new StringBuilder();
+            append(text, "req", requests, now, compact);
+            append(text, "in", inputTokens, now, compact);
+            append(text, "out", outputTokens, now, compact);
+            return text.length() == 0 ? (compact ? "" : "no limits known yet") : text.toString();
+        }
+
+        private static void append(StringBuilder text, String name, TokenBucket bucket, long now, boolean compact) {
+            if (!bucket.isLimited()) {
+                return;
+            }
+            if (text.length() > 0) {
+                text.append(compact ? " " : ", ");
+            }
+            text.append(name).append(' ').append(format(bucket.available(now))).append('/').append(format(bucket.capacity));
+        }
+
+        private static String format(double value) {
+            if (value >= 10_000) {
+                return Math.round(value / 1000) + "k";
+            }
+            return String.valueOf(Math.round(value));
+        }
+    }
+
+    /**
+     * 按分钟匀速补充的令牌桶。预约可以透支，透支部分换算成需要等待的时间，
+     * 因此后来的请求自然排在先来的请求之后。
+     */
+    private static class TokenBucket {
+        double capacity;
+        double tokens;
+        long lastRefill;
+        boolean configured;
+
+        boolean isLimited() {
+            return capacity > 0;
+        }
+
+        // 设置中的上限优先于从响应头学到的上限
+        void configure(int perMinute, long now) {
+            if (perMinute > 0) {
+                setCapacity(perMinute, now);
+                configured = true;
+            } else if (configured) {
+                configured = false;
+                capacity = 0;
+            }
+        }
+
+        void learn(String limit, String remaining, long now) {
+            if (limit == null && remaining == null) {
+                return;
+            }
+            refill(now);
+            if (!configured && limit != null) {
+                try {
+                    setCapacity(Double.parseDouble(limit.trim()), now);
+                } catch (NumberFormatException ignored) {
+                    // 忽略无法解析的值
+                }
+            }
+            if (remaining != null && isLimited()) {
+                try {
+                    tokens = Math.min(tokens, Double.parseDouble(remaining.trim()));
+                } catch (NumberFormatException ignored) {
+                    // 忽略无法解析的值
+                }
+            }
+        }
+
+        long reserve(double amount, long now) {
+            if (!isLimited()) {
+                return 0;
+            }
+            refill(now);
+            tokens -= Math.min(amount, capacity);
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * MINUTE_MILLIS / capacity);
+        }
+
+        double available(long now) {
+            refill(now);
+            return Math.max(0, tokens);
+        }
+
+        private void setCapacity(double perMinute, long now) {
+            if (perMinute == capacity) {
+                return;
+            }
+            refill(now);
+            if (capacity <= 0) {
+                tokens = perMinute;
+                lastRefill = now;
+            } else {
+                tokens = Math.min(tokens, perMinute);
+            }
+            capacity = perMinute;
+        }
+
+        private void refill(long now) {
+            if (capacity > 0 && now > lastRefill) {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * capacity / MINUTE_MILLIS);
+            }
+            lastRefill = now;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,376 @@
+package com.dobest1.boyka;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 项目源文件的 BM25 索引，用于发送消息时自动挑选相关的代码片段作为上下文。
+ * 首次使用时在后台建立索引，之后由 VFS 事件驱动只重新索引变化的文件；
+ * 索引保存在 IDE 系统目录下，重新打开项目时只检查修改时间和大小有变化的文件。
+ */
+public class RelevanceIndex implements Disposable {
+    private static final long REFRESH_DELAY_MS = 1000;
+    private static final long SAVE_DELAY_MS = 30_000;
+    private static final long MAX_FILE_BYTES = 512 * 1024;
+    private static final int MAX_HITS = 40;
+    // 得分低于最高分这一比例的块视为不相关
+    private static final double MIN_RELATIVE_SCORE = 0.25;
+    private static final int MIN_CHUNK_TOKENS = 32;
+    private static final String RELEVANT_CODE_START = "\n\n<relevant_code>\n";
+    private static final String RELEVANT_CODE_END = "</relevant_code>";
+
+    private final Project project;
+    private final Path indexFile;
+    private final Set<String> dirtyPaths = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    private volatile Bm25Index index = new Bm25Index();
+    private volatile boolean ready;
+
+    public static RelevanceIndex getInstance(Project project) {
+        return ServiceManager.getService(project, RelevanceIndex.class);
+    }
+
+    public RelevanceIndex(Project project) {
+        this.project = project;
+        this.indexFile = Paths.get(PathManager.getSystemPath(), "boyka-ai", "index",
+                project.getName() + "." + Integer.toHexString(String.valueOf(project.getBasePath()).hashCode()) + ".bm25");
+        project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                onFileEvents(events);
+            }
+        });
+        AppExecutorUtil.getAppExecutorService().execute(this::build);
+    }
+
+    @Override
+    public void dispose() {
+        if (ready) {
+            save();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 在消息后附加与之最相关的代码片段，总量不超过 tokenBudget。已在上下文中的文件跳过；
+     * 索引尚未建好或没有相关片段时原样返回。会读取文件，不要在 EDT 上调用。
+     */
+    public String withRelevantCode(String message, int tokenBudget, ContextSnapshot context) {
+        if (!ready || tokenBudget <= 0 || message == null || message.isBlank()) {
+            return message;
+        }
+        return attachRelevantCode(message, selectRelevantCode(stripRelevantCode(message), tokenBudget, context));
+    }
+
+    /**
+     * 把代码片段附加到消息末尾的 relevant_code 块中，已有该块时追加在块内。
+     */
+    public static String attachRelevantCode(String message, String code) {
+        if (code == null || code.isEmpty()) {
+            return message;
+        }
+        if (!stripRelevantCode(message).equals(message)) {
+            return message.substring(0, message.length() - RELEVANT_CODE_END.length()) + code + RELEVANT_CODE_END;
+        }
+        return message + RELEVANT_CODE_START + code + RELEVANT_CODE_END;
+    }
+
+    /**
+     * 去掉 {@link #withRelevantCode} 附加的代码片段，用于压缩较早的对话历史。
+     */
+    public static String stripRelevantCode(String message) {
+        if (message == null) {
+            return null;
+        }
+        int start = message.indexOf(RELEVANT_CODE_START);
+        return start >= 0 && message.endsWith(RELEVANT_CODE_END) ? message.substring(0, start) : message;
+    }
+
+    String selectRelevantCode(String query, int tokenBudget, ContextSnapshot context) {
+        List<Bm25Index.Hit> hits = index.search(query, MAX_HITS);
+        if (hits.isEmpty()) {
+            return "";
+        }
+        double minScore = hits.get(0).score * MIN_RELATIVE_SCORE;
+        String model = TokenCounter.activeModel();
+        TokenCounter tokenCounter = TokenCounter.getInstance();
+        Map<String, String[]> lines = new HashMap<>();
+        StringBuilder result = new StringBuilder();
+        int remaining = tokenBudget;
+        int selected = 0;
+        for (Bm25Index.Hit hit : hits) {
+            if (hit.score < minScore || remaining < MIN_CHUNK_TOKENS) {
+                break;
+            }
+            if (context != null && context.contains(hit.path)) {
+                continue;
+            }
+            String[] fileLines = lines.computeIfAbsent(hit.path, path -> {
+                String content = loadContent(path);
+                return content != null ? content.split("\n", -1) : null;
+            });
+            if (fileLines == null || hit.startLine >= fileLines.length) {
+                continue;
+            }
+            int end = Math.min(hit.endLine, fileLines.length);
+            String chunk = "File: " + hit.path + " (lines " + (hit.startLine + 1) + "-" + end + ")\n"
+                    + String.join("\n", List.of(fileLines).subList(hit.startLine, end)) + "\n\n";
+            int tokens = tokenCounter.count(model, chunk);
+            if (tokens > remaining) {
+                continue;
+            }
+            result.append(chunk);
+            remaining -= tokens;
+            selected++;
+        }
+        if (selected > 0) {
+            BoykaAILogger.info("Selected " + selected + " relevant chunks (" + (tokenBudget - remaining) + " tokens) for the message");
+        }
+        return result.toString();
+    }
+
+    // 读取上次保存的索引，再与项目当前的文件对比，只重新索引有变化的文件
+    private void build() {
+        long start = System.currentTimeMillis();
+        Bm25Index loaded = load();
+        if (loaded != null) {
+            index = loaded;
+        }
+        List<VirtualFile> files = ReadAction.compute(this::collectProjectFiles);
+        if (project.isDisposed()) {
+            return;
+        }
+        Set<String> current = new HashSet<>();
+        int indexed = 0;
+        for (VirtualFile file : files) {
+            current.add(file.getPath());
+            if (!index.isUpToDate(file.getPath(), file.getTimeStamp(), file.getLength())) {
+                indexFile(file);
+                indexed++;
+            }
+        }
+        Set<String> removed = index.getFiles();
+        removed.removeAll(current);
+        for (String path : removed) {
+            index.removeFile(path);
+        }
+        ready = true;
+        BoykaAILogger.info("Relevance index ready: " + current.size() + " files, " + index.getChunkCount() + " chunks, "
+                + indexed + " re-indexed in " + (System.currentTimeMillis() - start) + " ms");
+        if (indexed > 0 || !removed.isEmpty() || loaded == null) {
+            save();
+        }
+    }
+
+    private List<VirtualFile> collectProjectFiles() {
+        List<VirtualFile> files = new ArrayList<>();
+        ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+        fileIndex.iterateContent(file -> {
+            if (isIndexable(file)) {
+                files.add(file);
+            }
+            return !project.isDisposed();
+        });
+        return files;
+    }
+
+    private static boolean isIndexable(VirtualFile file) {
+        return file.isValid() && !file.isDirectory() && file.isInLocalFileSystem() && file.getLength() <= MAX_FILE_BYTES
+                && (file.getFileType() == null || !file.getFileType().isBinary());
+    }
+
+    private void indexFile(VirtualFile file) {
+        String content = loadContent(file);
+        if (content != null) {
+            index.addFile(file.getPath(), file.getTimeStamp(), file.getLength(), content);
+        } else {
+            index.removeFile(file.getPath());
+        }
+    }
+
+    private void onFileEvents(List<? extends VFileEvent> events) {
+        for (VFileEvent event : events) {
+            String oldPath = null;
+            if (event instanceof VFileMoveEvent) {
+                oldPath = ((VFileMoveEvent) event).getOldPath();
+            } else if (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename()) {
+                oldPath = ((VFilePropertyChangeEvent) event).getOldPath();
+            }
+            if (oldPath != null) {
+                markDirty(oldPath);
+            }
+            markDirty(event.getPath());
+        }
+    }
+
+    private void markDirty(String path) {
+        dirtyPaths.add(path);
+        if (refreshScheduled.compareAndSet(false, true)) {
+            AppExecutorUtil.getAppScheduledExecutorService().schedule(this::refreshDirtyPaths, REFRESH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void refreshDirtyPaths() {
+        refreshScheduled.set(false);
+        if (project.isDisposed()) {
+            return;
+        }
+        if (!ready) {
+            // 初次建立索引时会读取所有文件的当前内容，等它结束后再处理期间的变化
+            if (refreshScheduled.compareAndSet(false, true)) {
+                AppExecutorUtil.getAppScheduledExecutorService().schedule(this::refreshDirtyPaths, REFRESH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        List<String> paths = new ArrayList<>(dirtyPaths);
+        dirtyPaths.removeAll(paths);
+        for (String path : paths) {
+            VirtualFile file = LocalFileSystem.getInstance().findFileByPath(path);
+            if (file == null || !file.isValid()) {
+                index.removeFile(path);
+                index.removeUnder(path);
+                continue;
+            }
+            List<VirtualFile> files = new ArrayList<>();
+            ReadAction.run(() -> collectContent(file, files));
+            if (file.isDirectory()) {
+                // 目录被移出内容根或排除时，目录下原来的文件需要删除
+                Set<String> removed = new HashSet<>();
+                for (String indexed : index.getFiles()) {
+                    if (indexed.startsWith(path + "/")) {
+                        removed.add(indexed);
+                    }
+                }
+                files.forEach(child -> removed.remove(child.getPath()));
+                removed.forEach(index::removeFile);
+            } else if (files.isEmpty()) {
+                index.removeFile(path);
+            }
+            for (VirtualFile child : files) {
+                if (!index.isUpToDate(child.getPath(), child.getTimeStamp(), child.getLength())) {
+                    indexFile(child);
+                }
+            }
+        }
+        scheduleSave();
+    }
+
+    // 收集文件或目录下属于项目内容、可以索引的文件
+    private void collectContent(VirtualFile file, List<VirtualFile> files) {
+        ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+        if (!fileIndex.isInContent(file)) {
+            return;
+        }
+        if (!file.isDirectory()) {
+            if (isIndexable(file)) {
+                files.add(file);
+            }
+            return;
+        }
+        VfsUtilCore.iterateChildrenRecursively(file, child -> fileIndex.isInContent(child), child -> {
+            if (isIndexable(child)) {
+                files.add(child);
+            }
+            return true;
+        });
+    }
+
+    // 编辑器中打开的文件以文档为准（可能有未保存的修改），否则按文件编码读取
+    private static String loadContent(VirtualFile file) {
+        Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+        if (document != null) {
+            return ReadAction.compute(document::getText);
+        }
+        try {
+            return VfsUtilCore.loadText(file);
+        } catch (IOException e) {
+            BoykaAILogger.debug("Failed to index " + file.getPath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String loadContent(String path) {
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(path);
+        return file != null && file.isValid() && !file.isDirectory() ? loadContent(file) : null;
+    }
+
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            AppExecutorUtil.getAppScheduledExecutorService().schedule(() -> {
+                saveScheduled.set(false);
+                if (!project.isDisposed()) {
+                    save();
+                }
+            }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Bm25Index load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(indexFile))))) {
+            return Bm25Index.read(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to load relevance index " + indexFile + ", rebuilding: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized void save() {
+        try {
+            Files.createDirectories(indexFile.getParent());
+            Path temp = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+                index.write(out);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to save relevance index " + indexFile + ": " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
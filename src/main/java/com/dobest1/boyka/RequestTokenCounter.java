@@ -0,0 +1,40 @@
+package com.dobest1.boyka;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 按组成部分统计请求的输入 token 数。历史消息和工具列表在多轮请求之间是同一个对象，
+ * 计数按对象缓存，每轮只需要为新增的消息分词。
+ */
+class RequestTokenCounter {
+    private final String model;
+    private final Map<Object, Integer> parts = Collections.synchronizedMap(new WeakHashMap<>());
+
+    RequestTokenCounter(String model) {
+        this.model = model;
+    }
+
+    String getModel() {
+        return model;
+    }
+
+    int text(String text) {
+        return TokenCounter.getInstance().count(model, text);
+    }
+
+    /**
+     * 统计一个消息或工具列表序列化后的 token 数，key 为该对象本身。
+     */
+    int part(Object key, JsonRequestBody.Content content) {
+        if (key == null) {
+            return 0;
+        }
+        return parts.computeIfAbsent(key, k -> text(new JsonRequestBody(content, "").toJsonString()));
+    }
+
+    void clear() {
+        parts.clear();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,232 @@
+package com.dobest1.boyka;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ServiceManager;
+import okio.BufferedSink;
+import okio.HashingSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 应用级的磁盘响应缓存，用于输入完全相同的无历史调用（例如生成编辑指令）。
+ * 键是请求体的 SHA-256，请求体已包含模型、系统提示、消息和工具定义；值是最终的回答文本。
+ * 每个条目是缓存目录下的一个文件，文件修改时间即写入时间，用于判断 TTL；
+ * 内存中按访问顺序维护索引，总大小超过上限时淘汰最久未使用的条目。
+ */
+public class ResponseCache {
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+    private static final long MILLIS_PER_HOUR = 3_600_000L;
+    private static final String SUFFIX = ".txt";
+
+    private final Path directory;
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long totalBytes;
+    private boolean loaded;
+
+    public static ResponseCache getInstance() {
+        return ServiceManager.getService(ResponseCache.class);
+    }
+
+    public ResponseCache() {
+        this(Paths.get(PathManager.getSystemPath(), "boyka-ai", "response-cache"));
+    }
+
+    ResponseCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 计算缓存键。namespace 用于区分服务商和端点，同名模型在不同端点上可能给出不同的回答。
+     */
+    public static String key(String namespace, JsonRequestBody body) {
+        HashingSink hashingSink = HashingSink.sha256(Okio.blackhole());
+        try (BufferedSink sink = Okio.buffer(hashingSink)) {
+            sink.writeUtf8(namespace).writeByte('\n');
+            body.writeTo(sink);
+            sink.flush();
+            return hashingSink.hash().hex();
+        } catch (IOException e) {
+            // 写入 blackhole 不会发生 I/O 错误
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized String get(String key) {
+        ensureLoaded();
+        Entry entry = index.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.createdAt > ttlMillis()) {
+            remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            String value = Files.readString(file(key), StandardCharsets.UTF_8);
+            hits.incrementAndGet();
+            return value;
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to read cached response " + key + ": " + e.getMessage());
+            remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        ensureLoaded();
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            Files.writeString(temp, value, StandardCharsets.UTF_8);
+            Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Entry previous = index.put(key, new Entry(Files.size(file(key)), System.currentTimeMillis()));
+            if (previous != null) {
+                totalBytes -= previous.size;
+            }
+            totalBytes += index.get(key).size;
+            evict();
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to store cached response " + key + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void clear() {
+        ensureLoaded();
+        for (String key : new ArrayList<>(index.keySet())) {
+            remove(key);
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return index.size();
+    }
+
+    // 首次访问时扫描缓存目录，按修改时间排序近似恢复 LRU 顺序
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                } else if (name.endsWith(SUFFIX)) {
+                    files.add(path);
+                }
+            }
+            files.sort(Comparator.comparingLong(ResponseCache::lastModified));
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                long size = Files.size(path);
+                index.put(name.substring(0, name.length() - SUFFIX.length()), new Entry(size, lastModified(path)));
+                totalBytes += size;
+            }
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to load response cache: " + e.getMessage());
+        }
+        evict();
+    }
+
+    private void evict() {
+        long maxBytes = maxBytes();
+        long now = System.currentTimeMillis();
+        long ttl = ttlMillis();
+        Iterator<Map.Entry<String, Entry>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            if (totalBytes <= maxBytes && now - eldest.getValue().createdAt <= ttl) {
+                continue;
+            }
+            iterator.remove();
+            totalBytes -= eldest.getValue().size;
+            deleteFile(eldest.getKey());
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = index.remove(key);
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+        deleteFile(key);
+    }
+
+    private void deleteFile(String key) {
+        try {
+            Files.deleteIfExists(file(key));
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to delete cached response " + key + ": " + e.getMessage());
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long maxBytes() {
+        BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
+        return settings != null ? Math.max(1, settings.responseCacheMaxMb) * BYTES_PER_MB : 256 * BYTES_PER_MB;
+    }
+
+    private static long ttlMillis() {
+        BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
+        return settings != null ? Math.max(1, settings.responseCacheTtlHours) * MILLIS_PER_HOUR : 168 * MILLIS_PER_HOUR;
+    }
+
+    private static class Entry {
+        final long size;
+        final long createdAt;
+
+        Entry(long size, long createdAt) {
+            this.size = size;
+            this.createdAt = createdAt;
+        }
+    }
+}
\ No newline at end of file
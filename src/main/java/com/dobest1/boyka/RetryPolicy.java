@@ -0,0 +1,26 @@
+package com.dobest1.boyka;
+
+import okhttp3.Headers;
+
+import java.io.IOException;
+
+/**
+ * 决定一次失败的请求是否重试以及重试前等待多久。
+ */
+public interface RetryPolicy {
+    /**
+     * 计算下一次重试前的等待时间。
+     *
+     * @param attempt    已失败的尝试序号，从 0 开始
+     * @param statusCode HTTP 状态码；网络错误时为 -1
+     * @param headers    响应头；网络错误时为 null
+     * @param error      网络或解析错误；收到非成功响应时为 null
+     * @return 等待的毫秒数，不应重试时返回 -1
+     */
+    long nextDelayMillis(int attempt, int statusCode, Headers headers, IOException error);
+
+    /**
+     * 该失败是否说明端点本身不可用，用于断路器计数。客户端错误（如 400、401）不计入。
+     */
+    boolean isEndpointFailure(int statusCode, IOException error);
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+package com.dobest1.boyka;
+
+import okio.BufferedSource;
+
+import java.io.IOException;
+
+/**
+ * 按行解析 text/event-stream 响应体，每次返回一个完整的事件。
+ */
+class ServerSentEventReader {
+    private final BufferedSource source;
+
+    ServerSentEventReader(BufferedSource source) {
+        this.source = source;
+    }
+
+    /**
+     * 读取下一个事件，流结束时返回 null。
+     */
+    Event next() throws IOException {
+        String name = null;
+        StringBuilder data = null;
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.isEmpty()) {
+                if (data != null) {
+                    return new Event(name, data.toString());
+                }
+                name = null;
+                continue;
+            }
+            if (line.startsWith(":")) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            String field = colon < 0 ? line : line.substring(0, colon);
+            String value = colon < 0 ? "" : line.substring(colon + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            if ("event".equals(field)) {
+                name = value;
+            } else if ("data".equals(field)) {
+                if (data == null) {
+                    data = new StringBuilder(value);
+                } else {
+                    data.append('\n').append(value);
+                }
+            }
+        }
+        return data != null ? new Event(name, data.toString()) : null;
+    }
+
+    static class Event {
+        final String name;
+        final String data;
+
+        Event(String name, String data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+}
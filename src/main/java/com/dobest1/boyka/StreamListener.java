@@ -0,0 +1,8 @@
+package com.dobest1.boyka;
+
+/**
+ * 接收流式响应中的增量文本，用于在回答生成过程中实时刷新界面。
+ */
+public interface StreamListener {
+    void onTextDelta(String delta);
+}
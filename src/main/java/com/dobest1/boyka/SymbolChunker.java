@@ -0,0 +1,271 @@
+package com.dobest1.boyka;
+
+import com.intellij.ide.structureView.StructureViewBuilder;
+import com.intellij.ide.structureView.StructureViewModel;
+import com.intellij.ide.structureView.StructureViewTreeElement;
+import com.intellij.ide.structureView.TreeBasedStructureViewBuilder;
+import com.intellij.ide.util.treeView.smartTree.TreeElement;
+import com.intellij.lang.LanguageStructureViewBuilder;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.ElementDescriptionUtil;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import com.intellij.psi.PsiNameIdentifierOwner;
+import com.intellij.psi.PsiNamedElement;
+import com.intellij.usageView.UsageViewTypeLocation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 用 PSI 把源文件切分为类、方法、字段等符号。符号的划分取自语言的结构视图，
+ * 因此 Java、Kotlin 以及其他提供了结构视图的语言都适用。
+ * 符号 ID 是外层到内层的名称用点连接，例如 ContextManager.getFullContext，重载的第 n 个加上 ~n。
+ */
+public final class SymbolChunker {
+    private static final int MAX_SIGNATURE_CHARS = 300;
+    private static final Pattern IDENTIFIER = Pattern.compile("[\\p{L}_$][\\p{L}\\p{N}_$]*(?:\\.[\\p{L}_$][\\p{L}\\p{N}_$]*)*");
+
+    private SymbolChunker() {
+    }
+
+    public static final class Symbol {
+        private final String id;
+        private final String name;
+        private final String kind;
+        private final String signature;
+        private final int depth;
+        private final int startLine;
+        private final int endLine;
+        private final String text;
+        private boolean container;
+
+        Symbol(String id, String name, String kind, String signature, int depth, int startLine, int endLine, String text) {
+            this.id = id;
+            this.name = name;
+            this.kind = kind;
+            this.signature = signature;
+            this.depth = depth;
+            this.startLine = startLine;
+            this.endLine = endLine;
+            this.text = text;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 符号的类别，例如 class、method、field，由语言插件描述。
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+
+        /**
+         * 起止行号，从 1 开始，包含结束行。
+         */
+        public int getStartLine() {
+            return startLine;
+        }
+
+        public int getEndLine() {
+            return endLine;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * 是否包含下级符号，例如类。
+         */
+        public boolean isContainer() {
+            return container;
+        }
+    }
+
+    /**
+     * 按文件名推断语言并解析内容，返回按出现顺序排列的符号，外层在内层之前。
+     * 语言没有结构视图时返回空列表。
+     */
+    public static List<Symbol> chunk(Project project, String fileName, String text) {
+        return ReadAction.compute(() -> {
+            PsiFile psiFile = PsiFileFactory.getInstance(project).createFileFromText(
+                    fileName, FileTypeManager.getInstance().getFileTypeByFileName(fileName), text);
+            return psiFile != null ? chunk(psiFile, text) : new ArrayList<>();
+        });
+    }
+
+    private static List<Symbol> chunk(PsiFile psiFile, String text) {
+        List<Symbol> symbols = new ArrayList<>();
+        StructureViewBuilder builder = LanguageStructureViewBuilder.getInstance().getStructureViewBuilder(psiFile);
+        if (!(builder instanceof TreeBasedStructureViewBuilder)) {
+            return symbols;
+        }
+        StructureViewModel model = ((TreeBasedStructureViewBuilder) builder).createStructureViewModel(null);
+        try {
+            collect(model.getRoot(), "", 0, text, new LineIndex(text), symbols);
+        } finally {
+            Disposer.dispose(model);
+        }
+        return symbols;
+    }
+
+    private static void collect(TreeElement parent, String prefix, int depth, String text, LineIndex lines, List<Symbol> symbols) {
+        Map<String, Integer> seen = new HashMap<>();
+        for (TreeElement child : parent.getChildren()) {
+            if (!(child instanceof StructureViewTreeElement) || !(((StructureViewTreeElement) child).getValue() instanceof PsiElement)) {
+                continue;
+            }
+            PsiElement element = (PsiElement) ((StructureViewTreeElement) child).getValue();
+            TextRange range = element.getTextRange();
+            if (range == null || range.getEndOffset() > text.length()) {
+                continue;
+            }
+            String name = name(element, child);
+            int occurrence = seen.merge(name, 1, Integer::sum);
+            String id = prefix + name + (occurrence > 1 ? "~" + occurrence : "");
+            Symbol symbol = new Symbol(id, name, ElementDescriptionUtil.getElementDescription(element, UsageViewTypeLocation.INSTANCE),
+                    signature(element, text), depth, lines.lineOf(range.getStartOffset()),
+                    lines.lineOf(Math.max(range.getStartOffset(), range.getEndOffset() - 1)),
+                    text.substring(range.getStartOffset(), range.getEndOffset()));
+            symbols.add(symbol);
+            int before = symbols.size();
+            collect(child, id + ".", depth + 1, text, lines, symbols);
+            symbol.container = symbols.size() > before;
+        }
+    }
+
+    private static String name(PsiElement element, TreeElement treeElement) {
+        if (element instanceof PsiNamedElement && ((PsiNamedElement) element).getName() != null) {
+            return ((PsiNamedElement) element).getName();
+        }
+        String text = treeElement.getPresentation() != null ? treeElement.getPresentation().getPresentableText() : null;
+        return text != null && !text.isBlank() ? text.trim() : "<anonymous>";
+    }
+
+    // 从名称所在行的行首取到方法体、初始化表达式或行尾之前，跳过前面的文档注释和注解
+    private static String signature(PsiElement element, String text) {
+        TextRange range = element.getTextRange();
+        int start = range.getStartOffset();
+        if (element instanceof PsiNameIdentifierOwner && ((PsiNameIdentifierOwner) element).getNameIdentifier() != null) {
+            int nameOffset = ((PsiNameIdentifierOwner) element).getNameIdentifier().getTextRange().getStartOffset();
+            start = Math.max(start, text.lastIndexOf('\n', nameOffset - 1) + 1);
+        }
+        int end = Math.min(range.getEndOffset(), start + MAX_SIGNATURE_CHARS);
+        int depth = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '(' || c == '<' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == '>' || c == ']') {
+                depth = Math.max(0, depth - 1);
+            } else if (depth == 0 && (c == '{' || c == ';' || c == '=' || c == '\n')) {
+                end = i;
+                break;
+            }
+        }
+        return text.substring(start, end).replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * 文件的大纲：每个符号一行，按层级缩进，列出签名、ID 和行号范围。
+     */
+    public static String outline(List<Symbol> symbols) {
+        StringBuilder outline = new StringBuilder();
+        for (Symbol symbol : symbols) {
+            outline.append("  ".repeat(symbol.depth)).append(symbol.signature)
+                    .append("  [").append(symbol.id).append(", lines ").append(symbol.startLine).append('-').append(symbol.endLine).append("]\n");
+        }
+        return outline.toString();
+    }
+
+    /**
+     * 按 ID 或名称查找符号。ID 可以省略外层部分，例如 getFullContext 能匹配 ContextManager.getFullContext；
+     * 有多个匹配时取第一个。
+     */
+    public static Symbol find(List<Symbol> symbols, String query) {
+        String trimmed = query.trim();
+        for (Symbol symbol : symbols) {
+            if (symbol.id.equals(trimmed)) {
+                return symbol;
+            }
+        }
+        for (Symbol symbol : symbols) {
+            if (symbol.id.endsWith("." + trimmed) || symbol.name.equals(trimmed)) {
+                return symbol;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 消息中提到名称的符号，只包括不含下级符号的成员，例如方法和字段；类只有签名出现在大纲中。
+     */
+    public static List<Symbol> referencedBy(List<Symbol> symbols, String message) {
+        Set<String> words = new HashSet<>();
+        Matcher matcher = IDENTIFIER.matcher(message);
+        while (matcher.find()) {
+            String word = matcher.group();
+            words.add(word);
+            words.add(word.substring(word.lastIndexOf('.') + 1));
+        }
+        List<Symbol> result = new ArrayList<>();
+        for (Symbol symbol : symbols) {
+            if (!symbol.container && (words.contains(symbol.name) || words.contains(symbol.id))) {
+                result.add(symbol);
+            }
+        }
+        return result;
+    }
+
+    // 偏移量到行号（从 1 开始）的映射
+    private static final class LineIndex {
+        private final int[] lineStarts;
+
+        LineIndex(String text) {
+            List<Integer> starts = new ArrayList<>();
+            starts.add(0);
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') {
+                    starts.add(i + 1);
+                }
+            }
+            lineStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        int lineOf(int offset) {
+            int low = 0;
+            int high = lineStarts.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (lineStarts[mid] <= offset) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low + 1;
+        }
+    }
+}
\ No newline at end of file
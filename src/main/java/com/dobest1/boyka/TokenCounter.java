@@ -0,0 +1,237 @@
+package com.dobest1.boyka;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ServiceManager;
+import okio.ByteString;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 应用级的本地 token 计数。OpenAI 模型在找到对应的 tiktoken 词表文件时使用精确的 BPE 分词，
+ * 其余情况（包括 Claude，其分词器未公开）使用 {@link TokenEstimator} 的估算值乘以校准系数，
+ * 校准系数根据响应中返回的实际输入 token 数持续修正。
+ * 词表文件放在设置中指定的目录，默认是 IDE 系统目录下的 boyka-ai/tokenizers，文件名如 cl100k_base.tiktoken。
+ */
+public class TokenCounter {
+    private static final int CACHE_ENTRIES = 4096;
+    // 短文本直接计算，不进缓存
+    private static final int MIN_CACHED_LENGTH = 256;
+    private static final double CALIBRATION_WEIGHT = 0.2;
+    private static final double MIN_RATIO = 0.5;
+    private static final double MAX_RATIO = 2.5;
+    private static final double ESTIMATE_MARGIN = 1.05;
+    private static final int MIN_OUTPUT_TOKENS = 256;
+
+    private final Map<String, Optional<BpeTokenizer>> vocabularies = new ConcurrentHashMap<>();
+    private final Map<String, CalibratedEstimator> estimators = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Integer> cache = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > CACHE_ENTRIES;
+        }
+    };
+
+    public static TokenCounter getInstance() {
+        return ServiceManager.getService(TokenCounter.class);
+    }
+
+    /**
+     * 当前启用的服务商所用的模型，两者都启用时与 {@link ProviderRouter} 一样优先 Claude。
+     */
+    public static String activeModel() {
+        BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
+        if (settings == null) {
+            return "";
+        }
+        return settings.enableClaude || !settings.enableOpenai ? settings.claudeModel : settings.selectedModel;
+    }
+
+    public Tokenizer getTokenizer(String model) {
+        String encoding = bpeEncoding(model);
+        if (encoding != null) {
+            Optional<BpeTokenizer> tokenizer = vocabularies.computeIfAbsent(vocabularyDirectory() + "#" + encoding, key -> loadVocabulary(encoding));
+            if (tokenizer.isPresent()) {
+                return tokenizer.get();
+            }
+        }
+        String family = isClaude(model) ? "claude" : "other";
+        return estimators.computeIfAbsent(family, CalibratedEstimator::new);
+    }
+
+    /**
+     * 统计文本的 token 数。较长的文本按内容缓存，同一文件或同一条消息重复计数时不再重新分词。
+     */
+    public int count(String model, String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        Tokenizer tokenizer = getTokenizer(model);
+        // 估算本身是线性扫描，且结果随校准系数变化，只缓存精确分词的结果
+        if (!tokenizer.isExact() || text.length() < MIN_CACHED_LENGTH) {
+            return tokenizer.count(text);
+        }
+        // 按内容摘要索引，hashCode 相同的不同文本不会拿到彼此的结果；缓存中也不保留长文本本身
+        String key = tokenizer.getName() + ":" + ByteString.encodeUtf8(text).sha256().hex();
+        synchronized (cache) {
+            Integer cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        int count = tokenizer.count(text);
+        synchronized (cache) {
+            cache.put(key, count);
+        }
+        return count;
+    }
+
+    /**
+     * 用服务端返回的实际输入 token 数修正估算。精确分词无需校准。
+     */
+    public void calibrate(String model, int estimated, long actual) {
+        Tokenizer tokenizer = getTokenizer(model);
+        if (tokenizer instanceof CalibratedEstimator && estimated > 0 && actual > 0) {
+            ((CalibratedEstimator) tokenizer).calibrate(estimated, actual);
+        }
+    }
+
+    /**
+     * 根据本地统计的输入 token 数确定本次请求的 max_tokens：输入加输出超出上下文窗口时减小输出上限，
+     * 连最低输出都放不下时在发送前失败，而不是等服务端拒绝。估算值额外留出一定余量。
+     */
+    public int fitMaxTokens(String model, int inputTokens, int maxTokens) throws RequestTooLargeException {
+        int window = getContextWindow(model);
+        if (window <= 0 || inputTokens < 0) {
+            return maxTokens;
+        }
+        int input = getTokenizer(model).isExact() ? inputTokens : (int) Math.ceil(inputTokens * ESTIMATE_MARGIN);
+        int available = window - input;
+        if (available < Math.min(MIN_OUTPUT_TOKENS, maxTokens)) {
+            throw new RequestTooLargeException(model, inputTokens, window);
+        }
+        if (available < maxTokens) {
+            BoykaAILogger.info("Request has ~" + inputTokens + " input tokens, reducing max_tokens from " + maxTokens + " to " + available);
+            return available;
+        }
+        return maxTokens;
+    }
+
+    /**
+     * 模型的上下文窗口大小，设置中指定时以设置为准；未知模型返回 0，表示不做预算检查。
+     */
+    public int getContextWindow(String model) {
+        BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
+        if (settings != null && settings.contextWindowTokens > 0) {
+            return settings.contextWindowTokens;
+        }
+        String name = model == null ? "" : model.toLowerCase(Locale.ROOT);
+        if (name.startsWith("claude")) {
+            return 200_000;
+        }
+        if (name.startsWith("gpt-4o") || name.startsWith("chatgpt-4o") || name.startsWith("gpt-4-turbo")
+                || name.startsWith("gpt-4.1") || name.startsWith("gpt-4.5") || name.startsWith("gpt-5")
+                || name.matches("o[134]([-.].*)?")) {
+            return 128_000;
+        }
+        if (name.startsWith("gpt-4-32k")) {
+            return 32_768;
+        }
+        if (name.startsWith("gpt-4")) {
+            return 8_192;
+        }
+        if (name.startsWith("gpt-3.5-turbo")) {
+            return 16_385;
+        }
+        return 0;
+    }
+
+    // OpenAI 模型对应的 BPE 编码，其他模型返回 null
+    static String bpeEncoding(String model) {
+        String name = model == null ? "" : model.toLowerCase(Locale.ROOT);
+        if (name.startsWith("gpt-4o") || name.startsWith("chatgpt-4o") || name.startsWith("gpt-4.1")
+                || name.startsWith("gpt-4.5") || name.startsWith("gpt-5") || name.matches("o[134]([-.].*)?")) {
+            return BpeTokenizer.O200K_BASE;
+        }
+        if (name.startsWith("gpt-4") || name.startsWith("gpt-3.5") || name.startsWith("text-embedding-3")) {
+            return BpeTokenizer.CL100K_BASE;
+        }
+        return null;
+    }
+
+    private static boolean isClaude(String model) {
+        return model != null && model.toLowerCase(Locale.ROOT).startsWith("claude");
+    }
+
+    private static Path vocabularyDirectory() {
+        BoykaAISettings.State settings = BoykaAISettings.getInstance().getState();
+        if (settings != null && settings.tokenizerDirectory != null && !settings.tokenizerDirectory.isBlank()) {
+            return Paths.get(settings.tokenizerDirectory);
+        }
+        return Paths.get(PathManager.getSystemPath(), "boyka-ai", "tokenizers");
+    }
+
+    private static Optional<BpeTokenizer> loadVocabulary(String encoding) {
+        Path file = vocabularyDirectory().resolve(encoding + ".tiktoken");
+        if (!Files.isRegularFile(file)) {
+            BoykaAILogger.info("Tokenizer vocabulary " + file + " not found, using estimated token counts");
+            return Optional.empty();
+        }
+        try {
+            long start = System.currentTimeMillis();
+            BpeTokenizer tokenizer = BpeTokenizer.load(encoding, file);
+            BoykaAILogger.info("Loaded " + encoding + " vocabulary in " + (System.currentTimeMillis() - start) + " ms");
+            return Optional.of(tokenizer);
+        } catch (IOException e) {
+            BoykaAILogger.warn("Failed to load tokenizer vocabulary " + file + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 字符数估算乘以校准系数。系数是实际值与估算值之比的指数移动平均。
+     */
+    private static class CalibratedEstimator implements Tokenizer {
+        private final String family;
+        private volatile double ratio = 1.0;
+
+        CalibratedEstimator(String family) {
+            this.family = family;
+        }
+
+        @Override
+        public String getName() {
+            return "estimate-" + family;
+        }
+
+        @Override
+        public boolean isExact() {
+            return false;
+        }
+
+        @Override
+        public int count(CharSequence text) {
+            return (int) Math.ceil(TokenEstimator.estimate(text) * ratio);
+        }
+
+        synchronized void calibrate(int estimated, long actual) {
+            // estimated 已经乘过当前系数，先还原成未校准的估算值
+            double observed = actual / (estimated / ratio);
+            ratio = Math.max(MIN_RATIO, Math.min(MAX_RATIO, ratio + CALIBRATION_WEIGHT * (observed - ratio)));
+        }
+    }
+
+    public static class RequestTooLargeException extends IOException {
+        RequestTooLargeException(String model, int inputTokens, int contextWindow) {
+            super("Request is about " + inputTokens + " tokens, which does not fit the " + contextWindow
+                    + "-token context window of " + model + ". Remove files from the context or clear the conversation");
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,83 @@
+package com.dobest1.boyka;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * 发送前粗略估算 token 数：ASCII 字符约 4 个一个 token，其他字符（中文等）按每字符一个 token 计算。
+ * 估算值偏保守，只用于限流和预算判断，不用于计费。
+ */
+public final class TokenEstimator {
+    private TokenEstimator() {
+    }
+
+    public static int estimate(CharSequence text) {
+        if (text == null) {
+            return 0;
+        }
+        long ascii = 0;
+        long other = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                ascii++;
+            } else if (!Character.isLowSurrogate(c)) {
+                other++;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (ascii + 3) / 4 + other);
+    }
+
+    /**
+     * 估算请求体的 token 数。请求体被写入一个只计数的 Sink，不会整体保留在内存中。
+     */
+    public static int estimate(JsonRequestBody body) {
+        CountingSink counter = new CountingSink();
+        try (BufferedSink sink = Okio.buffer(counter)) {
+            body.writeTo(sink);
+            sink.flush();
+        } catch (IOException e) {
+            // 计数 Sink 不会发生 I/O 错误
+            throw new IllegalStateException(e);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (counter.asciiBytes + 3) / 4 + counter.multiByteChars);
+    }
+
+    // 按 UTF-8 字节统计：ASCII 字节，以及多字节字符的首字节（即非 ASCII 字符数）
+    private static class CountingSink implements Sink {
+        long asciiBytes;
+        long multiByteChars;
+
+        @Override
+        public void write(@NotNull Buffer source, long byteCount) throws IOException {
+            for (long i = 0; i < byteCount; i++) {
+                byte b = source.readByte();
+                if (b >= 0) {
+                    asciiBytes++;
+                } else if ((b & 0xC0) == 0xC0) {
+                    multiByteChars++;
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @NotNull
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.dobest1.boyka;
+
+/**
+ * 一次或多次请求的 token 用量，包括提示缓存的写入和命中。
+ */
+public class TokenUsage {
+    private long inputTokens;
+    private long outputTokens;
+    private long cacheCreationInputTokens;
+    private long cacheReadInputTokens;
+
+    public TokenUsage() {
+    }
+
+    public TokenUsage(long inputTokens, long outputTokens, long cacheCreationInputTokens, long cacheReadInputTokens) {
+        this.inputTokens = inputTokens;
+        this.outputTokens = outputTokens;
+        this.cacheCreationInputTokens = cacheCreationInputTokens;
+        this.cacheReadInputTokens = cacheReadInputTokens;
+    }
+
+    public synchronized void add(TokenUsage other) {
+        if (other == null) {
+            return;
+        }
+        inputTokens += other.inputTokens;
+        outputTokens += other.outputTokens;
+        cacheCreationInputTokens += other.cacheCreationInputTokens;
+        cacheReadInputTokens += other.cacheReadInputTokens;
+    }
+
+    public synchronized void reset() {
+        inputTokens = 0;
+        outputTokens = 0;
+        cacheCreationInputTokens = 0;
+        cacheReadInputTokens = 0;
+    }
+
+    public synchronized TokenUsage snapshot() {
+        return new TokenUsage(inputTokens, outputTokens, cacheCreationInputTokens, cacheReadInputTokens);
+    }
+
+    /**
+     * 未命中缓存的输入 token 数。
+     */
+    public synchronized long getInputTokens() {
+        return inputTokens;
+    }
+
+    public synchronized long getOutputTokens() {
+        return outputTokens;
+    }
+
+    public synchronized long getCacheCreationInputTokens() {
+        return cacheCreationInputTokens;
+    }
+
+    public synchronized long getCacheReadInputTokens() {
+        return cacheReadInputTokens;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Tokens in: " + inputTokens
+                + ", out: " + outputTokens
+                + ", cache write: " + cacheCreationInputTokens
+                + ", cache read: " + cacheReadInputTokens;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.dobest1.boyka;
+
+/**
+ * 把文本换算成 token 数。实现必须是线程安全的。
+ */
+public interface Tokenizer {
+    /**
+     * 用于缓存键和日志的名称，例如 "cl100k_base"。
+     */
+    String getName();
+
+    int count(CharSequence text);
+
+    /**
+     * 是否是与服务端一致的精确分词，否则只是估算。
+     */
+    boolean isExact();
+}
\ No newline at end of file
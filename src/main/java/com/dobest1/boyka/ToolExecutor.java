@@ -3,11 +3,21 @@ package com.dobest1.boyka;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.intellij.util.concurrency.AppExecutorUtil;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 public class ToolExecutor {
+    // 工具调用会阻塞在文件读写和项目搜索上，放在插件自己的有界线程池中，不占用公共的 ForkJoinPool
+    private static final ExecutorService TOOL_EXECUTOR = AppExecutorUtil.createBoundedApplicationPoolExecutor("BoykaAI Tools", 4);
+    // 只读取文件或项目、不做任何修改的工具
+    private static final Set<String> READ_ONLY_TOOLS = Set.of(
+            "read_file", "read_symbol", "read_multiple_files", "list_files", "read_directory", "grep_project");
+
     private final BoykaAIFileTools fileTools;
     private final Gson gson;
 
@@ -36,6 +46,9 @@ public class ToolExecutor {
                     return fileTools.stopProcess(args.get("process_id").getAsString());
                 case "read_file":
                     return fileTools.readFile(args.get("path").getAsString());
+                case "read_symbol":
+                    return fileTools.readSymbol(args.get("path").getAsString(),
+                            args.has("symbol") ? args.get("symbol").getAsString() : null);
                 case "read_multiple_files":
                     JsonArray pathsArray = args.getAsJsonArray("paths");
                     List<String> paths = new ArrayList<>();
@@ -43,12 +56,49 @@ public class ToolExecutor {
                     return String.join("\n\n", fileTools.readMultipleFiles(paths));
                 case "list_files":
                     return String.join("\n", fileTools.listFiles(args.get("path").getAsString()));
+                case "read_directory":
+                    return fileTools.readDirectory(args.get("path").getAsString());
+                case "grep_project":
+                    return fileTools.grepProject(args.get("query").getAsString(),
+                            args.has("regex") && args.get("regex").getAsBoolean(),
+                            args.has("case_sensitive") && args.get("case_sensitive").getAsBoolean(),
+                            args.has("file_mask") ? args.get("file_mask").getAsString() : null);
                 default:
                     return "Unknown tool call: " + toolName;
             }
         } catch (Exception e) {
-            BoykaAILogger.error("Error in tool execution: " + toolName + arguments, e);
-            return "An error occurred during <+" + toolName + ">+tool execution:  " + arguments + "\nError msg: " + e.getMessage();
+            return toolError(toolName, arguments, e);
+        }
+    }
+
+    /**
+     * 工具是否只读取文件或项目。只读工具可以在模型的回复确定之前提前执行，回复作废时丢弃结果即可。
+     */
+    public static boolean isReadOnly(String toolName) {
+        return READ_ONLY_TOOLS.contains(toolName);
+    }
+
+    /**
+     * 异步执行工具调用。edit_and_apply 直接返回编辑流程的 future，不占用线程等待其中的 LLM 请求。
+     */
+    public CompletableFuture<String> executeToolCallAsync(String toolName, String arguments) {
+        if (!"edit_and_apply".equals(toolName)) {
+            return CompletableFuture.supplyAsync(() -> executeToolCall(toolName, arguments), TOOL_EXECUTOR);
+        }
+        try {
+            JsonObject args = gson.fromJson(arguments, JsonObject.class);
+            return fileTools.editAndApply(
+                    args.get("path").getAsString(),
+                    args.get("instructions").getAsString(),
+                    args.get("project_context").getAsString(), false, 3
+            ).exceptionally(e -> toolError(toolName, arguments, CallFuture.unwrap(e)));
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(toolError(toolName, arguments, e));
         }
     }
+
+    private String toolError(String toolName, String arguments, Throwable e) {
+        BoykaAILogger.error("Error in tool execution: " + toolName + arguments, e);
+        return "An error occurred during <+" + toolName + ">+tool execution:  " + arguments + "\nError msg: " + e.getMessage();
+    }
 }
\ No newline at end of file
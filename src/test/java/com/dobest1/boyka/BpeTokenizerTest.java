@@ -0,0 +1,125 @@
+package com.dobest1.boyka;
+
+import okio.ByteString;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class BpeTokenizerTest {
+    // 真实词表所在的目录，例如 -Dboyka.tiktoken.dir=~/.cache/tiktoken，其中有 cl100k_base.tiktoken、o200k_base.tiktoken；未指定时跳过
+    private static final String VOCABULARY_DIR = System.getProperty("boyka.tiktoken.dir");
+
+    @Test
+    public void knownCl100kCounts() throws IOException {
+        BpeTokenizer tokenizer = realVocabulary(BpeTokenizer.CL100K_BASE);
+        assertEquals(2, tokenizer.count("hello world"));
+        assertEquals(6, tokenizer.count("tiktoken is great!"));
+        assertEquals(6, tokenizer.count("antidisestablishmentarianism"));
+        assertEquals(7, tokenizer.count("2 + 2 = 4"));
+        assertEquals(9, tokenizer.count("お誕生日おめでとう"));
+    }
+
+    @Test
+    public void knownO200kCounts() throws IOException {
+        BpeTokenizer tokenizer = realVocabulary(BpeTokenizer.O200K_BASE);
+        assertEquals(2, tokenizer.count("hello world"));
+    }
+
+    @Test
+    public void shortPieceMergesLowestRankFirst() throws IOException {
+        BpeTokenizer tokenizer = syntheticVocabulary();
+        // "abcd" 先合并 ab、cd，再合并为 abcd
+        assertEquals(1, tokenizer.count("abcd"));
+        // bc 的 rank 比 ab 小，先合并 bc 后 ab 无法再合并
+        assertEquals(3, tokenizer.count("abca"));
+        assertEquals(2, tokenizer.count("aaaaa"));
+    }
+
+    @Test
+    public void longPiecesAreCountedExactly() throws IOException {
+        BpeTokenizer tokenizer = syntheticVocabulary();
+        Random random = new Random(42);
+        for (int length : new int[]{600, 2000, 5000}) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                text.append("abcd".charAt(random.nextInt(4)));
+            }
+            assertEquals("length " + length, referenceCount(text.toString(), syntheticRanks()), tokenizer.count(text));
+        }
+        // 长的重复片段中 rank 相同的对要按从左到右的顺序合并
+        String repeated = "a".repeat(1001);
+        assertEquals(referenceCount(repeated, syntheticRanks()), tokenizer.count(repeated));
+    }
+
+    private static BpeTokenizer realVocabulary(String encoding) throws IOException {
+        Assume.assumeTrue("boyka.tiktoken.dir is not set", VOCABULARY_DIR != null);
+        Path file = Paths.get(VOCABULARY_DIR, encoding + ".tiktoken");
+        Assume.assumeTrue(file + " does not exist", Files.isRegularFile(file));
+        return BpeTokenizer.load(encoding, file);
+    }
+
+    private static Map<ByteString, Integer> syntheticRanks() {
+        Map<ByteString, Integer> ranks = new LinkedHashMap<>();
+        for (int b = 0; b < 256; b++) {
+            ranks.put(ByteString.of((byte) b), b);
+        }
+        String[] merges = {"bc", "ab", "cd", "aa", "abcd", "aaaa", "da", "cda", "bcd", "aab"};
+        for (String merge : merges) {
+            ranks.put(ByteString.encodeUtf8(merge), ranks.size());
+        }
+        return ranks;
+    }
+
+    private static BpeTokenizer syntheticVocabulary() throws IOException {
+        Path file = Files.createTempFile("cl100k_base", ".tiktoken");
+        try {
+            StringBuilder vocabulary = new StringBuilder();
+            for (Map.Entry<ByteString, Integer> entry : syntheticRanks().entrySet()) {
+                vocabulary.append(entry.getKey().base64()).append(' ').append(entry.getValue()).append('\n');
+            }
+            Files.writeString(file, vocabulary);
+            return BpeTokenizer.load(BpeTokenizer.CL100K_BASE, file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // 按定义逐轮合并的参考实现：每轮合并 rank 最小、最靠左的相邻对
+    private static int referenceCount(String piece, Map<ByteString, Integer> ranks) {
+        List<ByteString> parts = new ArrayList<>();
+        for (byte b : piece.getBytes(StandardCharsets.UTF_8)) {
+            parts.add(ByteString.of(b));
+        }
+        while (true) {
+            int best = -1;
+            int bestRank = Integer.MAX_VALUE;
+            for (int i = 0; i + 1 < parts.size(); i++) {
+                Integer rank = ranks.get(concat(parts.get(i), parts.get(i + 1)));
+                if (rank != null && rank < bestRank) {
+                    bestRank = rank;
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                return parts.size();
+            }
+            parts.set(best, concat(parts.get(best), parts.remove(best + 1)));
+        }
+    }
+
+    private static ByteString concat(ByteString left, ByteString right) {
+        return new okio.Buffer().write(left).write(right).readByteString();
+    }
+}
\ No newline at end of file
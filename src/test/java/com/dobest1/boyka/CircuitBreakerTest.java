@@ -0,0 +1,117 @@
+package com.dobest1.boyka;
+
+import junit.framework.TestCase;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+public class CircuitBreakerTest extends TestCase {
+    private final ManualClock clock = new ManualClock();
+    private final CircuitBreaker breaker = new CircuitBreaker("api.example.com", 3, 10_000, clock);
+
+    public void testOpensAfterConsecutiveFailures() throws Exception {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.acquire();
+        assertFalse(breaker.isOpen());
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        assertRejected();
+    }
+
+    public void testSuccessResetsFailureCount() throws Exception {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.acquire();
+        assertFalse(breaker.isOpen());
+    }
+
+    public void testHalfOpenAllowsOneProbeThenCloses() throws Exception {
+        open();
+        clock.advance(9_999);
+        assertRejected();
+        clock.advance(1);
+        breaker.acquire();
+        // 试探请求返回之前，其他请求仍被拒绝
+        assertRejected();
+        breaker.recordSuccess();
+        assertFalse(breaker.isOpen());
+        breaker.acquire();
+    }
+
+    public void testFailedProbeReopens() throws Exception {
+        open();
+        clock.advance(10_000);
+        breaker.acquire();
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        assertRejected();
+        clock.advance(10_000);
+        breaker.acquire();
+    }
+
+    public void testIgnoredProbeReleasesSlot() throws Exception {
+        open();
+        clock.advance(10_000);
+        breaker.acquire();
+        breaker.recordIgnored();
+        // 下一个请求可以立即作为试探
+        breaker.acquire();
+        breaker.recordSuccess();
+        assertFalse(breaker.isOpen());
+    }
+
+    public void testRejectionReportsRemainingTime() {
+        open();
+        clock.advance(2_500);
+        try {
+            breaker.acquire();
+            fail("expected the circuit to be open");
+        } catch (CircuitBreaker.CircuitOpenException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("retry in 8s"));
+        }
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure();
+        }
+    }
+
+    private void assertRejected() {
+        try {
+            breaker.acquire();
+            fail("expected the circuit to be open");
+        } catch (CircuitBreaker.CircuitOpenException expected) {
+            // 断路器打开
+        }
+    }
+
+    private static final class ManualClock extends Clock {
+        private Instant now = Instant.parse("2024-01-01T00:00:00Z");
+
+        void advance(long millis) {
+            now = now.plusMillis(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,129 @@
+package com.dobest1.boyka;
+
+import junit.framework.TestCase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ContextDiffTrackerTest extends TestCase {
+
+    public void testInsertOnly() {
+        String after = lines(1, 5) + "X\n" + lines(6, 10);
+        assertEquals(header() + "@@ -4,4 +4,5 @@\n l4\n l5\n+X\n l6\n l7\n", diff(lines(1, 10), after));
+    }
+
+    public void testDeleteOnly() {
+        String after = lines(1, 4) + lines(6, 10);
+        assertEquals(header() + "@@ -3,5 +3,4 @@\n l3\n l4\n-l5\n l6\n l7\n", diff(lines(1, 10), after));
+    }
+
+    public void testNearbyChangesShareHunk() {
+        // 两处改动之间隔 4 行，上下文正好相接，合并为一个 hunk
+        String after = lines(1, 2) + "A\n" + lines(4, 7) + "B\n" + lines(9, 12);
+        assertEquals(header() + "@@ -1,10 +1,10 @@\n l1\n l2\n-l3\n+A\n l4\n l5\n l6\n l7\n-l8\n+B\n l9\n l10\n",
+                diff(lines(1, 12), after));
+    }
+
+    public void testFarApartChangesGetSeparateHunks() {
+        // 隔 5 行时分成两个 hunk
+        String after = lines(1, 2) + "A\n" + lines(4, 8) + "B\n" + lines(10, 20);
+        assertEquals(header()
+                        + "@@ -1,5 +1,5 @@\n l1\n l2\n-l3\n+A\n l4\n l5\n"
+                        + "@@ -7,5 +7,5 @@\n l7\n l8\n-l9\n+B\n l10\n l11\n",
+                diff(lines(1, 20), after));
+    }
+
+    public void testChangesAtStartAndEnd() {
+        String after = "A\n" + lines(2, 19) + "B\n";
+        assertEquals(header()
+                        + "@@ -1,3 +1,3 @@\n-l1\n+A\n l2\n l3\n"
+                        + "@@ -18,3 +18,3 @@\n l18\n l19\n-l20\n+B\n",
+                diff(lines(1, 20), after));
+    }
+
+    public void testAppendWithTrailingNewline() {
+        assertEquals(header() + "@@ -2,2 +2,3 @@\n l2\n l3\n+l4\n", diff(lines(1, 3), lines(1, 4)));
+    }
+
+    public void testMissingTrailingNewline() {
+        assertEquals(header() + "@@ -1,2 +1,2 @@\n a\n-b\n\\ No newline at end of file\n+b\n", diff("a\nb", "a\nb\n"));
+    }
+
+    public void testInsertIntoEmptyFile() {
+        assertEquals(header() + "@@ -0,0 +1,2 @@\n+a\n+b\n", diff("", "a\nb\n"));
+    }
+
+    public void testNoUpdateBeforeBaselineOrWithoutChanges() {
+        ContextDiffTracker tracker = new ContextDiffTracker();
+        assertEquals("", tracker.prepareUpdate(sections("A.java", lines(1, 20))));
+        Map<String, String> sections = sections("A.java", lines(1, 20));
+        assertEquals(String.join("", sections.values()), tracker.systemContext(sections));
+        assertEquals("", tracker.prepareUpdate(sections("A.java", lines(1, 20))));
+    }
+
+    public void testUpdateIsCountedOnlyAfterCommit() {
+        ContextDiffTracker tracker = new ContextDiffTracker();
+        String baseline = tracker.systemContext(sections("A.java", lines(1, 60)));
+        Map<String, String> changed = sections("A.java", lines(1, 29) + "changed\n" + lines(31, 60));
+
+        String update = tracker.prepareUpdate(changed);
+        assertTrue(update, update.contains("-l30\n+changed\n"));
+        tracker.discard();
+        // 撤回后仍相对基线计算
+        assertEquals(update, tracker.prepareUpdate(changed));
+        tracker.commit();
+        assertEquals("", tracker.prepareUpdate(changed));
+        // 系统提示中的基线保持不变
+        assertEquals(baseline, tracker.systemContext(changed));
+
+        Map<String, String> reverted = sections("A.java", lines(1, 60));
+        assertTrue(tracker.prepareUpdate(reverted).contains("-changed\n+l30\n"));
+    }
+
+    public void testAddedRemovedAndRewrittenFiles() {
+        ContextDiffTracker tracker = new ContextDiffTracker();
+        Map<String, String> initial = sections("A.java", lines(1, 20));
+        initial.putAll(sections("B.java", lines(1, 3)));
+        tracker.systemContext(initial);
+
+        Map<String, String> current = sections("A.java", "rewritten\n");
+        current.putAll(sections("C.java", "new file\n"));
+        String update = tracker.prepareUpdate(current);
+        assertTrue(update, update.contains("Updated, new content:\nFile: A.java\nrewritten\n"));
+        assertTrue(update, update.contains("Added to context:\nFile: C.java\nnew file\n"));
+        assertTrue(update, update.contains("Removed from context: B.java\n"));
+        assertTrue(update, update.endsWith("All other context files are unchanged.\n"));
+    }
+
+    public void testResetStartsNewBaseline() {
+        ContextDiffTracker tracker = new ContextDiffTracker();
+        tracker.systemContext(sections("A.java", lines(1, 20)));
+        tracker.reset();
+        Map<String, String> changed = sections("A.java", lines(1, 19));
+        assertEquals("", tracker.prepareUpdate(changed));
+        assertEquals(String.join("", changed.values()), tracker.systemContext(changed));
+    }
+
+    private static String diff(String before, String after) {
+        return ContextDiffTracker.unifiedDiff("A.java", before, after);
+    }
+
+    private static String header() {
+        return "--- A.java\n+++ A.java\n";
+    }
+
+    private static Map<String, String> sections(String path, String content) {
+        Map<String, String> sections = new LinkedHashMap<>();
+        sections.put(path, "File: " + path + "\n" + content + "\n\n");
+        return sections;
+    }
+
+    // 第 from 到 to 行，每行为 "l" 加行号，以换行结尾
+    private static String lines(int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i <= to; i++) {
+            text.append('l').append(i).append('\n');
+        }
+        return text.toString();
+    }
+}
\ No newline at end of file
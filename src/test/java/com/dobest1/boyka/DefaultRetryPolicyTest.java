@@ -0,0 +1,101 @@
+package com.dobest1.boyka;
+
+import junit.framework.TestCase;
+import okhttp3.Headers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+public class DefaultRetryPolicyTest extends TestCase {
+    private static final Instant NOW = Instant.parse("2015-10-21T07:27:30Z");
+
+    private final DefaultRetryPolicy policy = new DefaultRetryPolicy(3, 1000, 30_000, 60_000, Clock.fixed(NOW, ZoneOffset.UTC));
+
+    public void testRetryAfterSeconds() {
+        assertEquals(2000, policy.serverDelayMillis(503, Headers.of("retry-after", "2")));
+        assertEquals(1500, policy.serverDelayMillis(429, Headers.of("retry-after", " 1.5 ")));
+    }
+
+    public void testRetryAfterHttpDate() {
+        assertEquals(30_000, policy.serverDelayMillis(503, Headers.of("retry-after", "Wed, 21 Oct 2015 07:28:00 GMT")));
+        // 已经过去的时间不等待
+        assertEquals(0, policy.serverDelayMillis(503, Headers.of("retry-after", "Wed, 21 Oct 2015 07:00:00 GMT")));
+    }
+
+    public void testRetryAfterMsTakesPrecedence() {
+        assertEquals(250, policy.serverDelayMillis(429, Headers.of("retry-after-ms", "250", "retry-after", "10")));
+    }
+
+    public void testInvalidRetryAfterIsIgnored() {
+        assertEquals(-1, policy.serverDelayMillis(503, Headers.of("retry-after", "soon")));
+    }
+
+    public void testAnthropicResetHeadersUseLatestReset() {
+        Headers headers = Headers.of(
+                "anthropic-ratelimit-requests-reset", "2015-10-21T07:27:35Z",
+                "anthropic-ratelimit-tokens-reset", "2015-10-21T07:27:42Z");
+        assertEquals(12_000, policy.serverDelayMillis(429, headers));
+    }
+
+    public void testOpenAIResetHeaders() {
+        assertEquals(360_000, policy.serverDelayMillis(429, Headers.of("x-ratelimit-reset-requests", "6m0s")));
+        assertEquals(1_250, policy.serverDelayMillis(429, Headers.of("x-ratelimit-reset-tokens", "1.25s")));
+        assertEquals(250, policy.serverDelayMillis(429, Headers.of("x-ratelimit-reset-tokens", "250ms")));
+        assertEquals(-1, policy.serverDelayMillis(429, Headers.of("x-ratelimit-reset-tokens", "6 minutes")));
+    }
+
+    public void testResetHeadersOnlyApplyTo429() {
+        assertEquals(-1, policy.serverDelayMillis(503, Headers.of("x-ratelimit-reset-requests", "1s")));
+    }
+
+    public void testServerDelayAboveLimitStopsRetrying() {
+        assertEquals(-1, policy.nextDelayMillis(0, 429, Headers.of("retry-after", "120"), null));
+        assertEquals(5000, policy.nextDelayMillis(0, 429, Headers.of("retry-after", "5"), null));
+    }
+
+    public void testJitterStaysWithinExponentialCeiling() {
+        DefaultRetryPolicy manyAttempts = new DefaultRetryPolicy(10, 1000, 4000, 60_000, Clock.fixed(NOW, ZoneOffset.UTC));
+        for (int attempt = 0; attempt < 5; attempt++) {
+            long ceiling = Math.min(4000, 1000L << attempt);
+            for (int i = 0; i < 200; i++) {
+                long delay = manyAttempts.nextDelayMillis(attempt, 503, Headers.of(), null);
+                assertTrue("attempt " + attempt + " delay " + delay, delay >= 0 && delay <= ceiling);
+            }
+        }
+    }
+
+    public void testAttemptLimit() {
+        assertTrue(policy.nextDelayMillis(1, 503, Headers.of(), null) >= 0);
+        assertEquals(-1, policy.nextDelayMillis(2, 503, Headers.of(), null));
+    }
+
+    public void testRetryableStatusCodes() {
+        for (int status : new int[]{408, 409, 429, 500, 502, 503, 529}) {
+            assertTrue("status " + status, policy.nextDelayMillis(0, status, Headers.of(), null) >= 0);
+        }
+        for (int status : new int[]{400, 401, 403, 404, 422}) {
+            assertEquals("status " + status, -1, policy.nextDelayMillis(0, status, Headers.of(), null));
+        }
+    }
+
+    public void testOverloadedCountsAsEndpointFailure() {
+        assertTrue(policy.isEndpointFailure(529, null));
+        assertTrue(policy.isEndpointFailure(500, null));
+        assertFalse(policy.isEndpointFailure(429, null));
+        assertFalse(policy.isEndpointFailure(400, null));
+    }
+
+    public void testNetworkErrors() {
+        assertTrue(policy.nextDelayMillis(0, -1, null, new SocketTimeoutException("timeout")) >= 0);
+        assertTrue(policy.isEndpointFailure(-1, new IOException("connection reset")));
+        // 已经推送了部分内容的响应和被取消的请求不重试
+        assertEquals(-1, policy.nextDelayMillis(0, -1, null, new BoykaAIHttpService.PartialResponseException(new IOException("reset"))));
+        InterruptedIOException canceled = new InterruptedIOException("Canceled");
+        assertEquals(-1, policy.nextDelayMillis(0, -1, null, canceled));
+        assertFalse(policy.isEndpointFailure(-1, canceled));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,82 @@
+package com.dobest1.boyka;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class MultiEditEngineTest extends TestCase {
+
+    public void testUniqueSearchIsReplaced() {
+        MultiEditEngine.Result result = MultiEditEngine.apply("int a = 1;\nint b = 2;\n", List.of("int b = 2;"), List.of("int b = 3;"));
+        assertEquals("int a = 1;\nint b = 3;\n", result.content);
+        assertEquals(1, result.applied);
+        assertTrue(result.failures.isEmpty());
+    }
+
+    public void testEditsAreLocatedInOriginalContent() {
+        // 按位置逆序给出的编辑同样生效，后一个编辑不会匹配前一个编辑替换出的文本
+        MultiEditEngine.Result result = MultiEditEngine.apply("one two three", List.of("three", "one", "two"), List.of("3", "two", "2"));
+        assertEquals("two 2 3", result.content);
+        assertEquals(3, result.applied);
+    }
+
+    public void testMissingSearchIsReported() {
+        MultiEditEngine.Result result = MultiEditEngine.apply("abc", List.of("b", "xyz"), List.of("B", "XYZ"));
+        assertEquals("aBc", result.content);
+        assertEquals(1, result.applied);
+        assertEquals(List.of("Edit 2 (content not found): xyz"), result.failures);
+    }
+
+    public void testAmbiguousSearchIsNotApplied() {
+        MultiEditEngine.Result result = MultiEditEngine.apply("x = 1;\nx = 1;\nx = 1;\n", List.of("x = 1;"), List.of("x = 2;"));
+        assertEquals("x = 1;\nx = 1;\nx = 1;\n", result.content);
+        assertEquals(0, result.applied);
+        assertEquals(List.of("Edit 1 (matches more than 1 places, include more surrounding lines to make it unique): x = 1;"),
+                result.failures);
+    }
+
+    public void testDuplicateBlocksTakeOccurrencesInOrder() {
+        MultiEditEngine.Result result = MultiEditEngine.apply("call();\nwait();\ncall();\n", List.of("call();", "call();"),
+                List.of("first();", "second();"));
+        assertEquals("first();\nwait();\nsecond();\n", result.content);
+        assertEquals(2, result.applied);
+        assertTrue(result.failures.isEmpty());
+    }
+
+    public void testDuplicateBlocksWithFewerOccurrencesAreNotApplied() {
+        MultiEditEngine.Result result = MultiEditEngine.apply("call();\n", List.of("call();", "call();"), List.of("a();", "b();"));
+        assertEquals("call();\n", result.content);
+        assertEquals(0, result.applied);
+        assertEquals(List.of(
+                "Edit 1 (matches 1 places, include more surrounding lines to make it unique): call();",
+                "Edit 2 (matches 1 places, include more surrounding lines to make it unique): call();"), result.failures);
+    }
+
+    public void testOverlappingEditIsRejected() {
+        MultiEditEngine.Result result = MultiEditEngine.apply("abcdef", List.of("cdef", "abcd"), List.of("Y", "X"));
+        assertEquals("Xef", result.content);
+        assertEquals(1, result.applied);
+        assertEquals(List.of("Edit 1 (overlaps edit 2): cdef"), result.failures);
+    }
+
+    public void testEmptySearchInsertsAtStart() {
+        MultiEditEngine.Result result = MultiEditEngine.apply("body\n", List.of(""), List.of("header\n"));
+        assertEquals("header\nbody\n", result.content);
+        assertEquals(1, result.applied);
+    }
+
+    public void testInsertAndReplaceAtSameOffset() {
+        // 插入排在同一位置的替换之前，两者都应用
+        MultiEditEngine.Result result = MultiEditEngine.apply("abc", List.of("ab", ""), List.of("X", "<"));
+        assertEquals("<Xc", result.content);
+        assertEquals(2, result.applied);
+        assertTrue(result.failures.isEmpty());
+    }
+
+    public void testEmptyFile() {
+        MultiEditEngine.Result result = MultiEditEngine.apply("", List.of("", "missing"), List.of("new\n", "x"));
+        assertEquals("new\n", result.content);
+        assertEquals(1, result.applied);
+        assertEquals(List.of("Edit 2 (content not found): missing"), result.failures);
+    }
+}
\ No newline at end of file